@@ -0,0 +1,67 @@
+package edu.uchc.octane.analyze;
+
+import java.awt.Rectangle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.uchc.octane.core.frameanalysis.LocalMaximum;
+import edu.uchc.octane.core.pixelimage.RectangularImage;
+
+/**
+ * LocalMaximum.processFrame on a converted frame, without fitting.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class DetectionBenchmark {
+
+	@Param({"256", "2048"})
+	int size;
+
+	@Param({"1", "10"})
+	double density;
+
+	@Param({"100"})
+	int noise;
+
+	FrameAnalyzer2D context;
+	LocalMaximum finder;
+	int count;
+
+	final LocalMaximum.CallBackFunctions counter = new LocalMaximum.CallBackFunctions() {
+		@Override
+		public boolean fit(RectangularImage subimg, int x, int y) {
+			count++;
+			return true;
+		}
+	};
+
+	@Setup
+	public void setup() {
+		short [] pixels = (short []) SyntheticStack.create(size, size, 1, density, 1000, 20, 1.3, 1).getPixels(1);
+		context = new ParticleAnalyzer2D().newFrameAnalyzer();
+		context.convert(pixels, size, new Rectangle(size, size));
+		finder = new LocalMaximum(noise, 0, 4);
+	}
+
+	@Benchmark
+	public int detect() {
+		count = 0;
+		finder.processFrame(context.img_, counter);
+		return count;
+	}
+}
@@ -0,0 +1,88 @@
+package edu.uchc.octane.analyze;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.uchc.octane.core.fitting.Fitter;
+import edu.uchc.octane.core.frameanalysis.LocalMaximum;
+import edu.uchc.octane.core.pixelimage.RectangularImage;
+
+/**
+ * Fitting time per candidate for each fitter of the 2D analysis. The candidates are
+ * collected once from a simulated frame, so detection is not included.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class FitterBenchmark {
+
+	final static int CANDIDATES = 200;
+
+	@Param({"LS", "Simplex", "CG", "Newton", "BatchMLE"})
+	String fitter;
+
+	Fitter f;
+	BatchedMLEFitter batch;
+	ArrayList<RectangularImage> candidates = new ArrayList<RectangularImage>();
+
+	@Setup
+	public void setup() {
+		ParticleAnalyzer2D analyzer = new ParticleAnalyzer2D();
+		analyzer.setFitter(fitter);
+		f = analyzer.createFitter();
+		batch = analyzer.createBatchFitter();
+
+		// enough frames for the candidate list
+		int frame = 0;
+		while (candidates.size() < CANDIDATES) {
+			short [] pixels = (short []) SyntheticStack.create(512, 512, 1, 5, 1000, 20, 1.3, ++frame).getPixels(1);
+			FrameAnalyzer2D context = analyzer.newFrameAnalyzer();
+			context.convert(pixels, 512, new Rectangle(512, 512));
+			new LocalMaximum(100, 0, 4).processFrame(context.img_, new LocalMaximum.CallBackFunctions() {
+				@Override
+				public boolean fit(RectangularImage subimg, int x, int y) {
+					candidates.add(subimg);
+					return candidates.size() < CANDIDATES;
+				}
+			});
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CANDIDATES)
+	public void fit(Blackhole bh) {
+		if (batch != null) {
+			// includes packing the candidates
+			for (RectangularImage subimg : candidates) {
+				batch.add(subimg);
+			}
+			batch.fit();
+			for (int i = 0; i < batch.size(); i++) {
+				bh.consume(batch.getResult(i));
+			}
+			batch.clear();
+			return;
+		}
+		for (RectangularImage subimg : candidates) {
+			bh.consume(f.fit(subimg, null));
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package edu.uchc.octane.analyze;
+
+import java.awt.Rectangle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Conversion of a raw 16-bit frame to photon counts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class FrameConversionBenchmark {
+
+	@Param({"256", "512", "2048"})
+	int size;
+
+	short [] pixels;
+	Rectangle frame;
+	FrameAnalyzer2D context;
+
+	@Setup
+	public void setup() {
+		pixels = (short []) SyntheticStack.create(size, size, 1, 5, 1000, 20, 1.3, 1).getPixels(1);
+		context = new ParticleAnalyzer2D().newFrameAnalyzer();
+		frame = new Rectangle(size, size);
+	}
+
+	@Benchmark
+	public double [] convert() {
+		context.convert(pixels, size, frame);
+		return context.buffer_;
+	}
+}
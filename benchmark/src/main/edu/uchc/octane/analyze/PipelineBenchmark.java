@@ -0,0 +1,61 @@
+package edu.uchc.octane.analyze;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.ImageStack;
+
+/**
+ * End-to-end batch analysis of a simulated stack, as done by processAll.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class PipelineBenchmark {
+
+	@Param({"256"})
+	int size;
+
+	@Param({"200"})
+	int frames;
+
+	@Param({"1", "10"})
+	double density;
+
+	@Param({"NoFit", "LS", "Newton"})
+	String fitter;
+
+	@Param({"4"})
+	int threads;
+
+	ImageStack stack;
+
+	@Setup
+	public void setup() {
+		stack = SyntheticStack.create(size, size, frames, density, 1000, 20, 1.3, 1);
+	}
+
+	@Benchmark
+	public int processAll() throws Exception {
+		ParticleAnalyzer2D analyzer = new ParticleAnalyzer2D();
+		analyzer.setFitter(fitter);
+		analyzer.setNumThreads(threads);
+		ColumnBufferSink sink = new ColumnBufferSink();
+		analyzer.processAll(stack, sink);
+		return sink.size();
+	}
+}
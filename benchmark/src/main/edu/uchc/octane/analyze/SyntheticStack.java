@@ -0,0 +1,75 @@
+package edu.uchc.octane.analyze;
+
+import java.util.Random;
+
+import org.apache.commons.math3.special.Erf;
+
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+
+/**
+ * Simulated single-molecule movies: Gaussian spots at random positions with Poisson
+ * noise, converted to camera counts with the default offset and gain of the analysis.
+ */
+public class SyntheticStack {
+
+	final static double OFFSET = 100.0;
+	final static double GAIN = 1.63;
+
+	/**
+	 * Create a stack
+	 * @param width Frame width
+	 * @param height Frame height
+	 * @param nFrames Number of frames
+	 * @param density Average number of molecules per 100x100 pixel area per frame
+	 * @param photons Photons per molecule
+	 * @param background Background photons per pixel
+	 * @param sigma PSF sigma in pixels
+	 * @param seed Random seed, for reproducible data
+	 * @return The image stack
+	 */
+	public static ImageStack create(int width, int height, int nFrames, double density, double photons, double background, double sigma, long seed) {
+		Random rnd = new Random(seed);
+		ImageStack stack = new ImageStack(width, height);
+		double [] signal = new double[width * height];
+		int r = (int) Math.ceil(sigma * 4);
+		double s2 = sigma * Math.sqrt(2);
+
+		for (int f = 0; f < nFrames; f++) {
+			java.util.Arrays.fill(signal, background);
+			int n = poisson(rnd, density * width * height / 1e4);
+			for (int k = 0; k < n; k++) {
+				double x = rnd.nextDouble() * width;
+				double y = rnd.nextDouble() * height;
+				int xi = (int) x, yi = (int) y;
+				for (int j = Math.max(0, yi - r); j <= Math.min(height - 1, yi + r); j++) {
+					double ey = 0.5 * (Erf.erf((j + 1 - y) / s2) - Erf.erf((j - y) / s2));
+					for (int i = Math.max(0, xi - r); i <= Math.min(width - 1, xi + r); i++) {
+						double ex = 0.5 * (Erf.erf((i + 1 - x) / s2) - Erf.erf((i - x) / s2));
+						signal[j * width + i] += photons * ex * ey;
+					}
+				}
+			}
+			short [] pixels = new short[width * height];
+			for (int i = 0; i < pixels.length; i++) {
+				double v = poisson(rnd, signal[i]) * GAIN + OFFSET;
+				pixels[i] = (short) Math.min(65535, Math.round(v));
+			}
+			stack.addSlice(null, new ShortProcessor(width, height, pixels, null));
+		}
+		return stack;
+	}
+
+	static int poisson(Random rnd, double mean) {
+		if (mean > 30) {
+			return (int) Math.max(0, Math.round(mean + Math.sqrt(mean) * rnd.nextGaussian()));
+		}
+		double l = Math.exp(-mean), p = 1.0;
+		int k = 0;
+		do {
+			k++;
+			p *= rnd.nextDouble();
+		} while (p > l);
+		return k - 1;
+	}
+}
@@ -0,0 +1,228 @@
+package edu.uchc.octane.analyze;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Lock-free timing and throughput counters of a particle analysis run. Workers record
+ * the time spent in each stage of every frame; the counters can be read at any time
+ * for a periodic summary, and exported as a report at the end of the run.
+ */
+public class AnalysisMetrics {
+
+	public enum Stage { FETCH, PREPROCESS, DETECT, FIT }
+
+	/**
+	 * A histogram with power-of-two buckets. Bucket i counts values in [2^(i-1), 2^i).
+	 */
+	public static class Histogram {
+		final AtomicLongArray buckets_ = new AtomicLongArray(64);
+		final LongAdder count_ = new LongAdder();
+		final LongAdder sum_ = new LongAdder();
+
+		public void record(long value) {
+			int bucket = value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value);
+			buckets_.incrementAndGet(Math.min(bucket, 63));
+			count_.increment();
+			sum_.add(value);
+		}
+
+		public long getCount() {
+			return count_.sum();
+		}
+
+		public long getSum() {
+			return sum_.sum();
+		}
+
+		public double getMean() {
+			long n = getCount();
+			return n == 0 ? 0 : (double) getSum() / n;
+		}
+
+		/**
+		 * @param q Quantile, 0 to 1
+		 * @return Upper bound of the bucket that contains the quantile
+		 */
+		public long getQuantile(double q) {
+			long n = getCount();
+			long target = (long) Math.ceil(q * n);
+			long cum = 0;
+			for (int i = 0; i < 64; i++) {
+				cum += buckets_.get(i);
+				if (cum >= target && cum > 0) {
+					return i == 0 ? 0 : (i >= 63 ? Long.MAX_VALUE : 1L << i);
+				}
+			}
+			return 0;
+		}
+
+		JSONObject toJSON(double scale) throws JSONException {
+			JSONObject o = new JSONObject();
+			o.put("count", getCount());
+			o.put("total", getSum() * scale);
+			o.put("mean", getMean() * scale);
+			o.put("p50", getQuantile(0.5) * scale);
+			o.put("p99", getQuantile(0.99) * scale);
+			return o;
+		}
+	}
+
+	/**
+	 * Handle of a periodic reporter
+	 */
+	public interface Reporter extends AutoCloseable {
+		@Override
+		void close();
+	}
+
+	final Histogram [] stages_ = new Histogram[Stage.values().length]; // ns per frame
+	final Histogram candidatesPerFrame_ = new Histogram();
+	final LongAdder frames_ = new LongAdder();
+	final LongAdder localizations_ = new LongAdder();
+	final FitStatistics fitStats_;
+	volatile long start_ = System.nanoTime();
+
+	/**
+	 * @param fitStats The candidate counts of the same run, included in the reports
+	 */
+	public AnalysisMetrics(FitStatistics fitStats) {
+		fitStats_ = fitStats;
+		for (int i = 0; i < stages_.length; i++) {
+			stages_[i] = new Histogram();
+		}
+	}
+
+	/**
+	 * Start the clock of the throughput figures
+	 */
+	public void markStart() {
+		start_ = System.nanoTime();
+	}
+
+	public void recordStage(Stage stage, long nanos) {
+		stages_[stage.ordinal()].record(nanos);
+	}
+
+	/**
+	 * Record a finished frame
+	 * @param candidates Number of detected candidates
+	 * @param localizations Number of accepted localizations
+	 */
+	public void recordFrame(long candidates, long localizations) {
+		candidatesPerFrame_.record(candidates);
+		localizations_.add(localizations);
+		frames_.increment();
+	}
+
+	public Histogram getStage(Stage stage) {
+		return stages_[stage.ordinal()];
+	}
+
+	public long getFrames() {
+		return frames_.sum();
+	}
+
+	public long getLocalizations() {
+		return localizations_.sum();
+	}
+
+	public double getElapsedSeconds() {
+		return (System.nanoTime() - start_) / 1e9;
+	}
+
+	/**
+	 * @return A one-line progress summary
+	 */
+	public String getSummary() {
+		double t = getElapsedSeconds();
+		return String.format("%d frames, %d localizations, %.1f frames/s", getFrames(), getLocalizations(), getFrames() / Math.max(t, 1e-3));
+	}
+
+	/**
+	 * @return The end-of-run report: throughput, and the share of worker time in each stage
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(getSummary());
+		double total = 0;
+		for (Histogram h : stages_) {
+			total += h.getSum();
+		}
+		for (Stage s : Stage.values()) {
+			Histogram h = getStage(s);
+			sb.append(String.format("\n  %-10s %8.3f ms/frame (p99 < %.3f ms), %4.1f%%", s.name().toLowerCase(),
+					h.getMean() / 1e6, h.getQuantile(0.99) / 1e6, total > 0 ? 100.0 * h.getSum() / total : 0));
+		}
+		sb.append(String.format("\n  candidates %8.1f /frame (p99 < %d)", candidatesPerFrame_.getMean(), candidatesPerFrame_.getQuantile(0.99)));
+		if (fitStats_ != null) {
+			sb.append("\n  ").append(fitStats_.toString());
+		}
+		return sb.toString();
+	}
+
+	public JSONObject toJSON() throws JSONException {
+		JSONObject o = new JSONObject();
+		o.put("elapsedSeconds", getElapsedSeconds());
+		o.put("frames", getFrames());
+		o.put("localizations", getLocalizations());
+		o.put("framesPerSecond", getFrames() / Math.max(getElapsedSeconds(), 1e-3));
+		JSONObject stages = new JSONObject();
+		for (Stage s : Stage.values()) {
+			stages.put(s.name().toLowerCase(), getStage(s).toJSON(1e-6)); // in ms
+		}
+		o.put("stageMilliseconds", stages);
+		o.put("candidatesPerFrame", candidatesPerFrame_.toJSON(1));
+		if (fitStats_ != null) {
+			JSONObject fit = new JSONObject();
+			fit.put("candidates", fitStats_.candidates_.sum());
+			fit.put("lowSignal", fitStats_.lowSignal_.sum());
+			fit.put("offCenter", fitStats_.offCenter_.sum());
+			fit.put("fitted", fitStats_.fitted_.sum());
+			fit.put("fitFailed", fitStats_.fitFailed_.sum());
+			fit.put("outOfBounds", fitStats_.outOfBounds_.sum());
+			fit.put("negativeIntensity", fitStats_.negativeIntensity_.sum());
+			fit.put("accepted", fitStats_.accepted_.sum());
+			o.put("fitting", fit);
+		}
+		return o;
+	}
+
+	/**
+	 * Write the report as JSON
+	 * @param path The output file
+	 */
+	public void writeJSON(String path) throws IOException {
+		try (Writer w = new FileWriter(path)) {
+			w.write(toJSON().toString(2));
+		} catch (JSONException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Report the summary periodically on a background thread, until the returned handle is closed.
+	 * @param periodMillis Time between reports
+	 * @param out Receives the summaries
+	 * @return Handle to stop the reports
+	 */
+	public Reporter startReporter(long periodMillis, final Consumer<String> out) {
+		final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "octane-metrics");
+			t.setDaemon(true);
+			return t;
+		});
+		timer.scheduleAtFixedRate(() -> out.accept(getSummary()), periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+		return () -> timer.shutdownNow();
+	}
+}
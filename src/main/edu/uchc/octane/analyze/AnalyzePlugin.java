@@ -28,34 +28,6 @@ public class AnalyzePlugin implements PlugIn{
 		}
 	}
 
-//	/**
-//	 * Display particle analysis dialog and start particle analysis
-//	 * @return True if user clicked OK 
-//	 */
-//	boolean startImageAnalysis(String cmd) {
-
-		/*
-//		dict_.put(imp_, null);
-		
-		if (cmd.equals("analyze2D")) {
-
-			dlg_ = new ParticleAnalysisDialog2D(imp_);
-
-		} else if (cmd.equals("analyze3D")){
-		
-//			dlg_ = new ParticleAnalysisDialogAstigmatism(imp_);
-
-		} else if (cmd.equals("calibration")) {
-			
-//			dlg_ = new CalibrationDialogAstigmatism(imp_);
-
-		} else {	
-			
-			return false;
-			
-		}
-*/		
-
 	void linkDialogWithImage() {
 		// the iconification state of analysis dialog follows the main image window  
 		imp_.getWindow().addWindowListener(new WindowAdapter() {
@@ -109,13 +81,23 @@ public class AnalyzePlugin implements PlugIn{
 
 		// FileInfo fi = imp_.getOriginalFileInfo();
 
-//		if (cmd.startsWith("analyze") || cmd.startsWith("calibration")) {			
-//			startImageAnalysis(cmd);
-//		}
-		
 		if (cmd.equals("analyze2D")) {
 			dlg_ = new ParticleAnalysisDialog2D(imp_);
-		} 
+		} else if (cmd.equals("analyze3D")) {
+			AstigmaticCalibration calibration;
+			try {
+				GlobalPrefs.checkCalibration();
+				calibration = new AstigmaticCalibration(GlobalPrefs.calibrationStrX_, GlobalPrefs.calibrationStrY_);
+			} catch (IllegalArgumentException e) {
+				IJ.error(e.getMessage() + ". Calibrate, or set the calibration in the preferences.");
+				return;
+			}
+			dlg_ = new ParticleAnalysisDialog3D(imp_, calibration);
+		} else if (cmd.equals("calibration")) {
+			dlg_ = new CalibrationDialogAstigmatism(imp_);
+		} else {
+			return;
+		}
 		
 		linkDialogWithImage();
 		
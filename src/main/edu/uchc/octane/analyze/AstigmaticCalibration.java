@@ -0,0 +1,208 @@
+package edu.uchc.octane.analyze;
+
+import java.util.Locale;
+
+/**
+ * The astigmatism calibration: the PSF widths in x and y as functions of z,
+ * sigma(z) = a + b * (z - c)^2, with the widths in pixels and z in nm. Each axis is written as
+ * the string "a, c, b", as in {@link GlobalPrefs#calibrationStrX_}.
+ * <p>
+ * The z of a pair of widths is the point of the calibration curve closest to it, in the square
+ * root of the widths (Huang et al., Science 319:810 (2008)). The curve is sampled once, and a
+ * table over a grid of widths holds the nearest sample, so a lookup is a table read and a short
+ * local search.
+ */
+public class AstigmaticCalibration {
+
+	final static int SAMPLES = 2001; // along z
+	final static int GRID = 128; // of the width table, per axis
+	final static double MAX_DISTANCE = 0.1; // in sqrt(pixels), farther widths are out of the calibrated range
+
+	final double [] x_, y_; // a, c, b
+	final double zMin_, zMax_, zStep_;
+	final double [] sqrtX_ = new double[SAMPLES], sqrtY_ = new double[SAMPLES]; // sqrt of the widths at the samples
+	final double gridMax_; // largest sqrt width of the table
+	final int [] nearest_ = new int[GRID * GRID];
+
+	/**
+	 * @param calibrationX "a, c, b" of the x width
+	 * @param calibrationY "a, c, b" of the y width
+	 * @throws IllegalArgumentException If a string can not be parsed, or a curve does not open upwards
+	 */
+	public AstigmaticCalibration(String calibrationX, String calibrationY) {
+		x_ = parse(calibrationX);
+		y_ = parse(calibrationY);
+		if (!(x_[0] > 0 && x_[2] > 0 && y_[0] > 0 && y_[2] > 0)) {
+			throw new IllegalArgumentException("Invalid astigmatism calibration: " + calibrationX + " / " + calibrationY);
+		}
+
+		// the foci, and beyond them until the widths have grown to about three times the focus width
+		double lo = Math.min(x_[1], y_[1]), hi = Math.max(x_[1], y_[1]);
+		double d = Math.max(hi - lo, Math.max(Math.sqrt(2 * x_[0] / x_[2]), Math.sqrt(2 * y_[0] / y_[2])));
+		zMin_ = lo - d;
+		zMax_ = hi + d;
+		zStep_ = (zMax_ - zMin_) / (SAMPLES - 1);
+		double max = 0;
+		for (int k = 0; k < SAMPLES; k++) {
+			double z = zMin_ + k * zStep_;
+			sqrtX_[k] = Math.sqrt(sigma(x_, z));
+			sqrtY_[k] = Math.sqrt(sigma(y_, z));
+			max = Math.max(max, Math.max(sqrtX_[k], sqrtY_[k]));
+		}
+		gridMax_ = max + MAX_DISTANCE;
+
+		for (int j = 0; j < GRID; j++) {
+			for (int i = 0; i < GRID; i++) {
+				nearest_[j * GRID + i] = search((i + 0.5) * gridMax_ / GRID, (j + 0.5) * gridMax_ / GRID, 0, SAMPLES);
+			}
+		}
+	}
+
+	static double [] parse(String s) {
+		String [] v = s.split(",");
+		if (v.length != 3) {
+			throw new IllegalArgumentException("Invalid astigmatism calibration: " + s);
+		}
+		try {
+			return new double[] {Double.parseDouble(v[0].trim()), Double.parseDouble(v[1].trim()), Double.parseDouble(v[2].trim())};
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid astigmatism calibration: " + s);
+		}
+	}
+
+	static double sigma(double [] p, double z) {
+		return p[0] + p[2] * (z - p[1]) * (z - p[1]);
+	}
+
+	/**
+	 * @return Width in x at z, in pixels
+	 */
+	public double sigmaX(double z) {
+		return sigma(x_, z);
+	}
+
+	/**
+	 * @return Width in y at z, in pixels
+	 */
+	public double sigmaY(double z) {
+		return sigma(y_, z);
+	}
+
+	/**
+	 * @return The width of the PSF in focus, to start the fits with
+	 */
+	public double getFocusSigma() {
+		return Math.sqrt(sigmaX((x_[1] + y_[1]) / 2) * sigmaY((x_[1] + y_[1]) / 2));
+	}
+
+	/**
+	 * @param sigmaX Fitted width in x, in pixels
+	 * @param sigmaY Fitted width in y
+	 * @return z in nm, or NaN if the widths are not close to the calibration
+	 */
+	public double getZ(double sigmaX, double sigmaY) {
+		if (!(sigmaX > 0 && sigmaY > 0)) {
+			return Double.NaN;
+		}
+		double sx = Math.sqrt(sigmaX), sy = Math.sqrt(sigmaY);
+		int i = (int) (sx / gridMax_ * GRID), j = (int) (sy / gridMax_ * GRID);
+		if (i >= GRID || j >= GRID) {
+			return Double.NaN;
+		}
+		// the table is exact to within a grid cell; refine around its sample
+		int k = nearest_[j * GRID + i];
+		int reach = 16;
+		k = search(sx, sy, Math.max(0, k - reach), Math.min(SAMPLES, k + reach + 1));
+		if (distance2(sx, sy, k) > MAX_DISTANCE * MAX_DISTANCE) {
+			return Double.NaN;
+		}
+		return zMin_ + k * zStep_;
+	}
+
+	// the nearest sample in [from, to)
+	int search(double sx, double sy, int from, int to) {
+		int best = from;
+		double min = Double.MAX_VALUE;
+		for (int k = from; k < to; k++) {
+			double d = distance2(sx, sy, k);
+			if (d < min) {
+				min = d;
+				best = k;
+			}
+		}
+		return best;
+	}
+
+	double distance2(double sx, double sy, int k) {
+		double dx = sx - sqrtX_[k], dy = sy - sqrtY_[k];
+		return dx * dx + dy * dy;
+	}
+
+	/**
+	 * Fit the calibration curve of one axis to the widths of beads at known z, by least squares
+	 * @param z The z of the measurements, in nm
+	 * @param sigma The widths, in pixels
+	 * @param n Number of measurements
+	 * @return a, c, b
+	 * @throws IllegalArgumentException If the widths do not have a minimum
+	 */
+	public static double [] fitCurve(double [] z, double [] sigma, int n) {
+		// sigma = p0 + p1 z + p2 z^2, centered for the conditioning of the normal equations
+		double zm = 0;
+		for (int i = 0; i < n; i++) {
+			zm += z[i] / n;
+		}
+		double [][] m = new double[3][4];
+		for (int i = 0; i < n; i++) {
+			double t = z[i] - zm;
+			double [] f = {1, t, t * t};
+			for (int r = 0; r < 3; r++) {
+				for (int c = 0; c < 3; c++) {
+					m[r][c] += f[r] * f[c];
+				}
+				m[r][3] += f[r] * sigma[i];
+			}
+		}
+		// Gauss-Jordan with partial pivoting
+		for (int c = 0; c < 3; c++) {
+			int p = c;
+			for (int r = c + 1; r < 3; r++) {
+				if (Math.abs(m[r][c]) > Math.abs(m[p][c])) {
+					p = r;
+				}
+			}
+			double [] tmp = m[c]; m[c] = m[p]; m[p] = tmp;
+			if (m[c][c] == 0) {
+				throw new IllegalArgumentException("Too few calibration points");
+			}
+			for (int r = 0; r < 3; r++) {
+				if (r != c) {
+					double f = m[r][c] / m[c][c];
+					for (int k = c; k < 4; k++) {
+						m[r][k] -= f * m[c][k];
+					}
+				}
+			}
+		}
+		double p0 = m[0][3] / m[0][0], p1 = m[1][3] / m[1][1], p2 = m[2][3] / m[2][2];
+		if (!(p2 > 0)) {
+			throw new IllegalArgumentException("The widths have no minimum");
+		}
+		double c = zm - p1 / (2 * p2);
+		double a = p0 - p1 * p1 / (4 * p2);
+		return new double[] {a, c, p2};
+	}
+
+	/**
+	 * @param p a, c, b of a curve
+	 * @return The curve as a calibration string
+	 */
+	public static String format(double [] p) {
+		return String.format(Locale.ROOT, "%.4g, %.4g, %.4g", p[0], p[1], p[2]);
+	}
+
+	@Override
+	public String toString() {
+		return "x=" + x_[0] + "," + x_[1] + "," + x_[2] + " y=" + y_[0] + "," + y_[1] + "," + y_[2];
+	}
+}
@@ -0,0 +1,173 @@
+package edu.uchc.octane.analyze;
+
+import java.util.Arrays;
+
+import org.apache.commons.math3.util.FastMath;
+
+/**
+ * Maximum likelihood fitting of an elliptical 2D Gaussian (x, y, sigma x, sigma y, intensity,
+ * background) to many candidates at once, for astigmatic 3D imaging. The widths are fitted with
+ * the same Newton iterations as the position, following Smith et al., Nat Methods 7:373 (2010),
+ * and z is looked up from the widths in the {@link AstigmaticCalibration}.
+ * <p>
+ * Results are x, y, sigma, intensity, background, z, sigma x, sigma y, with the mean width as sigma,
+ * so that the first columns match the 2D results. Candidates with widths outside of the calibrated
+ * range are not returned. Not thread safe.
+ */
+public class AstigmaticMLEFitter extends BatchedMLEFitter {
+
+	final static double MIN_SIGMA = 0.3; // pixels
+
+	final AstigmaticCalibration calibration_; // null to only fit the widths
+	final double pixelSize_; // nm, z is returned in pixels like x and y
+
+	double [] sx_ = new double[256];
+	double [] sy_ = new double[256];
+
+	// derivatives by the widths of the per row / column terms
+	double [] dsx_ = new double[0], d2sx_ = dsx_, dsy_ = dsx_, d2sy_ = dsx_;
+
+	/**
+	 * @param calibration The z calibration, or null to fit the widths without z
+	 * @param sigma Initial width of the PSF in pixels
+	 * @param pixelSize In nm
+	 * @param iterations Number of Newton iterations
+	 * @param resultLength Length of the result arrays, to match the output columns
+	 */
+	public AstigmaticMLEFitter(AstigmaticCalibration calibration, double sigma, double pixelSize, int iterations, int resultLength) {
+		super(sigma, iterations, Math.max(8, resultLength));
+		calibration_ = calibration;
+		pixelSize_ = pixelSize;
+	}
+
+	/**
+	 * @param i The candidate
+	 * @return x, y, sigma, intensity, background, z, sigma x, sigma y, in the coordinates of the frame the candidates
+	 * came from. Null if the fit did not converge or the widths are out of the calibrated range.
+	 */
+	@Override
+	public double [] getResult(int i) {
+		if (!valid_[i]) {
+			return null;
+		}
+		double z = 0;
+		if (calibration_ != null) {
+			z = calibration_.getZ(sx_[i], sy_[i]);
+			if (Double.isNaN(z)) {
+				return null;
+			}
+		}
+		double [] r = new double[resultLength_];
+		r[0] = x0_[i] + x_[i];
+		r[1] = y0_[i] + y_[i];
+		r[2] = FastMath.sqrt(sx_[i] * sy_[i]);
+		r[3] = n_[i];
+		r[4] = b_[i];
+		r[5] = z / pixelSize_;
+		r[6] = sx_[i];
+		r[7] = sy_[i];
+		return r;
+	}
+
+	@Override
+	void grow(int capacity) {
+		super.grow(capacity);
+		sx_ = Arrays.copyOf(sx_, capacity);
+		sy_ = Arrays.copyOf(sy_, capacity);
+	}
+
+	@Override
+	void initialize(int i) {
+		super.initialize(i);
+		sx_[i] = sigma_;
+		sy_[i] = sigma_;
+	}
+
+	// one Newton step of all parameters
+	@Override
+	void iterate(int i) {
+		final double [] p = pixels_;
+		final int w = width_[i], h = height_[i], o = offset_[i];
+		final double x = x_[i], y = y_[i], sx = sx_[i], sy = sy_[i], n = n_[i], b = b_[i];
+		if (ex_.length < Math.max(w, h)) {
+			int size = Math.max(w, h);
+			ex_ = new double[size];
+			dex_ = new double[size];
+			d2ex_ = new double[size];
+			ey_ = new double[size];
+			dey_ = new double[size];
+			d2ey_ = new double[size];
+			dsx_ = new double[size];
+			d2sx_ = new double[size];
+			dsy_ = new double[size];
+			d2sy_ = new double[size];
+		}
+		terms(x, sx, w, true);
+		terms(y, sy, h, false);
+
+		double numX = 0, denX = 0, numY = 0, denY = 0, numSx = 0, denSx = 0, numSy = 0, denSy = 0;
+		double numN = 0, denN = 0, numB = 0, denB = 0;
+		for (int r = 0; r < h; r++) {
+			final double ey = ey_[r], dey = dey_[r], d2ey = d2ey_[r], dsy = dsy_[r], d2sy = d2sy_[r];
+			for (int c = 0; c < w; c++) {
+				final double v = p[o + r * w + c];
+				final double psf = ex_[c] * ey;
+				final double mu = Math.max(b + n * psf, 1e-6);
+				final double cf = v / mu - 1;
+				final double df = v / (mu * mu);
+				final double dx = n * dex_[c] * ey;
+				final double dy = n * ex_[c] * dey;
+				final double dwx = n * dsx_[c] * ey;
+				final double dwy = n * ex_[c] * dsy;
+				numX += dx * cf;
+				denX += n * d2ex_[c] * ey * cf - dx * dx * df;
+				numY += dy * cf;
+				denY += n * ex_[c] * d2ey * cf - dy * dy * df;
+				numSx += dwx * cf;
+				denSx += n * d2sx_[c] * ey * cf - dwx * dwx * df;
+				numSy += dwy * cf;
+				denSy += n * ex_[c] * d2sy * cf - dwy * dwy * df;
+				numN += psf * cf;
+				denN -= psf * psf * df;
+				numB += cf;
+				denB -= df;
+			}
+		}
+
+		double nx = x - clamp(numX / denX, 1.0);
+		double ny = y - clamp(numY / denY, 1.0);
+		double nsx = sx - clamp(numSx / denSx, sx / 4);
+		double nsy = sy - clamp(numSy / denSy, sy / 4);
+		double nn = n - clamp(numN / denN, Math.max(n, 1) / 2);
+		double nb = b - clamp(numB / denB, Math.max(b, 1) / 2);
+		if (Double.isNaN(nx) || Double.isNaN(ny) || Double.isNaN(nsx) || Double.isNaN(nsy) || Double.isNaN(nn) || Double.isNaN(nb)) {
+			valid_[i] = false;
+			return;
+		}
+		x_[i] = nx;
+		y_[i] = ny;
+		sx_[i] = Math.max(nsx, MIN_SIGMA);
+		sy_[i] = Math.max(nsy, MIN_SIGMA);
+		n_[i] = Math.max(nn, 1);
+		b_[i] = Math.max(nb, 0);
+	}
+
+	// pixel integrals of the 1D Gaussian centered at mu with width sigma, and their derivatives by mu and sigma
+	void terms(double mu, double sigma, int length, boolean columns) {
+		final double [] e = columns ? ex_ : ey_, de = columns ? dex_ : dey_, d2e = columns ? d2ex_ : d2ey_;
+		final double [] ds = columns ? dsx_ : dsy_, d2s = columns ? d2sx_ : d2sy_;
+		final double s = SQRT2 * sigma, s2 = sigma * sigma;
+		final double norm = SQRT2 * SQRTPI; // sqrt(2 pi)
+		for (int k = 0; k < length; k++) {
+			double pa = k - mu + 0.5, pb = k - mu - 0.5; // pixel edges
+			double a = pa / s, bm = pb / s;
+			double ga = FastMath.exp(-a * a);
+			double gb = FastMath.exp(-bm * bm);
+			e[k] = 0.5 * (erf(a) - erf(bm));
+			de[k] = (gb - ga) / (SQRTPI * s);
+			d2e[k] = (bm * gb - a * ga) / (SQRTPI * s2);
+			ds[k] = (pb * gb - pa * ga) / (norm * s2);
+			d2s[k] = (pb * gb * (pb * pb / s2 - 2) - pa * ga * (pa * pa / s2 - 2)) / (norm * s2 * sigma);
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package edu.uchc.octane.analyze;
+
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs a per-frame task over a range of frames on a dedicated thread pool.
+ * Each worker pulls the next frame index from a shared counter, so slow frames
+ * do not hold up the remaining work.
+ */
+public class BatchEngine {
+
+	/**
+	 * The work done on a single frame. Called concurrently from all workers.
+	 */
+	public interface FrameTask {
+		void process(int frame) throws Exception;
+	}
+
+	final int nThreads_;
+
+	/**
+	 * Constructor
+	 * @param nThreads Number of worker threads. Values < 1 means one thread per core.
+	 */
+	public BatchEngine(int nThreads) {
+		if (nThreads < 1) {
+			nThreads = Runtime.getRuntime().availableProcessors();
+		}
+		nThreads_ = nThreads;
+	}
+
+	/**
+	 * Constructor using the thread count from the global preferences
+	 */
+	public BatchEngine() {
+		this(GlobalPrefs.nThread_);
+	}
+
+	public int getNumThreads() {
+		return nThreads_;
+	}
+
+	/**
+	 * Process frames firstFrame..lastFrame (inclusive). Returns when all frames are done.
+	 * @param firstFrame First frame, 1-based
+	 * @param lastFrame Last frame, 1-based
+	 * @param task The per-frame work
+	 * @throws InterruptedException If the calling thread was interrupted. Workers are stopped.
+	 * @throws ExecutionException If any task failed. Remaining frames are skipped.
+	 */
+	public void run(int firstFrame, int lastFrame, final FrameTask task) throws InterruptedException, ExecutionException {
+		run(firstFrame, lastFrame, () -> task);
+	}
+
+	/**
+	 * Process frames firstFrame..lastFrame (inclusive) with per-worker state. Each worker 
+	 * calls the factory once and uses the returned task for all of its frames.
+	 * @param firstFrame First frame, 1-based
+	 * @param lastFrame Last frame, 1-based
+	 * @param taskFactory Creates the per-worker task. Called on the worker thread.
+	 * @throws InterruptedException If the calling thread was interrupted. Workers are stopped.
+	 * @throws ExecutionException If any task failed. Remaining frames are skipped.
+	 */
+	public void run(final int firstFrame, final int lastFrame, final Supplier<FrameTask> taskFactory) throws InterruptedException, ExecutionException {
+		final AtomicInteger nextFrame = new AtomicInteger(firstFrame);
+		int nWorkers = Math.min(nThreads_, lastFrame - firstFrame + 1);
+		if (nWorkers < 1) {
+			return;
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(nWorkers, new WorkerFactory());
+		CompletionService<Object> workers = new ExecutorCompletionService<Object>(pool);
+		try {
+			for (int i = 0; i < nWorkers; i++) {
+				workers.submit(() -> {
+					FrameTask task = taskFactory.get();
+					int frame;
+					while ((frame = nextFrame.getAndIncrement()) <= lastFrame) {
+						if (Thread.currentThread().isInterrupted()) {
+							return null;
+						}
+						task.process(frame);
+					}
+					return null;
+				});
+			}
+			// take the workers as they finish, so that a failure is seen even if other workers are blocked
+			for (int i = 0; i < nWorkers; i++) {
+				workers.take().get();
+			}
+		} catch (ExecutionException | InterruptedException e) {
+			// make the other workers run out of frames
+			nextFrame.set(lastFrame + 1);
+			throw e;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	static class WorkerFactory implements ThreadFactory {
+		static final AtomicInteger poolCount_ = new AtomicInteger();
+		final int poolId_ = poolCount_.incrementAndGet();
+		final AtomicInteger threadCount_ = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "octane-batch-" + poolId_ + "-" + threadCount_.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,437 @@
+package edu.uchc.octane.analyze;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.json.JSONException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.uchc.octane.core.datasource.OctaneDataFile;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Macro;
+import ij.gui.GenericDialog;
+import ij.gui.Roi;
+import ij.measure.ResultsTable;
+import ij.plugin.PlugIn;
+
+/**
+ * Headless batch 2D analysis. Runs the same engine as the analysis dialog, driven by
+ * ImageJ-style options (key=value, values with spaces in [brackets]), either from the
+ * command line or from a macro:
+ * <pre>
+ * java -cp ... edu.uchc.octane.analyze.BatchRunner input=/data/run1 output=/data/run1.dat fitter=Newton noise=100
+ * run("Batch Analyze2D...", "input=/data/run1 output=/data/run1.dat fitter=Newton noise=100");
+ * </pre>
+ * The input is a Micro-Manager data set directory, or a TIFF stack which is opened as a virtual stack.
+ * An output file ending in {@link LocalizationFile#EXTENSION} is written in the columnar block format.
+ * All channels, slices and positions of a Micro-Manager data set are analyzed, with the results
+ * tagged by channel, slice and position.
+ * <p>
+ * A large data set can be split over several processes or machines sharing a file system by giving
+ * each a frame range (first=, last=) and its own output file. The shards are then joined with {@link ShardMerger}.
+ * <p>
+ * With track=, the localizations are linked into trajectories while they are written, see {@link TrackingSink}.
+ * With drift=, the sample drift is estimated in windows of that many frames while the analysis runs,
+ * and drift corrected x and y columns are added, see {@link DriftCorrectionSink}. The drift trace is
+ * saved next to the output. The drift of a shard would start at zero, so drift= needs the frames from
+ * the first one in one run.
+ * With 3d, astigmatic data are analyzed in 3D, with the calibration of the preferences or the one given by
+ * calibrationx= and calibrationy= ("a, c, b", see {@link AstigmaticCalibration}), and z columns are added.
+ * With render=, a super-resolution image of the given pixel size (nm) is rendered while the analysis
+ * runs, see {@link ProgressiveRenderer}. It is shown and updated when run from ImageJ, and saved next
+ * to the output at the end.
+ * The progress is saved periodically (see {@link Checkpoint}); running the same command again
+ * after an interruption continues where the earlier run stopped.
+ * <p>
+ * With sweep, noise=, fitter= and resolution= take comma separated lists, and the output is a table
+ * comparing all combinations on the frame range, see {@link ParameterSweep}:
+ * <pre>
+ * java -cp ... edu.uchc.octane.analyze.BatchRunner input=/data/run1 output=/data/sweep.csv sweep noise=50,100,200 fitter=Newton,BatchMLE last=500
+ * </pre>
+ */
+public class BatchRunner implements PlugIn {
+
+	final static Logger logger = LoggerFactory.getLogger(BatchRunner.class);
+
+	final static String USAGE = "Options: input=<MM directory or TIFF> output=<file> [fitter=" + String.join("|", ParticleAnalyzer2D.choices) + "]"
+			+ " [noise=100] [resolution=300] [pixelsize=" + GlobalPrefs.defaultPixelSize_ + "] [threads=" + GlobalPrefs.nThread_ + "]"
+			+ " [offset=100] [gain=1.63] [cascade] [minphotons=50] [roi=<x,y,width,height>] [background=<window in frames>]"
+			+ " [first=<frame>] [last=<frame>] [track=<max displacement in nm>] [trackgap=1] [drift=<window in frames>] [driftbin=30] [maxdrift=2000] [render=<pixel size in nm>] [renderblur=0] [metrics=<json file>]"
+			+ " [3d [calibrationx=<a,c,b>] [calibrationy=<a,c,b>]]"
+			+ " [sweep noise=<n1,n2,...> fitter=<f1,f2,...> resolution=<r1,r2,...>]";
+
+	final static String PARTIAL_SUFFIX = ".partial" + LocalizationFile.EXTENSION;
+	final static String RENDER_SUFFIX = ".render.tif";
+	final static String DRIFT_SUFFIX = ".drift.dat";
+	final static long RENDER_INTERVAL = 3000; // ms
+
+	String input_;
+	String output_;
+	String metricsOutput_; // optional
+	int backgroundWindow_; // frames, 0 for the constant camera offset
+	int firstFrame_, lastFrame_; // the shard to analyze, 0 for the start / end of the data set
+	double trackDisplacement_; // nm, 0 to not link the localizations
+	int trackGap_;
+	int driftWindow_; // frames, 0 to not correct the drift
+	double driftBin_, maxDrift_; // nm
+	double renderPixelSize_; // nm, 0 to not render
+	double renderBlur_; // nm
+	boolean sweep_; // compare the settings of the lists instead of analyzing
+	int [] sweepNoise_;
+	String [] sweepFitters_;
+	double [] sweepResolutions_;
+	ParticleAnalyzer2D analyzer_ = new ParticleAnalyzer2D();
+
+	/**
+	 * Parse the options.
+	 * @param options The option string, in ImageJ macro format
+	 * @throws IllegalArgumentException If a required option is missing or a value is invalid
+	 */
+	public BatchRunner(String options) {
+		options = options.trim() + " ";
+		input_ = Macro.getValue(options, "input", null);
+		output_ = Macro.getValue(options, "output", null);
+		metricsOutput_ = Macro.getValue(options, "metrics", null);
+		if (input_ == null || output_ == null) {
+			throw new IllegalArgumentException("input and output are required");
+		}
+		analyzer_.setPixelSize(getNumber(options, "pixelsize", GlobalPrefs.defaultPixelSize_));
+		sweep_ = hasFlag(options, "sweep");
+		sweepResolutions_ = getNumbers(options, "resolution", 300);
+		sweepFitters_ = Macro.getValue(options, "fitter", ParticleAnalyzer2D.choices[0]).split(",");
+		double [] noise = getNumbers(options, "noise", 100);
+		sweepNoise_ = new int[noise.length];
+		for (int k = 0; k < noise.length; k++) {
+			sweepNoise_[k] = (int) noise[k];
+		}
+		if (! sweep_ && (sweepResolutions_.length > 1 || sweepFitters_.length > 1 || noise.length > 1)) {
+			throw new IllegalArgumentException("Lists of values require the sweep option");
+		}
+		analyzer_.setResolution(sweepResolutions_[0]);
+		for (int k = sweepFitters_.length - 1; k >= 0; k--) {
+			sweepFitters_[k] = sweepFitters_[k].trim();
+			analyzer_.setFitter(sweepFitters_[k]); // checks the names
+		}
+		analyzer_.setNoiseThreshold(sweepNoise_[0]);
+		analyzer_.setNumThreads((int) getNumber(options, "threads", GlobalPrefs.nThread_));
+		analyzer_.setCameraParameters(getNumber(options, "offset", 100.0), getNumber(options, "gain", 1.63));
+		analyzer_.setCascade(hasFlag(options, "cascade"), getNumber(options, "minphotons", 50));
+		analyzer_.setRoi(getRectangle(options, "roi"));
+		if (hasFlag(options, "3d")) {
+			if (sweepFitters_.length > 1) {
+				throw new IllegalArgumentException("3d fits elliptical PSFs, fitter= does not apply");
+			}
+			if (Macro.getValue(options, "calibrationx", null) == null || Macro.getValue(options, "calibrationy", null) == null) {
+				GlobalPrefs.checkCalibration();
+			}
+			analyzer_.setAstigmatism(new AstigmaticCalibration(Macro.getValue(options, "calibrationx", GlobalPrefs.calibrationStrX_), 
+					Macro.getValue(options, "calibrationy", GlobalPrefs.calibrationStrY_)));
+		}
+		backgroundWindow_ = (int) getNumber(options, "background", 0);
+		firstFrame_ = (int) getNumber(options, "first", 0);
+		lastFrame_ = (int) getNumber(options, "last", 0);
+		trackDisplacement_ = getNumber(options, "track", 0);
+		trackGap_ = (int) getNumber(options, "trackgap", 1);
+		driftWindow_ = (int) getNumber(options, "drift", 0);
+		driftBin_ = getNumber(options, "driftbin", 30);
+		maxDrift_ = getNumber(options, "maxdrift", 2000);
+		if (driftWindow_ < 0 || !(driftBin_ > 0) || !(maxDrift_ > 0)) {
+			throw new IllegalArgumentException("Invalid drift correction parameters");
+		}
+		if (driftWindow_ > 0 && firstFrame_ > 1) {
+			throw new IllegalArgumentException("drift= needs the frames from the first one, it can not be used for a shard");
+		}
+		renderPixelSize_ = getNumber(options, "render", 0);
+		renderBlur_ = getNumber(options, "renderblur", 0);
+		if (renderPixelSize_ < 0 || renderBlur_ < 0) {
+			throw new IllegalArgumentException("Invalid rendering parameters");
+		}
+		if (trackDisplacement_ < 0 || trackGap_ < 0) {
+			throw new IllegalArgumentException("Invalid linking parameters");
+		}
+		if (firstFrame_ < 0 || lastFrame_ < 0 || (lastFrame_ > 0 && lastFrame_ < firstFrame_)) {
+			throw new IllegalArgumentException("Invalid frame range: " + firstFrame_ + "-" + lastFrame_);
+		}
+	}
+
+	/**
+	 * Constructor for the PlugIn interface
+	 */
+	public BatchRunner() {}
+
+	static double getNumber(String options, String key, double defaultValue) {
+		String v = Macro.getValue(options, key, null);
+		if (v == null) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(v);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value for " + key + ": " + v);
+		}
+	}
+
+	// a comma separated list of numbers
+	static double [] getNumbers(String options, String key, double defaultValue) {
+		String v = Macro.getValue(options, key, null);
+		if (v == null) {
+			return new double[] {defaultValue};
+		}
+		String [] s = v.split(",");
+		double [] values = new double[s.length];
+		try {
+			for (int i = 0; i < s.length; i++) {
+				values[i] = Double.parseDouble(s[i].trim());
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value for " + key + ": " + v);
+		}
+		return values;
+	}
+
+	static Roi getRectangle(String options, String key) {
+		String v = Macro.getValue(options, key, null);
+		if (v == null) {
+			return null;
+		}
+		String [] s = v.split(",");
+		try {
+			if (s.length == 4) {
+				return new Roi(Integer.parseInt(s[0].trim()), Integer.parseInt(s[1].trim()), Integer.parseInt(s[2].trim()), Integer.parseInt(s[3].trim()));
+			}
+		} catch (NumberFormatException e) {
+			// fall through
+		}
+		throw new IllegalArgumentException("Invalid value for " + key + ": " + v);
+	}
+
+	// a key without value, as written by the macro recorder for checked boxes
+	static boolean hasFlag(String options, String key) {
+		return (" " + options).contains(" " + key + " ");
+	}
+
+	/**
+	 * Open the input as a stack
+	 */
+	ImageStack openInput() throws IOException {
+		File f = new File(input_);
+		if (f.isDirectory()) {
+			try {
+				return new MMVirtualStack(input_);
+			} catch (JSONException e) {
+				throw new IOException("Can not read Micro-Manager metadata: " + e.getMessage());
+			}
+		}
+		ImagePlus imp = IJ.openVirtual(input_);
+		if (imp == null) {
+			throw new IOException("Can not open " + input_);
+		}
+		return imp.getStack();
+	}
+
+	/**
+	 * Run the analysis and write the results.
+	 */
+	public void execute() throws IOException, InterruptedException, ExecutionException {
+		ImageStack stack = openInput();
+		// each channel, slice and position of a MM data set is a separate work unit
+		List<MMVirtualStack> units = (stack instanceof MMVirtualStack) ? ((MMVirtualStack) stack).getUnits() : null;
+		boolean multiUnit = units != null && units.size() > 1;
+		RollingBackground [] backgrounds = null;
+		if (backgroundWindow_ > 0 && multiUnit) {
+			backgrounds = new RollingBackground[units.size()];
+			for (int u = 0; u < backgrounds.length; u++) {
+				backgrounds[u] = new RollingBackground(units.get(u), backgroundWindow_);
+			}
+		} else if (backgroundWindow_ > 0) {
+			analyzer_.setBackground(new RollingBackground(stack, backgroundWindow_));
+		}
+		int firstFrame = Math.max(1, firstFrame_);
+		int lastFrame = lastFrame_ > 0 ? Math.min(lastFrame_, stack.getSize()) : stack.getSize();
+		if (sweep_) {
+			if (multiUnit) {
+				logger.info("Sweeping the first channel / slice / position only");
+			}
+			try {
+				sweep(multiUnit ? units.get(0) : stack, firstFrame, lastFrame);
+			} finally {
+				if (stack instanceof MMVirtualStack) {
+					((MMVirtualStack) stack).close();
+				}
+			}
+			return;
+		}
+		logger.info("Analyzing frames " + firstFrame + "-" + lastFrame + " of " + input_ + (multiUnit ? " in " + units.size() + " channels / slices / positions" : ""));
+		long start = System.currentTimeMillis();
+
+		// the results are always written to a columnar file while the analysis runs, so that an
+		// interrupted run can be resumed. Other formats are converted at the end.
+		boolean columnar = output_.endsWith(LocalizationFile.EXTENSION);
+		String path = columnar ? output_ : output_ + PARTIAL_SUFFIX;
+		String fingerprint = "input=" + new File(input_).getAbsolutePath() + " frames=" + stack.getSize() 
+				+ " range=" + firstFrame + "-" + lastFrame + " " + analyzer_.getParameterString();
+		if (multiUnit) {
+			fingerprint += " units=" + units.size() + (backgrounds != null ? " background " + backgrounds[0] : "");
+		}
+		if (trackDisplacement_ > 0) {
+			fingerprint += " track=" + trackDisplacement_ + " trackgap=" + trackGap_;
+		}
+		if (driftWindow_ > 0) {
+			fingerprint += " drift=" + driftWindow_ + " driftbin=" + driftBin_ + " maxdrift=" + maxDrift_;
+		}
+		Checkpoint checkpoint = new Checkpoint(path, fingerprint);
+		LocalizationFileWriter writer = checkpoint.open();
+		if (! columnar) {
+			writer.setQuantum(1e-4);
+		}
+		int first = Math.max(firstFrame, checkpoint.getFirstFrame());
+		if (first > firstFrame) {
+			logger.info("Resuming at frame " + first);
+		}
+		LocalizationSink sink = writer;
+		DriftCorrectionSink drift = null;
+		if (driftWindow_ > 0) {
+			drift = new DriftCorrectionSink(writer, stack.getWidth() * analyzer_.pixelSize_, stack.getHeight() * analyzer_.pixelSize_,
+					driftWindow_, driftBin_, maxDrift_);
+			if (first > firstFrame) {
+				// continue the drift of the frames already written
+				drift.resumeFrom(path);
+			}
+			sink = drift;
+		}
+		if (trackDisplacement_ > 0) {
+			// trajectories are linked while the frames are written. Those open at a restart are split.
+			TrackingSink tracker = new TrackingSink(sink, trackDisplacement_, trackGap_);
+			tracker.setFirstTrackId(checkpoint.getKeptLocalizations() + 1);
+			sink = tracker;
+		}
+		ProgressiveRenderer renderer = null;
+		if (renderPixelSize_ > 0) {
+			// only the frames analyzed by this run are rendered
+			renderer = new ProgressiveRenderer(sink, stack.getWidth() * analyzer_.pixelSize_, stack.getHeight() * analyzer_.pixelSize_, 
+					renderPixelSize_, renderBlur_, RENDER_INTERVAL);
+			sink = renderer;
+		}
+		try {
+			if (multiUnit) {
+				analyzer_.processUnits(units, backgrounds, first, lastFrame, sink);
+			} else {
+				analyzer_.processFrames(stack, first, lastFrame, sink);
+			}
+		} finally {
+			if (stack instanceof MMVirtualStack) {
+				((MMVirtualStack) stack).close();
+			}
+		}
+		long cnt;
+		try (LocalizationFileReader reader = new LocalizationFileReader(path)) {
+			cnt = reader.size();
+			if (! columnar) {
+				OctaneDataFile dataset = reader.toOctaneDataFile();
+				dataset.writeToFile(output_);
+			}
+		}
+		if (! columnar) {
+			new File(path).delete();
+		}
+		checkpoint.complete();
+		if (drift != null) {
+			drift.getDriftTrace().writeToFile(output_ + DRIFT_SUFFIX);
+		}
+		if (renderer != null) {
+			IJ.saveAsTiff(renderer.getImage(), output_ + RENDER_SUFFIX);
+		}
+
+		logger.info("Found " + cnt + " particles in " + (System.currentTimeMillis() - start) / 1000.0 + " s. Saved to " + output_);
+		if (metricsOutput_ != null) {
+			analyzer_.getMetrics().writeJSON(metricsOutput_);
+		}
+	}
+
+	/**
+	 * Compare the settings of the sweep lists and save the table to the output
+	 */
+	void sweep(ImageStack stack, int firstFrame, int lastFrame) throws IOException, InterruptedException, ExecutionException {
+		ParameterSweep sweep = new ParameterSweep(analyzer_, sweepNoise_, sweepFitters_, sweepResolutions_);
+		ResultsTable table = sweep.run(stack, firstFrame, lastFrame);
+		table.saveAs(output_);
+		logger.info("Saved the comparison of " + table.getCounter() + " settings to " + output_);
+		if (IJ.getInstance() != null) {
+			table.show("Parameter Sweep");
+		}
+	}
+
+	@Override
+	public void run(String arg) {
+		String options = Macro.getOptions();
+		if (options == null) {
+			options = showDialog();
+			if (options == null) {
+				return;
+			}
+		}
+		try {
+			new BatchRunner(options).execute();
+		} catch (IllegalArgumentException e) {
+			IJ.error("Batch Analysis", e.getMessage() + "\n" + USAGE);
+		} catch (IOException e) {
+			IJ.error("Batch Analysis", e.getMessage());
+		} catch (ExecutionException e) {
+			logger.error("Batch analysis failed", e.getCause());
+			IJ.error("Batch Analysis", "Analysis failed: " + e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// ask for the options when not run from a macro
+	String showDialog() {
+		GenericDialog dlg = new GenericDialog("Batch Analysis");
+		dlg.addStringField("Input", "", 40);
+		dlg.addStringField("Output", "", 40);
+		dlg.addChoice("Fitter", ParticleAnalyzer2D.choices, ParticleAnalyzer2D.choices[0]);
+		dlg.addNumericField("Noise", 100, 0);
+		dlg.addNumericField("Resolution", 300, 1);
+		dlg.addNumericField("Pixelsize", GlobalPrefs.defaultPixelSize_, 2);
+		dlg.showDialog();
+		if (dlg.wasCanceled()) {
+			return null;
+		}
+		return "input=[" + dlg.getNextString() + "] output=[" + dlg.getNextString() + "] fitter=" + dlg.getNextChoice()
+				+ " noise=" + dlg.getNextNumber() + " resolution=" + dlg.getNextNumber() + " pixelsize=" + dlg.getNextNumber();
+	}
+
+	public static void main(String ... args) {
+		System.setProperty("java.awt.headless", "true");
+		// the shell has already split the arguments; bracket values with spaces
+		StringBuilder options = new StringBuilder();
+		for (String a : args) {
+			int eq = a.indexOf('=');
+			if (eq > 0 && a.indexOf(' ') > 0 && a.charAt(eq + 1) != '[') {
+				a = a.substring(0, eq + 1) + "[" + a.substring(eq + 1) + "]";
+			}
+			options.append(a).append(' ');
+		}
+		BatchRunner runner;
+		try {
+			runner = new BatchRunner(options.toString());
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+			return;
+		}
+		try {
+			runner.execute();
+		} catch (Exception e) {
+			logger.error("Batch analysis failed", e);
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
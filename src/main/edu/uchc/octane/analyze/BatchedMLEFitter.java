@@ -0,0 +1,257 @@
+package edu.uchc.octane.analyze;
+
+import java.util.Arrays;
+
+import org.apache.commons.math3.util.FastMath;
+
+import edu.uchc.octane.core.pixelimage.RectangularImage;
+
+/**
+ * Maximum likelihood fitting of a symmetric 2D Gaussian (x, y, intensity, background, fixed sigma)
+ * to many candidates at once, with the Newton iterations of Smith et al., Nat Methods 7:373 (2010).
+ * <p>
+ * The candidates of a frame are first packed into flat arrays, and the parameters are kept as
+ * structure-of-arrays. The fit then runs in plain loops over the packed data, without virtual
+ * calls or allocations per candidate. The pixel integrals of the Gaussian are separable, so the
+ * error functions are evaluated per row and per column, not per pixel. Not thread safe.
+ */
+public class BatchedMLEFitter {
+
+	final static double SQRT2 = FastMath.sqrt(2);
+	final static double SQRTPI = FastMath.sqrt(Math.PI);
+
+	final double sigma_;
+	final int iterations_;
+	final int resultLength_;
+
+	// packed candidates
+	double [] pixels_ = new double[1 << 14];
+	int [] offset_ = new int[256];
+	int [] width_ = new int[256];
+	int [] height_ = new int[256];
+	int [] x0_ = new int[256];
+	int [] y0_ = new int[256];
+	int count_;
+	int used_; // of pixels_
+
+	// parameters, in pixels relative to the candidate origin
+	double [] x_ = new double[256];
+	double [] y_ = new double[256];
+	double [] n_ = new double[256];
+	double [] b_ = new double[256];
+	boolean [] valid_ = new boolean[256];
+
+	// per row / column terms of the current candidate
+	double [] ex_ = new double[0], dex_ = ex_, d2ex_ = ex_;
+	double [] ey_ = ex_, dey_ = ex_, d2ey_ = ex_;
+
+	/**
+	 * @param sigma Width of the PSF in pixels
+	 * @param iterations Number of Newton iterations
+	 * @param resultLength Length of the result arrays, to match the output columns
+	 */
+	public BatchedMLEFitter(double sigma, int iterations, int resultLength) {
+		sigma_ = sigma;
+		iterations_ = iterations;
+		resultLength_ = Math.max(5, resultLength);
+	}
+
+	/**
+	 * Copy a candidate into the batch
+	 * @param subimg The candidate. Not kept after the call.
+	 */
+	public void add(RectangularImage subimg) {
+		int n = subimg.getLength();
+		if (count_ == offset_.length) {
+			grow(count_ * 2);
+		}
+		if (used_ + n > pixels_.length) {
+			pixels_ = Arrays.copyOf(pixels_, Math.max(used_ + n, pixels_.length * 2));
+		}
+		for (int i = 0; i < n; i++) {
+			pixels_[used_ + i] = subimg.getValue(i);
+		}
+		offset_[count_] = used_;
+		width_[count_] = subimg.width;
+		height_[count_] = subimg.height;
+		x0_[count_] = subimg.x0;
+		y0_[count_] = subimg.y0;
+		used_ += n;
+		count_ ++;
+	}
+
+	public int size() {
+		return count_;
+	}
+
+	public void clear() {
+		count_ = 0;
+		used_ = 0;
+	}
+
+	public int getX0(int i) {
+		return x0_[i];
+	}
+
+	public int getY0(int i) {
+		return y0_[i];
+	}
+
+	public int getWidth(int i) {
+		return width_[i];
+	}
+
+	public int getHeight(int i) {
+		return height_[i];
+	}
+
+	/**
+	 * @param i The candidate
+	 * @return x, y, sigma, intensity, background, in the coordinates of the frame the candidates came from.
+	 * Null if the fit did not converge.
+	 */
+	public double [] getResult(int i) {
+		if (!valid_[i]) {
+			return null;
+		}
+		double [] r = new double[resultLength_];
+		r[0] = x0_[i] + x_[i];
+		r[1] = y0_[i] + y_[i];
+		r[2] = sigma_;
+		r[3] = n_[i];
+		r[4] = b_[i];
+		return r;
+	}
+
+	/**
+	 * Fit all candidates in the batch
+	 */
+	public void fit() {
+		for (int i = 0; i < count_; i++) {
+			initialize(i);
+			for (int it = 0; it < iterations_ && valid_[i]; it++) {
+				iterate(i);
+			}
+		}
+	}
+
+	void grow(int capacity) {
+		offset_ = Arrays.copyOf(offset_, capacity);
+		width_ = Arrays.copyOf(width_, capacity);
+		height_ = Arrays.copyOf(height_, capacity);
+		x0_ = Arrays.copyOf(x0_, capacity);
+		y0_ = Arrays.copyOf(y0_, capacity);
+		x_ = Arrays.copyOf(x_, capacity);
+		y_ = Arrays.copyOf(y_, capacity);
+		n_ = Arrays.copyOf(n_, capacity);
+		b_ = Arrays.copyOf(b_, capacity);
+		valid_ = Arrays.copyOf(valid_, capacity);
+	}
+
+	// centroid, minimum as background, and the remaining sum as intensity
+	void initialize(int i) {
+		final double [] p = pixels_;
+		final int w = width_[i], h = height_[i], o = offset_[i];
+		double min = Double.MAX_VALUE;
+		for (int k = o; k < o + w * h; k++) {
+			min = Math.min(min, p[k]);
+		}
+		double sum = 0, sx = 0, sy = 0;
+		for (int r = 0; r < h; r++) {
+			for (int c = 0; c < w; c++) {
+				double v = p[o + r * w + c] - min;
+				sum += v;
+				sx += v * c;
+				sy += v * r;
+			}
+		}
+		b_[i] = Math.max(min, 0);
+		n_[i] = Math.max(sum, 1);
+		x_[i] = sum > 0 ? sx / sum : (w - 1) / 2.0;
+		y_[i] = sum > 0 ? sy / sum : (h - 1) / 2.0;
+		valid_[i] = true;
+	}
+
+	// one Newton step of all parameters
+	void iterate(int i) {
+		final double [] p = pixels_;
+		final int w = width_[i], h = height_[i], o = offset_[i];
+		final double x = x_[i], y = y_[i], n = n_[i], b = b_[i];
+		if (ex_.length < Math.max(w, h)) {
+			int size = Math.max(w, h);
+			ex_ = new double[size];
+			dex_ = new double[size];
+			d2ex_ = new double[size];
+			ey_ = new double[size];
+			dey_ = new double[size];
+			d2ey_ = new double[size];
+		}
+		terms(x, w, true);
+		terms(y, h, false);
+
+		double numX = 0, denX = 0, numY = 0, denY = 0, numN = 0, denN = 0, numB = 0, denB = 0;
+		for (int r = 0; r < h; r++) {
+			final double ey = ey_[r], dey = dey_[r], d2ey = d2ey_[r];
+			for (int c = 0; c < w; c++) {
+				final double v = p[o + r * w + c];
+				final double psf = ex_[c] * ey;
+				final double mu = Math.max(b + n * psf, 1e-6);
+				final double cf = v / mu - 1;
+				final double df = v / (mu * mu);
+				final double dx = n * dex_[c] * ey;
+				final double dy = n * ex_[c] * dey;
+				numX += dx * cf;
+				denX += n * d2ex_[c] * ey * cf - dx * dx * df;
+				numY += dy * cf;
+				denY += n * ex_[c] * d2ey * cf - dy * dy * df;
+				numN += psf * cf;
+				denN -= psf * psf * df;
+				numB += cf;
+				denB -= df;
+			}
+		}
+
+		// limit the steps, the Newton step is unreliable far from the optimum
+		double nx = x - clamp(numX / denX, 1.0);
+		double ny = y - clamp(numY / denY, 1.0);
+		double nn = n - clamp(numN / denN, Math.max(n, 1) / 2);
+		double nb = b - clamp(numB / denB, Math.max(b, 1) / 2);
+		if (Double.isNaN(nx) || Double.isNaN(ny) || Double.isNaN(nn) || Double.isNaN(nb)) {
+			valid_[i] = false;
+			return;
+		}
+		x_[i] = nx;
+		y_[i] = ny;
+		n_[i] = Math.max(nn, 1);
+		b_[i] = Math.max(nb, 0);
+	}
+
+	static double clamp(double step, double max) {
+		if (Double.isNaN(step) || Double.isInfinite(step)) {
+			return 0;
+		}
+		return Math.max(-max, Math.min(max, step));
+	}
+
+	// pixel integrals of the 1D Gaussian centered at mu, and their first and second derivatives by mu
+	void terms(double mu, int length, boolean columns) {
+		final double [] e = columns ? ex_ : ey_, de = columns ? dex_ : dey_, d2e = columns ? d2ex_ : d2ey_;
+		final double s = SQRT2 * sigma_;
+		for (int k = 0; k < length; k++) {
+			double a = (k - mu + 0.5) / s;
+			double bm = (k - mu - 0.5) / s;
+			double ga = FastMath.exp(-a * a);
+			double gb = FastMath.exp(-bm * bm);
+			e[k] = 0.5 * (erf(a) - erf(bm));
+			de[k] = (gb - ga) / (SQRTPI * s);
+			d2e[k] = (bm * gb - a * ga) / (SQRTPI * sigma_ * sigma_);
+		}
+	}
+
+	// Abramowitz and Stegun 7.1.26, absolute error below 1.5e-7
+	static double erf(double x) {
+		double t = 1.0 / (1.0 + 0.3275911 * Math.abs(x));
+		double y = 1 - t * (0.254829592 + t * (-0.284496736 + t * (1.421413741 + t * (-1.453152027 + t * 1.061405429)))) * FastMath.exp(-x * x);
+		return x >= 0 ? y : -y;
+	}
+}
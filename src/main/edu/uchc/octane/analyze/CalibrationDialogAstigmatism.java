@@ -0,0 +1,216 @@
+package edu.uchc.octane.analyze;
+
+import java.awt.event.ActionEvent;
+import java.util.Arrays;
+import java.util.List;
+import java.util.prefs.Preferences;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.PointRoi;
+import ij.gui.Roi;
+import ij.measure.ResultsTable;
+
+/**
+ * Calibration of astigmatic 3D imaging from a z stack of beads. The widths of the beads are fitted
+ * in each slice, and the curves of the median widths against z are fitted by
+ * {@link AstigmaticCalibration#fitCurve}. The z origin is moved to the middle between the two foci.
+ * The result is logged and can be saved as the calibration of the preferences.
+ */
+public class CalibrationDialogAstigmatism extends ParticleAnalysisDialogBase {
+
+	final PreviewScheduler preview_ = new PreviewScheduler();
+	Roi roi_; // the beads to use, or null for all
+
+	// prefs
+	static Preferences prefs_ = null;
+	double resolution_;
+	double zStep_; // nm between slices
+	int watershedNoise_;
+	final private static String IMAGE_RESOLUTION = "imageResolution";
+	final private static String Z_STEP_KEY = "zStep";
+	final private static String WATERSHED_NOISE_KEY = "noise";
+
+	/**
+	 * Constructor
+	 * @param imp The z stack of beads
+	 */
+	public CalibrationDialogAstigmatism(ImagePlus imp) {
+		super(imp, "Astigmatism calibration:" + imp.getTitle());
+		roi_ = imp.getRoi();
+		setupDialog();
+	}
+
+	@Override
+	public void actionPerformed(ActionEvent ev) {
+		super.actionPerformed(ev);
+		if (wasOKed()) {
+			savePrefs();
+			calibrate();
+		}
+		imp_.setRoi(roi_);
+	}
+
+	/**
+	 * Fit the widths of all slices and the calibration curves
+	 */
+	void calibrate() {
+		imp_.killRoi();
+		ParticleAnalyzer2D analyzer = createAnalyzer();
+		FrameAnalyzer2D frameAnalyzer = analyzer.newFrameAnalyzer();
+		ImageStack stack = imp_.getStack();
+		int n = stack.getSize();
+		double [] z = new double[n], sx = new double[n], sy = new double[n];
+		int [] beads = new int[n];
+		int cnt = 0;
+		for (int frame = 1; frame <= n; frame++) {
+			IJ.showProgress(frame, n);
+			List<double[]> particles = frameAnalyzer.analyze(stack, frame);
+			if (particles.isEmpty()) {
+				continue;
+			}
+			double [] wx = new double[particles.size()], wy = new double[particles.size()];
+			for (int i = 0; i < wx.length; i++) {
+				wx[i] = particles.get(i)[6];
+				wy[i] = particles.get(i)[7];
+			}
+			z[cnt] = (frame - 1) * zStep_;
+			sx[cnt] = median(wx);
+			sy[cnt] = median(wy);
+			beads[cnt] = wx.length;
+			cnt ++;
+		}
+		IJ.showProgress(1.0);
+
+		ResultsTable table = new ResultsTable();
+		for (int i = 0; i < cnt; i++) {
+			table.incrementCounter();
+			table.addValue("z", z[i]);
+			table.addValue("sigmax", sx[i]);
+			table.addValue("sigmay", sy[i]);
+			table.addValue("beads", beads[i]);
+		}
+		table.show("Astigmatism Calibration");
+
+		double [] px, py;
+		try {
+			px = AstigmaticCalibration.fitCurve(z, sx, cnt);
+			py = AstigmaticCalibration.fitCurve(z, sy, cnt);
+		} catch (IllegalArgumentException e) {
+			IJ.error("Astigmatism calibration failed: " + e.getMessage());
+			return;
+		}
+		double center = (px[1] + py[1]) / 2;
+		px[1] -= center;
+		py[1] -= center;
+		String calibrationX = AstigmaticCalibration.format(px);
+		String calibrationY = AstigmaticCalibration.format(py);
+		IJ.log("Astigmatism calibration (a, c, b): x = " + calibrationX + ", y = " + calibrationY
+				+ ", z = 0 at slice " + IJ.d2s(center / zStep_ + 1, 1));
+
+		if (IJ.showMessageWithCancel("Astigmatism Calibration",
+				"Width X: " + calibrationX + "\nWidth Y: " + calibrationY + "\n \nUse as the calibration?")) {
+			GlobalPrefs.calibrationStrX_ = calibrationX;
+			GlobalPrefs.calibrationStrY_ = calibrationY;
+			GlobalPrefs.oldCalibration_ = false;
+			GlobalPrefs.savePrefs();
+		}
+	}
+
+	static double median(double [] v) {
+		Arrays.sort(v);
+		int m = v.length / 2;
+		return v.length % 2 == 1 ? v[m] : (v[m - 1] + v[m]) / 2;
+	}
+
+	/**
+	 * @return An analyzer that fits the widths, without z
+	 */
+	ParticleAnalyzer2D createAnalyzer() {
+		ParticleAnalyzer2D analyzer = new ParticleAnalyzer2D() {
+			@Override
+			BatchedMLEFitter createBatchFitter() {
+				return new AstigmaticMLEFitter(null, sigma_, pixelSize_, ASTIGMATIC_ITERATIONS, 8);
+			}
+		};
+		analyzer.setPixelSize(pixelSize_);
+		analyzer.setResolution(resolution_);
+		analyzer.setNoiseThreshold(watershedNoise_);
+		analyzer.setRoi(roi_);
+		return analyzer;
+	}
+
+	//Mark the beads of the current slice
+	void showRoi(List<double[]> particles) {
+		imp_.killRoi();
+		if (particles.size() > 0) {
+			int [] xi = new int[particles.size()];
+			int [] yi = new int[particles.size()];
+			for (int i = 0; i < particles.size(); i ++ ) {
+				xi[i] = (int) (particles.get(i)[0] + 0.5);
+				yi[i] = (int) (particles.get(i)[1] + 0.5);
+			}
+			PointRoi roi = new PointRoi(xi, yi, particles.size());
+			roi.setOptions("dot");
+			imp_.setRoi(roi);
+		}
+	}
+
+	public void loadPrefs() {
+		if (prefs_ == null) {
+			prefs_ = GlobalPrefs.getRoot().node(this.getClass().getName());
+		}
+		resolution_ = prefs_.getDouble(IMAGE_RESOLUTION, 300);
+		zStep_ = prefs_.getDouble(Z_STEP_KEY, 20);
+		watershedNoise_ = prefs_.getInt(WATERSHED_NOISE_KEY, 100);
+	}
+
+	/**
+	 * Save parameters to persistent store
+	 */
+	public void savePrefs() {
+		if (prefs_ == null) {
+			return;
+		}
+		prefs_.putDouble(IMAGE_RESOLUTION, resolution_);
+		prefs_.putDouble(Z_STEP_KEY, zStep_);
+		prefs_.putInt(WATERSHED_NOISE_KEY, watershedNoise_);
+	}
+
+	void setupDialog() {
+		loadPrefs();
+		addNumericField("Pixel Size (nm)", pixelSize_, 0);
+		addNumericField("Image Resolution (FWHM) (nm)", resolution_, 1);
+		addNumericField("Z Step (nm)", zStep_, 1);
+		addSlider("Noise Threshold", 1, 5000.0, watershedNoise_);
+	}
+
+	@Override
+	boolean readParameters() {
+		pixelSize_ = getNextNumber();
+		resolution_ = getNextNumber();
+		zStep_ = getNextNumber();
+		watershedNoise_ = (int) getNextNumber();
+		return pixelSize_ > 0 && resolution_ > 0 && zStep_ > 0;
+	}
+
+	@Override
+	void updateResults() {
+		if (imp_ == null) { return;	}
+		imp_.killRoi();
+
+		final ParticleAnalyzer2D analyzer = createAnalyzer();
+		final ImageStack stack = imp_.getStack();
+		final int frame = imp_.getCurrentSlice();
+		preview_.submit(frame + " " + analyzer.getParameterString(),
+				cancelled -> analyzer.newFrameAnalyzer().analyze(stack, frame, cancelled),
+				particles -> showRoi(particles));
+	}
+
+	@Override
+	public void dispose() {
+		super.dispose();
+		preview_.close();
+	}
+}
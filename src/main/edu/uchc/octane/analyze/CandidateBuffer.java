@@ -0,0 +1,73 @@
+package edu.uchc.octane.analyze;
+
+import java.util.Arrays;
+
+import edu.uchc.octane.core.pixelimage.RectangularImage;
+
+/**
+ * The candidates of a frame, copied out of the detection buffer so that they can be fitted later,
+ * in parts and on any thread. Owned by one {@link FrameAnalyzer2D}, which refills it for every frame.
+ * Read-only while the candidates are fitted.
+ */
+public class CandidateBuffer {
+
+	double [] pixels_ = new double[1 << 14];
+	int [] offset_ = new int[256];
+	int [] width_ = new int[256];
+	int [] height_ = new int[256];
+	int [] x0_ = new int[256]; // in the region
+	int [] y0_ = new int[256];
+	int [] originX_ = new int[256]; // of the region in the frame
+	int [] originY_ = new int[256];
+	int count_;
+	int used_; // of pixels_
+	int detected_; // candidates found, including those rejected by the cascade
+
+	/**
+	 * Copy a candidate
+	 * @param subimg The candidate, in region coordinates
+	 * @param originX Origin of the region in the frame
+	 * @param originY Origin of the region in the frame
+	 */
+	void add(RectangularImage subimg, int originX, int originY) {
+		int n = subimg.getLength();
+		if (count_ == offset_.length) {
+			grow(count_ * 2);
+		}
+		if (used_ + n > pixels_.length) {
+			pixels_ = Arrays.copyOf(pixels_, Math.max(used_ + n, pixels_.length * 2));
+		}
+		for (int i = 0; i < n; i++) {
+			pixels_[used_ + i] = subimg.getValue(i);
+		}
+		offset_[count_] = used_;
+		width_[count_] = subimg.width;
+		height_[count_] = subimg.height;
+		x0_[count_] = subimg.x0;
+		y0_[count_] = subimg.y0;
+		originX_[count_] = originX;
+		originY_[count_] = originY;
+		used_ += n;
+		count_ ++;
+	}
+
+	public int size() {
+		return count_;
+	}
+
+	void clear() {
+		count_ = 0;
+		used_ = 0;
+		detected_ = 0;
+	}
+
+	void grow(int capacity) {
+		offset_ = Arrays.copyOf(offset_, capacity);
+		width_ = Arrays.copyOf(width_, capacity);
+		height_ = Arrays.copyOf(height_, capacity);
+		x0_ = Arrays.copyOf(x0_, capacity);
+		y0_ = Arrays.copyOf(y0_, capacity);
+		originX_ = Arrays.copyOf(originX_, capacity);
+		originY_ = Arrays.copyOf(originY_, capacity);
+	}
+}
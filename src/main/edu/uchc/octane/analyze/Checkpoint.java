@@ -0,0 +1,94 @@
+package edu.uchc.octane.analyze;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Makes a batch analysis resumable. The localizations are written to a {@link LocalizationFile}
+ * that is flushed periodically, and a sidecar file records the fingerprint of the run: the input
+ * and all analysis parameters. A restarted run with the same fingerprint appends to the file,
+ * starting after the last frame that was completely written.
+ */
+public class Checkpoint {
+
+	final static Logger logger = LoggerFactory.getLogger(Checkpoint.class);
+
+	public final static String SUFFIX = ".checkpoint";
+	final static long FLUSH_INTERVAL = 30000; // ms
+
+	final String path_; // the localization file
+	final File sidecar_;
+	final String fingerprint_;
+	int firstFrame_ = 1;
+	long kept_ = 0; // localizations of the earlier run
+
+	/**
+	 * @param path The localization file
+	 * @param fingerprint Identifies the input and the parameters of the run
+	 */
+	public Checkpoint(String path, String fingerprint) {
+		path_ = path;
+		sidecar_ = new File(path + SUFFIX);
+		fingerprint_ = fingerprint;
+	}
+
+	/**
+	 * Open the localization file. If an earlier run with the same fingerprint was interrupted, its
+	 * complete frames are kept, otherwise the file is started over.
+	 * @return The writer, not started yet
+	 */
+	public LocalizationFileWriter open() throws IOException {
+		boolean resume = false;
+		firstFrame_ = 1;
+		kept_ = 0;
+		if (sidecar_.exists() && new File(path_).exists()) {
+			if (fingerprint_.equals(readSidecar())) {
+				try (LocalizationFileReader reader = new LocalizationFileReader(path_)) {
+					firstFrame_ = reader.getLastFrame() + 1;
+					kept_ = reader.size();
+					resume = true;
+				} catch (IOException e) {
+					logger.warn("Can not resume from " + path_ + ": " + e.getMessage());
+				}
+			} else {
+				logger.warn("Parameters have changed, discarding the results in " + path_);
+			}
+		}
+		if (! resume) {
+			Files.write(sidecar_.toPath(), fingerprint_.getBytes(StandardCharsets.UTF_8));
+		}
+		LocalizationFileWriter writer = new LocalizationFileWriter(path_, resume);
+		writer.setFlushInterval(FLUSH_INTERVAL);
+		return writer;
+	}
+
+	/**
+	 * @return The first frame that still needs to be analyzed. Valid after {@link #open()}.
+	 */
+	public int getFirstFrame() {
+		return firstFrame_;
+	}
+
+	/**
+	 * @return Number of localizations kept from the earlier run. Valid after {@link #open()}.
+	 */
+	public long getKeptLocalizations() {
+		return kept_;
+	}
+
+	/**
+	 * The run is finished. Removes the sidecar, so that the next run starts over.
+	 */
+	public void complete() throws IOException {
+		Files.deleteIfExists(sidecar_.toPath());
+	}
+
+	String readSidecar() throws IOException {
+		return new String(Files.readAllBytes(sidecar_.toPath()), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,72 @@
+package edu.uchc.octane.analyze;
+
+import java.util.Arrays;
+import java.util.List;
+
+import edu.uchc.octane.core.datasource.OctaneDataFile;
+
+/**
+ * A LocalizationSink that stores the data in growable primitive columns.
+ * No per-localization objects are kept after a frame is added.
+ */
+public class ColumnBufferSink implements LocalizationSink {
+
+	String [] headers_;
+	double [][] columns_;
+	int size_;
+
+	@Override
+	public void begin(String [] headers) {
+		headers_ = headers;
+		columns_ = new double[headers.length][1024];
+		size_ = 0;
+	}
+
+	@Override
+	public void addFrame(int frame, List<double[]> rows) {
+		ensureCapacity(size_ + rows.size());
+		for (double [] row : rows) {
+			for (int k = 0; k < columns_.length; k++) {
+				columns_[k][size_] = row[k];
+			}
+			size_ ++;
+		}
+	}
+
+	@Override
+	public void end() {}
+
+	void ensureCapacity(int capacity) {
+		int cur = columns_[0].length;
+		if (capacity <= cur) {
+			return;
+		}
+		int newCapacity = Math.max(capacity, cur + (cur >> 1));
+		for (int k = 0; k < columns_.length; k++) {
+			columns_[k] = Arrays.copyOf(columns_[k], newCapacity);
+		}
+	}
+
+	/**
+	 * @return Number of localizations stored
+	 */
+	public int size() {
+		return size_;
+	}
+
+	/**
+	 * Move the data into an OctaneDataFile. Columns are trimmed one at a time, so the peak memory 
+	 * is only one column above the data size. The sink is empty afterwards. 
+	 * @return The dataset
+	 */
+	public OctaneDataFile toOctaneDataFile() {
+		double [][] data = new double[columns_.length][];
+		for (int k = 0; k < columns_.length; k++) {
+			data[k] = columns_[k].length == size_ ? columns_[k] : Arrays.copyOf(columns_[k], size_);
+			columns_[k] = null;
+		}
+		OctaneDataFile dataset = new OctaneDataFile(data, headers_);
+		begin(headers_);
+		return dataset;
+	}
+}
@@ -0,0 +1,431 @@
+package edu.uchc.octane.analyze;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import edu.uchc.octane.core.datasource.OctaneDataFile;
+
+/**
+ * Estimates the sample drift while the frames stream past, and passes the localizations on with
+ * drift corrected x and y columns. The frames are split in time windows. When a window is complete,
+ * its localizations are binned into an image and cross-correlated, by FFT, with the reconstruction
+ * of all corrected localizations so far. The peak of the correlation is the drift at the center of
+ * the window. The drift between the centers is interpolated linearly.
+ * <p>
+ * The channels, slices and positions of a data set (the unit columns, see {@link ParticleAnalyzer2D#getHeaders(boolean)})
+ * are estimated separately, each against its own reconstruction.
+ * <p>
+ * A localization is passed on once the drift of the next window center is known, so at most about
+ * one and a half windows of localizations are held. Windows with too few localizations keep the
+ * drift of the previous window, as do windows
+ * whose correlation has no clear peak. An interrupted run is continued with {@link #resumeFrom}.
+ */
+public class DriftCorrectionSink implements LocalizationSink {
+
+	public final static String X_CORRECTED = "x_corrected";
+	public final static String Y_CORRECTED = "y_corrected";
+	final static int MAX_SIZE = 1024; // of the correlation images
+	final static int MIN_LOCALIZATIONS = 20; // of a window, for a drift estimate
+	final static double MIN_PEAK_SCORE = 6; // standard deviations of the correlation above its mean
+
+	final LocalizationSink sink_;
+	final int window_; // frames
+	final double bin_; // pixel size of the binned images, in the units of x and y
+	final int maxShift_; // bins
+	final int n_;
+	final FFT2D fft_;
+
+	final double [] hist_; // the current window of a unit
+	final double [] re_, im_, refRe_, refIm_; // transforms
+
+	String [] headers_;
+	int xCol_, yCol_;
+	int [] unitCols_;
+	int firstFrame_ = -1, lastFrame_;
+	int current_; // window index
+	String resumePath_; // the file of an interrupted run, or null
+
+	/**
+	 * The estimate of one channel, slice and position
+	 */
+	class Unit {
+		final double [] tags_; // values of the unit columns
+		final double [] ref_ = new double[n_ * n_]; // all corrected localizations so far
+		long refCount_;
+		int uncorrectedUntil_ = Integer.MIN_VALUE; // frames up to this are in ref_ without correction
+
+		// the drift at the window centers
+		double [] traceFrame_ = new double[64], traceX_ = new double[64], traceY_ = new double[64];
+		int nTrace_;
+
+		Unit(double [] tags) {
+			tags_ = tags;
+		}
+
+		double [] interpolate(int frame) {
+			if (nTrace_ == 0) {
+				return new double[2];
+			}
+			// the first center at or after the frame. Frames are released close to the last center.
+			int k = nTrace_;
+			while (k > 0 && traceFrame_[k - 1] >= frame) {
+				k--;
+			}
+			if (k == 0) {
+				return new double[] {traceX_[0], traceY_[0]};
+			} else if (k == nTrace_) {
+				return new double[] {traceX_[k - 1], traceY_[k - 1]};
+			}
+			double t = (frame - traceFrame_[k - 1]) / (traceFrame_[k] - traceFrame_[k - 1]);
+			return new double[] {traceX_[k - 1] + t * (traceX_[k] - traceX_[k - 1]), traceY_[k - 1] + t * (traceY_[k] - traceY_[k - 1])};
+		}
+
+		void addTrace(double frame, double dx, double dy) {
+			if (nTrace_ == traceFrame_.length) {
+				traceFrame_ = Arrays.copyOf(traceFrame_, nTrace_ * 2);
+				traceX_ = Arrays.copyOf(traceX_, nTrace_ * 2);
+				traceY_ = Arrays.copyOf(traceY_, nTrace_ * 2);
+			}
+			traceFrame_[nTrace_] = frame;
+			traceX_[nTrace_] = dx;
+			traceY_[nTrace_] = dy;
+			nTrace_ ++;
+		}
+	}
+	final TreeMap<Long, Unit> units_ = new TreeMap<Long, Unit>();
+
+	static class Frame {
+		final int frame_;
+		final List<double[]> rows_;
+
+		Frame(int frame, List<double[]> rows) {
+			frame_ = frame;
+			rows_ = rows;
+		}
+	}
+	ArrayDeque<Frame> pending_ = new ArrayDeque<Frame>();
+
+	/**
+	 * @param sink Receives the localizations with the corrected columns
+	 * @param width Width of the field of view, in the units of x and y
+	 * @param height Height of the field of view
+	 * @param windowFrames Length of a time window
+	 * @param binSize Pixel size of the correlated images, in the units of x and y. Increased if the images would be too large.
+	 * @param maxDrift Largest drift searched for, in the units of x and y
+	 */
+	public DriftCorrectionSink(LocalizationSink sink, double width, double height, int windowFrames, double binSize, double maxDrift) {
+		if (windowFrames < 1 || !(binSize > 0) || !(maxDrift > 0)) {
+			throw new IllegalArgumentException("Invalid drift correction parameters");
+		}
+		sink_ = sink;
+		window_ = windowFrames;
+		// pad by the max drift, so that shifted images do not wrap around
+		double extent = Math.max(width, height) + maxDrift;
+		bin_ = Math.max(binSize, extent / MAX_SIZE);
+		int n = 2;
+		while (n < extent / bin_) {
+			n <<= 1;
+		}
+		n_ = n;
+		maxShift_ = Math.min(n_ / 2 - 1, (int) Math.ceil(maxDrift / bin_));
+		fft_ = new FFT2D(n_);
+		hist_ = new double[n_ * n_];
+		re_ = new double[n_ * n_];
+		im_ = new double[n_ * n_];
+		refRe_ = new double[n_ * n_];
+		refIm_ = new double[n_ * n_];
+	}
+
+	/**
+	 * Continue the drift of an interrupted run instead of starting at zero. When the analysis begins,
+	 * the corrected localizations of its file become the reconstruction, and the drift of its frames
+	 * the start of the trace.
+	 * @param path The localization file of the interrupted run, written through this sink
+	 */
+	public void resumeFrom(String path) {
+		resumePath_ = path;
+	}
+
+	@Override
+	public void begin(String [] headers) throws IOException {
+		List<String> h = Arrays.asList(headers);
+		xCol_ = h.indexOf("x");
+		yCol_ = h.indexOf("y");
+		if (xCol_ < 0 || yCol_ < 0) {
+			throw new IOException("No x and y columns to correct");
+		}
+		ArrayList<Integer> units = new ArrayList<Integer>();
+		for (String s : ParticleAnalyzer2D.UNIT_HEADERS) {
+			if (h.contains(s)) {
+				units.add(h.indexOf(s));
+			}
+		}
+		unitCols_ = new int[units.size()];
+		for (int k = 0; k < unitCols_.length; k++) {
+			unitCols_[k] = units.get(k);
+		}
+		headers_ = headers;
+		if (resumePath_ != null) {
+			try (LocalizationFileReader reader = new LocalizationFileReader(resumePath_)) {
+				resume(reader);
+			}
+		}
+		String [] out = Arrays.copyOf(headers, headers.length + 2);
+		out[headers.length] = X_CORRECTED;
+		out[headers.length + 1] = Y_CORRECTED;
+		sink_.begin(out);
+	}
+
+	@Override
+	public void addFrame(int frame, List<double[]> rows) throws IOException {
+		if (firstFrame_ < 0) {
+			firstFrame_ = frame;
+		}
+		int w = (frame - firstFrame_) / window_;
+		while (current_ < w) {
+			int from = firstFrame_ + current_ * window_;
+			closeWindow(from, from + window_ - 1);
+			current_ ++;
+		}
+		for (double [] row : rows) {
+			unitOf(row);
+		}
+		pending_.add(new Frame(frame, rows));
+		lastFrame_ = frame;
+	}
+
+	@Override
+	public void end() throws IOException {
+		if (firstFrame_ >= 0) {
+			closeWindow(firstFrame_ + current_ * window_, lastFrame_);
+			release(Double.POSITIVE_INFINITY);
+		}
+		sink_.end();
+	}
+
+	@Override
+	public void abort() {
+		pending_.clear();
+		sink_.abort();
+	}
+
+	/**
+	 * @return The drift at the window centers, with frame, dx and dy columns, and the unit columns of the input
+	 */
+	public OctaneDataFile getDriftTrace() {
+		int n = 0;
+		for (Unit u : units_.values()) {
+			n += u.nTrace_;
+		}
+		double [][] data = new double[3 + unitCols_.length][n];
+		int i = 0;
+		for (Unit u : units_.values()) {
+			for (int t = 0; t < u.nTrace_; t++, i++) {
+				data[0][i] = u.traceFrame_[t];
+				data[1][i] = u.traceX_[t];
+				data[2][i] = u.traceY_[t];
+				for (int k = 0; k < unitCols_.length; k++) {
+					data[3 + k][i] = u.tags_[k];
+				}
+			}
+		}
+		String [] headers = new String[3 + unitCols_.length];
+		headers[0] = "frame";
+		headers[1] = "dx";
+		headers[2] = "dy";
+		for (int k = 0; k < unitCols_.length; k++) {
+			headers[3 + k] = headers_[unitCols_[k]];
+		}
+		return new OctaneDataFile(data, headers);
+	}
+
+	// the unit of a localization, created when it is first seen
+	Unit unitOf(double [] row) {
+		long key = 0;
+		for (int c : unitCols_) {
+			key = key * 1031 + (long) row[c];
+		}
+		Unit u = units_.get(key);
+		if (u == null) {
+			double [] tags = new double[unitCols_.length];
+			for (int k = 0; k < tags.length; k++) {
+				tags[k] = row[unitCols_[k]];
+			}
+			u = new Unit(tags);
+			units_.put(key, u);
+		}
+		return u;
+	}
+
+	// rebuild the reconstructions and the traces from the output of an interrupted run
+	void resume(LocalizationFileReader reader) throws IOException {
+		String [] h = reader.getHeaders();
+		if (h.length != headers_.length + 2 || ! Arrays.equals(Arrays.copyOf(h, headers_.length), headers_)
+				|| ! h[headers_.length].equals(X_CORRECTED) || ! h[headers_.length + 1].equals(Y_CORRECTED)) {
+			throw new IOException("The columns of " + resumePath_ + " do not match the analysis");
+		}
+		final int frameCol = Arrays.asList(h).indexOf("frame");
+		final int xc = headers_.length, yc = headers_.length + 1;
+		// the drift of the file is sampled at the first frame of each window of each unit, and at its last frame
+		HashMap<Unit, double[]> last = new HashMap<Unit, double[]>();
+		int first = Integer.MAX_VALUE;
+		double [] row = new double[h.length];
+		for (int b = 0; b < reader.getBlockCount(); b++) {
+			double [][] c = reader.readBlock(b);
+			for (int i = 0; i < c[0].length; i++) {
+				for (int k = 0; k < row.length; k++) {
+					row[k] = c[k][i];
+				}
+				int frame = (int) row[frameCol];
+				first = Math.min(first, frame);
+				Unit u = unitOf(row);
+				bin(u.ref_, row[xc], row[yc]);
+				u.refCount_ ++;
+				double [] d = {frame, row[xCol_] - row[xc], row[yCol_] - row[yc]};
+				double [] prev = last.put(u, d);
+				if (prev == null || (frame - first) / window_ != ((int) prev[0] - first) / window_) {
+					u.addTrace(d[0], d[1], d[2]);
+				}
+			}
+		}
+		for (Map.Entry<Unit, double[]> e : last.entrySet()) {
+			Unit u = e.getKey();
+			double [] d = e.getValue();
+			if (u.traceFrame_[u.nTrace_ - 1] < d[0]) {
+				u.addTrace(d[0], d[1], d[2]);
+			}
+		}
+	}
+
+	// estimate the drift of the window of frames from..to of all units, and pass on the frames up to its center
+	void closeWindow(int from, int to) throws IOException {
+		final double center = (from + to) / 2.0;
+		HashMap<Unit, ArrayList<double[]>> rows = new HashMap<Unit, ArrayList<double[]>>();
+		for (Frame f : pending_) {
+			if (f.frame_ < from) {
+				continue;
+			}
+			for (double [] row : f.rows_) {
+				rows.computeIfAbsent(unitOf(row), k -> new ArrayList<double[]>()).add(row);
+			}
+		}
+		for (Unit u : units_.values()) {
+			List<double[]> window = rows.getOrDefault(u, new ArrayList<double[]>());
+			double dx = u.nTrace_ == 0 ? 0 : u.traceX_[u.nTrace_ - 1];
+			double dy = u.nTrace_ == 0 ? 0 : u.traceY_[u.nTrace_ - 1];
+			if (u.refCount_ < MIN_LOCALIZATIONS) {
+				// the start of the data: no drift yet, so the window itself is the reference
+				for (double [] row : window) {
+					bin(u.ref_, row[xCol_], row[yCol_]);
+				}
+				u.refCount_ += window.size();
+				u.uncorrectedUntil_ = lastFrame_;
+			} else if (window.size() >= MIN_LOCALIZATIONS) {
+				Arrays.fill(hist_, 0);
+				for (double [] row : window) {
+					bin(hist_, row[xCol_], row[yCol_]);
+				}
+				double [] d = correlate(u.ref_);
+				if (d != null) {
+					dx = d[0];
+					dy = d[1];
+				}
+			}
+			u.addTrace(center, dx, dy);
+		}
+		release(center);
+	}
+
+	// the shift of hist_ against the reference, from the peak of the cross-correlation, or null if there is no clear peak
+	double [] correlate(double [] ref) {
+		System.arraycopy(ref, 0, refRe_, 0, ref.length);
+		Arrays.fill(refIm_, 0);
+		fft_.transform(refRe_, refIm_, false);
+		System.arraycopy(hist_, 0, re_, 0, hist_.length);
+		Arrays.fill(im_, 0);
+		fft_.transform(re_, im_, false);
+		// conj(ref) * window
+		for (int i = 0; i < re_.length; i++) {
+			double r = refRe_[i] * re_[i] + refIm_[i] * im_[i];
+			double m = refRe_[i] * im_[i] - refIm_[i] * re_[i];
+			re_[i] = r;
+			im_[i] = m;
+		}
+		fft_.transform(re_, im_, true);
+
+		int px = 0, py = 0;
+		double max = Double.NEGATIVE_INFINITY, sum = 0, sum2 = 0;
+		for (int sy = -maxShift_; sy <= maxShift_; sy++) {
+			for (int sx = -maxShift_; sx <= maxShift_; sx++) {
+				double v = re_[index(sx, sy)];
+				sum += v;
+				sum2 += v * v;
+				if (v > max) {
+					max = v;
+					px = sx;
+					py = sy;
+				}
+			}
+		}
+		// unstructured or sparse data correlate everywhere about equally
+		double cnt = (2 * maxShift_ + 1) * (2 * maxShift_ + 1), mean = sum / cnt;
+		double sd = Math.sqrt(Math.max(0, sum2 / cnt - mean * mean));
+		if (!(max - mean > MIN_PEAK_SCORE * sd)) {
+			return null;
+		}
+		double fx = px + vertex(re_[index(px - 1, py)], max, re_[index(px + 1, py)]);
+		double fy = py + vertex(re_[index(px, py - 1)], max, re_[index(px, py + 1)]);
+		return new double[] {fx * bin_, fy * bin_};
+	}
+
+	// offset of the vertex of the parabola through three points, within half a bin
+	static double vertex(double left, double center, double right) {
+		double d = left - 2 * center + right;
+		if (d >= 0) {
+			return 0;
+		}
+		return Math.max(-0.5, Math.min(0.5, (left - right) / (2 * d)));
+	}
+
+	// a shift in the wrapped-around correlation image
+	int index(int sx, int sy) {
+		return (sy & (n_ - 1)) * n_ + (sx & (n_ - 1));
+	}
+
+	void bin(double [] img, double x, double y) {
+		if (x < 0 || y < 0) {
+			return;
+		}
+		int ix = (int) (x / bin_), iy = (int) (y / bin_);
+		if (ix < n_ && iy < n_) {
+			img[iy * n_ + ix] += 1;
+		}
+	}
+
+	// pass on the frames up to the frame, with the interpolated drift removed
+	void release(double frame) throws IOException {
+		while (! pending_.isEmpty() && pending_.peek().frame_ <= frame) {
+			Frame f = pending_.poll();
+			ArrayList<double[]> out = new ArrayList<double[]>(f.rows_.size());
+			for (double [] row : f.rows_) {
+				Unit u = unitOf(row);
+				double [] d = u.interpolate(f.frame_);
+				double [] r = Arrays.copyOf(row, row.length + 2);
+				r[row.length] = row[xCol_] - d[0];
+				r[row.length + 1] = row[yCol_] - d[1];
+				if (f.frame_ > u.uncorrectedUntil_) {
+					bin(u.ref_, r[row.length], r[row.length + 1]);
+					u.refCount_ ++;
+				}
+				out.add(r);
+			}
+			sink_.addFrame(f.frame_, out);
+		}
+	}
+}
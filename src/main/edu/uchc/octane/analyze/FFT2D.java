@@ -0,0 +1,106 @@
+package edu.uchc.octane.analyze;
+
+/**
+ * In-place complex FFT of square images with a power of 2 size. The twiddle factors and the
+ * bit reversal permutation are computed once, so repeated transforms of the same size do not
+ * allocate. Not thread safe.
+ */
+class FFT2D {
+
+	final int n_;
+	final int log2n_;
+	final double [] cos_, sin_; // n/2 twiddle factors
+	final int [] reverse_;
+	final double [] re_, im_; // a row or column being transformed
+
+	/**
+	 * @param n Size of the images, a power of 2
+	 */
+	FFT2D(int n) {
+		if (n < 2 || Integer.bitCount(n) != 1) {
+			throw new IllegalArgumentException("Size must be a power of 2: " + n);
+		}
+		n_ = n;
+		log2n_ = Integer.numberOfTrailingZeros(n);
+		cos_ = new double[n / 2];
+		sin_ = new double[n / 2];
+		for (int i = 0; i < n / 2; i++) {
+			cos_[i] = Math.cos(2 * Math.PI * i / n);
+			sin_[i] = Math.sin(2 * Math.PI * i / n);
+		}
+		reverse_ = new int[n];
+		for (int i = 0; i < n; i++) {
+			reverse_[i] = Integer.reverse(i) >>> (32 - log2n_);
+		}
+		re_ = new double[n];
+		im_ = new double[n];
+	}
+
+	int getSize() {
+		return n_;
+	}
+
+	/**
+	 * Transform an image, rows first
+	 * @param re Real part, n * n values in row order
+	 * @param im Imaginary part
+	 * @param inverse The inverse transform, scaled by 1 / n^2
+	 */
+	void transform(double [] re, double [] im, boolean inverse) {
+		final int n = n_;
+		for (int y = 0; y < n; y++) {
+			System.arraycopy(re, y * n, re_, 0, n);
+			System.arraycopy(im, y * n, im_, 0, n);
+			transform1D(inverse);
+			System.arraycopy(re_, 0, re, y * n, n);
+			System.arraycopy(im_, 0, im, y * n, n);
+		}
+		for (int x = 0; x < n; x++) {
+			for (int y = 0, i = x; y < n; y++, i += n) {
+				re_[y] = re[i];
+				im_[y] = im[i];
+			}
+			transform1D(inverse);
+			for (int y = 0, i = x; y < n; y++, i += n) {
+				re[i] = re_[y];
+				im[i] = im_[y];
+			}
+		}
+		if (inverse) {
+			final double scale = 1.0 / ((double) n * n);
+			for (int i = 0; i < re.length; i++) {
+				re[i] *= scale;
+				im[i] *= scale;
+			}
+		}
+	}
+
+	// iterative radix-2 Cooley-Tukey on re_, im_
+	void transform1D(boolean inverse) {
+		final int n = n_;
+		final double [] re = re_, im = im_;
+		for (int i = 0; i < n; i++) {
+			int j = reverse_[i];
+			if (j > i) {
+				double t = re[i]; re[i] = re[j]; re[j] = t;
+				t = im[i]; im[i] = im[j]; im[j] = t;
+			}
+		}
+		final double sign = inverse ? 1 : -1;
+		for (int size = 2; size <= n; size <<= 1) {
+			final int half = size >> 1, step = n / size;
+			for (int start = 0; start < n; start += size) {
+				for (int k = 0; k < half; k++) {
+					final double wr = cos_[k * step], wi = sign * sin_[k * step];
+					final int a = start + k, b = a + half;
+					final double tr = re[b] * wr - im[b] * wi;
+					final double ti = re[b] * wi + im[b] * wr;
+					re[b] = re[a] - tr;
+					im[b] = im[a] - ti;
+					re[a] += tr;
+					im[a] += ti;
+				}
+			}
+		}
+	}
+}
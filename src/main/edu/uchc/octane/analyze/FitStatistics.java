@@ -0,0 +1,49 @@
+package edu.uchc.octane.analyze;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts candidates at each stage of the fitting, shared by all workers of a run.
+ */
+public class FitStatistics {
+
+	final LongAdder candidates_ = new LongAdder(); // inside the roi
+	final LongAdder lowSignal_ = new LongAdder(); // rejected by the estimate: signal too low
+	final LongAdder offCenter_ = new LongAdder(); // rejected by the estimate: centroid far from the maximum
+	final LongAdder fitted_ = new LongAdder(); // passed to the fitter
+	final LongAdder fitFailed_ = new LongAdder(); // fitter returned no result
+	final LongAdder outOfBounds_ = new LongAdder(); // fitted position outside the sub-image
+	final LongAdder negativeIntensity_ = new LongAdder();
+	final LongAdder accepted_ = new LongAdder();
+
+	public long getCandidates() {
+		return candidates_.sum();
+	}
+
+	public long getAccepted() {
+		return accepted_.sum();
+	}
+
+	/**
+	 * @return Candidates rejected before the full fit
+	 */
+	public long getRejectedByEstimate() {
+		return lowSignal_.sum() + offCenter_.sum();
+	}
+
+	/**
+	 * @return Candidates rejected after the full fit
+	 */
+	public long getRejectedByFit() {
+		return fitFailed_.sum() + outOfBounds_.sum() + negativeIntensity_.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "Candidates: " + candidates_.sum() 
+				+ ", rejected by estimate: " + lowSignal_.sum() + " low signal, " + offCenter_.sum() + " off center"
+				+ "; fitted: " + fitted_.sum() 
+				+ ", rejected by fit: " + fitFailed_.sum() + " failed, " + outOfBounds_.sum() + " out of bound, " + negativeIntensity_.sum() + " negative intensity"
+				+ "; accepted: " + accepted_.sum();
+	}
+}
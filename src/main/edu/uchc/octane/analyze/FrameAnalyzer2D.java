@@ -0,0 +1,515 @@
+package edu.uchc.octane.analyze;
+
+import java.awt.Rectangle;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.function.BooleanSupplier;
+
+import org.apache.commons.math3.util.FastMath;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.uchc.octane.analyze.AnalysisMetrics.Stage;
+import edu.uchc.octane.core.fitting.Fitter;
+import edu.uchc.octane.core.frameanalysis.LocalMaximum;
+import edu.uchc.octane.core.pixelimage.RectangularDoubleImage;
+import edu.uchc.octane.core.pixelimage.RectangularImage;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+/**
+ * Per-thread context for the analysis of single frames. The photon-count buffer, the 
+ * detector and the fitter are created once and reused for every frame, so the 
+ * steady state does not allocate per frame except for the results. Not thread safe.
+ * <p>
+ * A frame is either analyzed in one call, or split in two steps: {@link #detect} collects the
+ * candidates, which {@link #fitCandidates} then fits in parts, possibly on the contexts of other threads.
+ */
+public class FrameAnalyzer2D {
+
+	final static Logger logger = LoggerFactory.getLogger(FrameAnalyzer2D.class);
+
+	final static BooleanSupplier INTERRUPTED = () -> Thread.currentThread().isInterrupted();
+
+	// outcomes of a fit
+	final static int ACCEPTED = 0;
+	final static int FAILED = 1;
+	final static int OUT_OF_BOUNDS = 2;
+	final static int NEGATIVE_INTENSITY = 3;
+
+	final ParticleAnalyzer2D params_;
+	final LocalMaximum finder_;
+	final Fitter fitter_; // null for the batched fitter
+	final BatchedMLEFitter batch_; // fits the candidates of a region at once, or null
+	final Roi [] rois_; // null for the whole frame
+	RollingBackground background_; // null for the constant camera offset. Replaced per work unit.
+	final int margin_; // around the rois, so that the detection kernel fits
+	final double offset_;
+	final double scale_; // photons per count
+	final boolean cascade_;
+	final double minPhotons_;
+	final FitStatistics stats_;
+	final AnalysisMetrics metrics_;
+
+	double [] buffer_; // photon counts of the current region
+	RectangularDoubleImage img_; // wraps buffer_
+	int width_;
+
+	Rectangle [] regions_; // the cropped areas of the frame
+	int frameWidth_, frameHeight_; // of regions_
+	int region_; // index of the current region
+	int x0_, y0_; // origin of the current region in the frame
+
+	ArrayList<double[]> particles_;
+	int candidates_; // of the current frame
+	long fitNanos_; // of the current frame
+	final CandidateBuffer pending_ = new CandidateBuffer(); // the candidates to fit, in deferred mode
+	boolean deferred_ = false;
+	double [] candidatePixels_; // of a candidate being fitted by fitCandidates
+	RectangularDoubleImage candidate_; // wraps candidatePixels_
+	BooleanSupplier cancelled_ = INTERRUPTED; // polled between the stages and before each fit
+	final LocalMaximum.CallBackFunctions callback_ = new LocalMaximum.CallBackFunctions() {
+		@Override
+		public boolean fit(RectangularImage subimg, int x, int y) {
+			if (cancelled_.getAsBoolean()) {
+				return false;
+			}
+			if (isInside(x + x0_, y + y0_)) {
+				long t0 = System.nanoTime();
+				try {
+					fitCandidate(subimg, x, y);
+				} finally {
+					fitNanos_ += System.nanoTime() - t0;
+				}
+			}
+			return true;
+		}	
+	};
+
+	// a candidate in overlapping regions belongs to the first roi that contains it
+	boolean isInside(int x, int y) {
+		if (rois_ == null) {
+			return true;
+		}
+		for (int i = 0; i <= region_; i++) {
+			if (rois_[i].contains(x, y)) {
+				return i == region_;
+			}
+		}
+		return false;
+	}
+
+	// detection has found a candidate at x, y inside the roi. Coordinates are relative to the current region.
+	void fitCandidate(RectangularImage subimg, int x, int y) {
+		candidates_ ++;
+		stats_.candidates_.increment();
+		if (cascade_ && !passesEstimate(subimg, x, y)) {
+			return;
+		}
+		stats_.fitted_.increment();
+		if (deferred_) {
+			pending_.add(subimg, x0_, y0_);
+			return;
+		}
+		if (batch_ != null) {
+			batch_.add(subimg);
+			return;
+		}
+		accept(fitter_.fit(subimg, null), subimg.x0, subimg.y0, subimg.width, subimg.height);
+	}
+
+	// fit the candidates collected from the current region
+	void fitBatch() {
+		long t0 = System.nanoTime();
+		batch_.fit();
+		for (int i = 0; i < batch_.size(); i++) {
+			accept(batch_.getResult(i), batch_.getX0(i), batch_.getY0(i), batch_.getWidth(i), batch_.getHeight(i));
+		}
+		batch_.clear();
+		fitNanos_ += System.nanoTime() - t0;
+	}
+
+	// check a fitting result of the candidate at x0, y0
+	void accept(double [] result, int x0, int y0, int width, int height) {
+		result = check(result, x0, y0, width, height, x0_, y0_);
+		if (result != null) {
+			particles_.add(result);
+		}
+	}
+
+	// the result in frame coordinates, or null if it is rejected. Region coordinates are moved by originX, originY.
+	double [] check(double [] result, int x0, int y0, int width, int height, int originX, int originY) {
+		switch (classify(result, x0, y0, width, height)) {
+		case ACCEPTED:
+			stats_.accepted_.increment();
+			result[0] += originX;
+			result[1] += originY;
+			return result;
+		case OUT_OF_BOUNDS:
+			stats_.outOfBounds_.increment();
+			logger.debug("Results out of bound: " + (result[0] - x0) + ", " + (result[1]- y0) );
+			return null;
+		case NEGATIVE_INTENSITY:
+			stats_.negativeIntensity_.increment();
+			logger.debug("Negtive intensity: " + result[3]);
+			return null;
+		default:
+			stats_.fitFailed_.increment();
+			return null;
+		}
+	}
+
+	// the outcome of a fit of the candidate at x0, y0. Makes sigma positive.
+	static int classify(double [] result, int x0, int y0, int width, int height) {
+		if (result == null) {
+			return FAILED;
+		}
+		result[2] = FastMath.abs(result[2]);
+		if (result[0] < x0 || result[0] > x0 + width || result[1] < y0 || result[1] > y0 + height) {
+			return OUT_OF_BOUNDS;
+		} else if (result[3] < 0) {
+			return NEGATIVE_INTENSITY;
+		}
+		return ACCEPTED;
+	}
+
+	/**
+	 * Detect the candidates of a frame without fitting them.
+	 * @param stack The image data
+	 * @param frame Frame number, 1-based
+	 * @return The candidates that passed the cascade. Owned by this context and reused for the next frame.
+	 */
+	public CandidateBuffer detect(ImageStack stack, int frame) {
+		pending_.clear();
+		deferred_ = true;
+		try {
+			analyze(stack, frame);
+		} finally {
+			deferred_ = false;
+		}
+		pending_.detected_ = candidates_;
+		return pending_;
+	}
+
+	/**
+	 * Fit a part of the candidates found by {@link #detect}, which may have been called on another context.
+	 * @param candidates The candidates
+	 * @param from First candidate
+	 * @param to End of the candidates, exclusive
+	 * @return The accepted particles, in pixel units of the full frame, in candidate order
+	 */
+	public ArrayList<double[]> fitCandidates(CandidateBuffer candidates, int from, int to) {
+		ArrayList<double[]> particles = new ArrayList<double[]>(to - from);
+		final CandidateBuffer c = candidates;
+		if (batch_ != null) {
+			for (int i = from; i < to; i++) {
+				batch_.add(getCandidate(c, i));
+			}
+			batch_.fit();
+			for (int i = from; i < to; i++) {
+				double [] r = check(batch_.getResult(i - from), c.x0_[i], c.y0_[i], c.width_[i], c.height_[i], c.originX_[i], c.originY_[i]);
+				if (r != null) {
+					particles.add(r);
+				}
+			}
+			batch_.clear();
+		} else {
+			for (int i = from; i < to; i++) {
+				double [] r = check(fitter_.fit(getCandidate(c, i), null), c.x0_[i], c.y0_[i], c.width_[i], c.height_[i], c.originX_[i], c.originY_[i]);
+				if (r != null) {
+					particles.add(r);
+				}
+			}
+		}
+		return particles;
+	}
+
+	/**
+	 * Record the metrics of a frame analyzed with {@link #detect} and {@link #fitCandidates}
+	 */
+	void recordFit(CandidateBuffer candidates, int nParticles, long fitNanos) {
+		metrics_.recordStage(Stage.FIT, fitNanos);
+		metrics_.recordFrame(candidates.detected_, nParticles);
+	}
+
+	// a candidate of the buffer as an image, in the reused candidate_
+	RectangularImage getCandidate(CandidateBuffer c, int i) {
+		final int w = c.width_[i], h = c.height_[i];
+		if (candidate_ == null || candidate_.width != w || candidate_.height != h) {
+			candidatePixels_ = new double[w * h];
+			candidate_ = new RectangularDoubleImage(candidatePixels_, w);
+		}
+		System.arraycopy(c.pixels_, c.offset_[i], candidatePixels_, 0, w * h);
+		candidate_.x0 = c.x0_[i];
+		candidate_.y0 = c.y0_[i];
+		return candidate_;
+	}
+
+	/**
+	 * First stage of the cascade: a background-corrected centroid of the sub-image. 
+	 * Candidates with too few photons, or with the mass far from the local maximum, 
+	 * are most likely noise and are not passed to the full fit. Sub-images are clipped at the
+	 * edges of the region, so the maximum is not necessarily at their center.
+	 * @param x The local maximum, in the coordinates of the sub-image's origin
+	 * @param y
+	 * @return True if the candidate should be fitted
+	 */
+	boolean passesEstimate(RectangularImage subimg, int x, int y) {
+		final int w = subimg.width, h = subimg.height, n = subimg.getLength();
+
+		// background from the border pixels
+		double border = 0;
+		int nBorder = 0;
+		for (int i = 0; i < n; i++) {
+			int col = i % w, row = i / w;
+			if (col == 0 || row == 0 || col == w - 1 || row == h - 1) {
+				border += subimg.getValue(i);
+				nBorder ++;
+			}
+		}
+		double bg = border / Math.max(1, nBorder);
+
+		double sum = 0, sx = 0, sy = 0;
+		for (int i = 0; i < n; i++) {
+			double v = subimg.getValue(i) - bg;
+			if (v > 0) {
+				sum += v;
+				sx += v * (i % w);
+				sy += v * (i / w);
+			}
+		}
+		if (sum < minPhotons_) {
+			stats_.lowSignal_.increment();
+			return false;
+		}
+		final double r = (2 * params_.kernelSize_ + 1) / 4.0; // a quarter of an unclipped sub-image
+		if (FastMath.abs(sx / sum - (x - subimg.x0)) > r || FastMath.abs(sy / sum - (y - subimg.y0)) > r) {
+			stats_.offCenter_.increment();
+			return false;
+		}
+		return true;
+	}
+
+	FrameAnalyzer2D(ParticleAnalyzer2D params) {
+		params_ = params;
+		rois_ = params.rois_;
+		background_ = params.background_;
+		margin_ = params.kernelSize_ + 1;
+		offset_ = params.bgOffset_;
+		scale_ = 1.0 / params.cntsPerPhoton_;
+		finder_ = new LocalMaximum(params.watershedNoise_, 0, params.kernelSize_);
+		batch_ = params.createBatchFitter();
+		fitter_ = batch_ == null ? params.createFitter() : null;
+		cascade_ = params.cascade_;
+		minPhotons_ = params.cascadeMinPhotons_;
+		stats_ = params.stats_;
+		metrics_ = params.metrics_;
+	}
+
+	/**
+	 * Analyze one frame of a stack, unless cancelled. The flag is polled between the stages 
+	 * and before each fit, so an obsolete preview stops early.
+	 * @param stack The image data
+	 * @param frame Frame number, 1-based
+	 * @param cancelled The cancellation flag
+	 * @return The fitted particles, in pixel units, or null if cancelled
+	 */
+	public ArrayList<double[]> analyze(ImageStack stack, int frame, BooleanSupplier cancelled) {
+		cancelled_ = cancelled;
+		try {
+			ArrayList<double[]> particles = analyze(stack, frame);
+			return cancelled.getAsBoolean() ? null : particles;
+		} finally {
+			cancelled_ = INTERRUPTED;
+		}
+	}
+
+	/**
+	 * Analyze one frame of a stack. Memory mapped frames are converted directly from the mapped file.
+	 * With rois, only the pixels around the rois are converted and searched.
+	 * @param stack The image data
+	 * @param frame Frame number, 1-based
+	 * @return The fitted particles, in pixel units of the full frame
+	 */
+	public ArrayList<double[]> analyze(ImageStack stack, int frame) {
+		long t0 = System.nanoTime();
+		Object pixels = getPixels(stack, frame);
+		metrics_.recordStage(Stage.FETCH, System.nanoTime() - t0);
+		return analyzeRegions(pixels, stack.getWidth(), stack.getHeight(), frame);
+	}
+
+	// the pixels of a frame, in a type that convert() takes
+	static Object getPixels(ImageStack stack, int frame) {
+		Object pixels = null;
+		if (stack instanceof MMVirtualStack) {
+			// the pages are read from disk during the conversion
+			pixels = ((MMVirtualStack) stack).getFrameBuffer(frame);
+			if (pixels == null) {
+				// read only, so the cached array is used without a copy
+				pixels = ((MMVirtualStack) stack).getCachedPixels(frame);
+			}
+		}
+		if (pixels == null) {
+			// for a regular stack, this is the pixel array of the stack itself, no copy 
+			pixels = stack.getPixels(frame);
+			if (pixels instanceof int[]) { // RGB, use the luminance
+				pixels = stack.getProcessor(frame).convertToFloatProcessor().getPixels();
+			}
+		}
+		return pixels;
+	}
+
+	/**
+	 * Analyze one frame.
+	 * @param ip The frame. Not modified.
+	 * @return The fitted particles, in pixel units of the full frame
+	 */
+	public ArrayList<double[]> analyze(ImageProcessor ip) {
+		Object pixels = ip.getPixels();
+		if (pixels instanceof int[]) { // RGB, use the luminance
+			pixels = ip.convertToFloatProcessor().getPixels();
+		}
+		return analyzeRegions(pixels, ip.getWidth(), ip.getHeight(), 0);
+	}
+
+	/**
+	 * Convert and search each region of the frame in turn
+	 * @param frame The frame number for the background, or 0 to subtract only the camera offset 
+	 */
+	ArrayList<double[]> analyzeRegions(Object pixels, int width, int height, int frame) {
+		particles_ = new ArrayList<double[]>();
+		candidates_ = 0;
+		fitNanos_ = 0;
+		long convertNanos = 0, detectNanos = 0;
+		float [] bg = null;
+		if (background_ != null && frame > 0) {
+			long t0 = System.nanoTime();
+			bg = background_.getBackground(frame);
+			convertNanos += System.nanoTime() - t0;
+		}
+		Rectangle [] regions = getRegions(width, height);
+		for (region_ = 0; region_ < regions.length; region_++) {
+			Rectangle r = regions[region_];
+			if (cancelled_.getAsBoolean()) {
+				break;
+			}
+			if (r.isEmpty()) { // outside of the frame
+				continue;
+			}
+			long t0 = System.nanoTime();
+			convert(pixels, width, r);
+			if (bg != null) {
+				subtract(bg, width, r);
+			}
+			long t1 = System.nanoTime();
+			convertNanos += t1 - t0;
+			if (cancelled_.getAsBoolean()) {
+				break;
+			}
+			x0_ = r.x;
+			y0_ = r.y;
+			finder_.processFrame(img_, callback_);
+			if (batch_ != null && !deferred_) {
+				if (cancelled_.getAsBoolean()) {
+					batch_.clear();
+					break;
+				}
+				fitBatch();
+			}
+			detectNanos += System.nanoTime() - t1;
+		}
+		metrics_.recordStage(Stage.PREPROCESS, convertNanos);
+		// the fitting is called from within the detection
+		metrics_.recordStage(Stage.DETECT, detectNanos - fitNanos_);
+		if (deferred_) { // fitted later
+			particles_ = null;
+			return null;
+		}
+		metrics_.recordStage(Stage.FIT, fitNanos_);
+		ArrayList<double[]> particles = particles_;
+		metrics_.recordFrame(candidates_, particles.size());
+		particles_ = null;
+		return particles;
+	}
+
+	/**
+	 * @return The bounds of the rois, with a margin for the detection kernel, or the whole frame
+	 */
+	Rectangle [] getRegions(int width, int height) {
+		if (regions_ != null && frameWidth_ == width && frameHeight_ == height) {
+			return regions_;
+		}
+		Rectangle frame = new Rectangle(width, height);
+		if (rois_ == null) {
+			regions_ = new Rectangle[] {frame};
+		} else {
+			regions_ = new Rectangle[rois_.length];
+			for (int i = 0; i < rois_.length; i++) {
+				Rectangle r = rois_[i].getBounds();
+				r.grow(margin_, margin_);
+				regions_[i] = r.intersection(frame);
+			}
+		}
+		frameWidth_ = width;
+		frameHeight_ = height;
+		return regions_;
+	}
+
+	void allocate(int length, int width) {
+		if (buffer_ == null || buffer_.length != length || width_ != width) {
+			buffer_ = new double[length];
+			width_ = width;
+			img_ = new RectangularDoubleImage(buffer_, width);
+		}
+	}
+
+	// replace the camera offset by the background
+	void subtract(float [] bg, int width, Rectangle r) {
+		final double [] b = buffer_;
+		int k = 0;
+		for (int y = r.y; y < r.y + r.height; y++) {
+			for (int i = y * width + r.x, end = i + r.width; i < end; i++) {
+				b[k++] -= (bg[i] - offset_) * scale_;
+			}
+		}
+	}
+
+	// raw counts of a region to photons, in a single pass
+	void convert(Object pixels, int width, Rectangle r) {
+		allocate(r.width * r.height, r.width);
+		final double [] b = buffer_;
+		int k = 0;
+		if (pixels instanceof short[]) {
+			final short [] p = (short []) pixels;
+			for (int y = r.y; y < r.y + r.height; y++) {
+				for (int i = y * width + r.x, end = i + r.width; i < end; i++) {
+					b[k++] = ((p[i] & 0xffff) - offset_) * scale_;
+				}
+			}
+		} else if (pixels instanceof ShortBuffer) {
+			final ShortBuffer p = (ShortBuffer) pixels;
+			for (int y = r.y; y < r.y + r.height; y++) {
+				for (int i = y * width + r.x, end = i + r.width; i < end; i++) {
+					b[k++] = ((p.get(i) & 0xffff) - offset_) * scale_;
+				}
+			}
+		} else if (pixels instanceof float[]) {
+			final float [] p = (float []) pixels;
+			for (int y = r.y; y < r.y + r.height; y++) {
+				for (int i = y * width + r.x, end = i + r.width; i < end; i++) {
+					b[k++] = (p[i] - offset_) * scale_;
+				}
+			}
+		} else if (pixels instanceof byte[]) {
+			final byte [] p = (byte []) pixels;
+			for (int y = r.y; y < r.y + r.height; y++) {
+				for (int i = y * width + r.x, end = i + r.width; i < end; i++) {
+					b[k++] = ((p[i] & 0xff) - offset_) * scale_;
+				}
+			}
+		} else {
+			throw new IllegalArgumentException("Unsupported pixel type");
+		}
+	}
+}
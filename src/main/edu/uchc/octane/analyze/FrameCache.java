@@ -0,0 +1,95 @@
+package edu.uchc.octane.analyze;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded LRU cache of decoded 16-bit frames, keyed by frame number.
+ */
+public class FrameCache {
+
+	final int maxFrames_;
+	final LinkedHashMap<Integer, short[]> frames_;
+
+	final AtomicLong hits_ = new AtomicLong();
+	final AtomicLong misses_ = new AtomicLong();
+	final AtomicLong prefetched_ = new AtomicLong();
+
+	/**
+	 * Constructor
+	 * @param maxBytes Memory limit of the cache
+	 * @param frameBytes Size of one frame in bytes
+	 */
+	public FrameCache(long maxBytes, long frameBytes) {
+		maxFrames_ = (int) Math.max(0, Math.min(Integer.MAX_VALUE, maxBytes / Math.max(1, frameBytes)));
+		frames_ = new LinkedHashMap<Integer, short[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, short[]> eldest) {
+				return size() > maxFrames_;
+			}
+		};
+	}
+
+	/**
+	 * Look up a frame. Updates the hit and miss counters.
+	 * @param frame The frame number
+	 * @return The pixels, or null if the frame is not cached
+	 */
+	public synchronized short [] get(int frame) {
+		short [] pix = frames_.get(frame);
+		if (pix != null) {
+			hits_.incrementAndGet();
+		} else {
+			misses_.incrementAndGet();
+		}
+		return pix;
+	}
+
+	/**
+	 * @return True if the frame is in the cache. Does not affect the LRU order or the counters.
+	 */
+	public synchronized boolean contains(int frame) {
+		return frames_.containsKey(frame);
+	}
+
+	public synchronized void put(int frame, short [] pix) {
+		if (maxFrames_ > 0) {
+			frames_.put(frame, pix);
+		}
+	}
+
+	public synchronized void clear() {
+		frames_.clear();
+	}
+
+	public int getCapacity() {
+		return maxFrames_;
+	}
+
+	public long getHits() {
+		return hits_.get();
+	}
+
+	public long getMisses() {
+		return misses_.get();
+	}
+
+	/**
+	 * @return Number of frames loaded by the read-ahead worker
+	 */
+	public long getPrefetched() {
+		return prefetched_.get();
+	}
+
+	void countPrefetch() {
+		prefetched_.incrementAndGet();
+	}
+
+	@Override
+	public String toString() {
+		return "FrameCache [capacity=" + maxFrames_ + ", hits=" + getHits() + ", misses=" + getMisses() + ", prefetched=" + getPrefetched() + "]";
+	}
+}
@@ -0,0 +1,80 @@
+package edu.uchc.octane.analyze;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Collects per-frame results that finish out of order and passes them on to a 
+ * LocalizationSink in frame order. At most capacity frames can be pending, so 
+ * workers that get too far ahead wait in {@link #awaitSlot(int)}. 
+ */
+public class FrameReorderBuffer {
+
+	final LocalizationSink sink_;
+	final int capacity_;
+	final HashMap<Integer, List<double[]>> pending_ = new HashMap<Integer, List<double[]>>();
+	int nextFrame_;
+
+	/**
+	 * Constructor
+	 * @param sink The receiver of the results
+	 * @param firstFrame The first frame to be delivered
+	 * @param capacity Max number of frames to be held. Should be at least the number of workers.
+	 */
+	public FrameReorderBuffer(LocalizationSink sink, int firstFrame, int capacity) {
+		sink_ = sink;
+		nextFrame_ = firstFrame;
+		capacity_ = Math.max(1, capacity);
+	}
+
+	/**
+	 * Block until the frame can be accepted without exceeding the capacity.
+	 * Frames must be handed out to workers in increasing order, or this may dead lock.
+	 * On a ForkJoinPool the wait is managed, so the pool can start a spare worker meanwhile.
+	 * @param frame The frame the caller is about to process
+	 */
+	public void awaitSlot(final int frame) throws InterruptedException {
+		ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+			@Override
+			public boolean block() throws InterruptedException {
+				synchronized(FrameReorderBuffer.this) {
+					while (frame >= nextFrame_ + capacity_) {
+						FrameReorderBuffer.this.wait();
+					}
+				}
+				return true;
+			}
+
+			@Override
+			public boolean isReleasable() {
+				synchronized(FrameReorderBuffer.this) {
+					return frame < nextFrame_ + capacity_;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Submit the results of one frame. Any frames now in order are written to the sink by the calling thread.
+	 * @param frame The frame number
+	 * @param rows The results
+	 */
+	public synchronized void put(int frame, List<double[]> rows) throws IOException {
+		pending_.put(frame, rows);
+		List<double[]> next;
+		while ((next = pending_.remove(nextFrame_)) != null) {
+			sink_.addFrame(nextFrame_, next);
+			nextFrame_ ++;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * @return The next frame that the sink is waiting for
+	 */
+	public synchronized int getNextFrame() {
+		return nextFrame_;
+	}
+}
@@ -35,24 +35,44 @@ public class GlobalPrefs {
 	final private static String DEFAULT_PIXEL_SIZE_KEY = "DeaultPixelSize";
 	//final private static String DAO_MAX_MOLECULES_KEY = "daoMaxPeaks"; // max number of PSFs to be fitted in DAOFitting algorithm
 	final private static String PARTICLE_ANALYSIS_MODE_KEY = "ParticleAnalysisMode";
-	final private static String ASTIGMATISM_CALIBRATION_X_KEY = "astigmatismCalibrationX";
-	final private static String ASTIGMATISM_CALIBRATION_Y_KEY = "astigmatismCalibrationY";
+	final private static String ASTIGMATISM_CALIBRATION_X_KEY = "astigmatismCalibrationNmX"; // z in nm
+	final private static String ASTIGMATISM_CALIBRATION_Y_KEY = "astigmatismCalibrationNmY";
+	final private static String OLD_ASTIGMATISM_CALIBRATION_X_KEY = "astigmatismCalibrationX"; // other units, not read anymore
+	final private static String OLD_ASTIGMATISM_CALIBRATION_Y_KEY = "astigmatismCalibrationY";
 	final private static String ALTERNATING_OVERLAY_COLOR = "AlternatingOverlayColor";
 	final private static String OVERLAY_STROKE_WIDTH = "OverlayStrokeWidth";
+	final private static String READ_AHEAD_FRAMES_KEY = "readAheadFrames";
+	final private static String FRAME_CACHE_SIZE_KEY = "frameCacheSize";
+	final private static String MEMORY_MAPPED_IO_KEY = "memoryMappedIO";
 	
 	public static int nThread_ = prefs_.getInt(NUM_THREAD_KEY , 4);
 	public static double defaultPixelSize_ = Prefs.getDouble(DEFAULT_PIXEL_SIZE_KEY, 108.33);
 	// public static int daoMaxMolecules_ = Prefs.getInt(DAO_MAX_MOLECULES_KEY, 4);
 	public static String particleAnalysisMode_ = Prefs.get(PARTICLE_ANALYSIS_MODE_KEY, "Accurate");
-	public static String calibrationStrX_ = GlobalPrefs.getRoot().get(ASTIGMATISM_CALIBRATION_X_KEY, "0.8, 0, 0.18");
-	public static String calibrationStrY_ = GlobalPrefs.getRoot().get(ASTIGMATISM_CALIBRATION_Y_KEY, "0.8, 6, 0.18");
+	public static String calibrationStrX_ = GlobalPrefs.getRoot().get(ASTIGMATISM_CALIBRATION_X_KEY, "1.3, -250, 3e-6"); // a, c, b of the width in pixels at z nm: a + b(z - c)^2
+	public static String calibrationStrY_ = GlobalPrefs.getRoot().get(ASTIGMATISM_CALIBRATION_Y_KEY, "1.3, 250, 3e-6");
+	static boolean oldCalibration_ = GlobalPrefs.getRoot().get(ASTIGMATISM_CALIBRATION_X_KEY, null) == null
+			&& GlobalPrefs.getRoot().get(OLD_ASTIGMATISM_CALIBRATION_X_KEY, null) != null; // saved by an earlier version, and not replaced
 	public static boolean alternatingOverlayColor_ = GlobalPrefs.getRoot().getBoolean(ALTERNATING_OVERLAY_COLOR, true);
 	public static double overlayStrokeWidth_ = GlobalPrefs.getRoot().getDouble(OVERLAY_STROKE_WIDTH, 0.3);
+	public static int readAheadFrames_ = prefs_.getInt(READ_AHEAD_FRAMES_KEY, 16); // frames read ahead in MM data sets
+	public static int frameCacheSize_ = prefs_.getInt(FRAME_CACHE_SIZE_KEY, 512); // in MB
+	public static boolean memoryMappedIO_ = prefs_.getBoolean(MEMORY_MAPPED_IO_KEY, true); // map uncompressed MM data sets
 	
 	public static Preferences getRoot() {
 		return prefs_;
 	}
 
+	/**
+	 * Check that the astigmatism calibration of the preferences can be used
+	 * @throws IllegalArgumentException If the saved calibration is from an earlier version, whose units differ
+	 */
+	public static void checkCalibration() {
+		if (oldCalibration_) {
+			throw new IllegalArgumentException("The saved astigmatism calibration is from an earlier version with other units. Please recalibrate");
+		}
+	}
+
 	/**
 	 * Save preferences.
 	 */
@@ -61,8 +81,17 @@ public class GlobalPrefs {
 		prefs_.putInt(NUM_THREAD_KEY, nThread_);
 		prefs_.putDouble(DEFAULT_PIXEL_SIZE_KEY, defaultPixelSize_);
 		prefs_.put(PARTICLE_ANALYSIS_MODE_KEY, particleAnalysisMode_);
-		prefs_.put(ASTIGMATISM_CALIBRATION_X_KEY, calibrationStrX_);
-		prefs_.put(ASTIGMATISM_CALIBRATION_Y_KEY, calibrationStrY_);
+		if (! oldCalibration_) {
+			prefs_.put(ASTIGMATISM_CALIBRATION_X_KEY, calibrationStrX_);
+			prefs_.put(ASTIGMATISM_CALIBRATION_Y_KEY, calibrationStrY_);
+			prefs_.remove(OLD_ASTIGMATISM_CALIBRATION_X_KEY);
+			prefs_.remove(OLD_ASTIGMATISM_CALIBRATION_Y_KEY);
+		}
+		prefs_.putBoolean(ALTERNATING_OVERLAY_COLOR, alternatingOverlayColor_);
+		prefs_.putDouble(OVERLAY_STROKE_WIDTH, overlayStrokeWidth_);
+		prefs_.putInt(READ_AHEAD_FRAMES_KEY, readAheadFrames_);
+		prefs_.putInt(FRAME_CACHE_SIZE_KEY, frameCacheSize_);
+		prefs_.putBoolean(MEMORY_MAPPED_IO_KEY, memoryMappedIO_);
 	
 	}
 	
@@ -78,7 +107,14 @@ public class GlobalPrefs {
 
 		dlg.addNumericField("Numer of threads", nThread_, 0);
 		dlg.addNumericField("Default Pixel Size", defaultPixelSize_, 2);
+		dlg.addNumericField("Read-ahead Frames", readAheadFrames_, 0);
+		dlg.addNumericField("Frame Cache Size (MB)", frameCacheSize_, 0);
+		dlg.addCheckbox("Memory Mapped Reading of MM Data", memoryMappedIO_);
 		
+		dlg.addMessage("Astigmatism Calibration (a, c, b)" + (oldCalibration_ ? ": the saved one has other units, please recalibrate" : ""));
+		dlg.addStringField("Width X", calibrationStrX_, 20);
+		dlg.addStringField("Width Y", calibrationStrY_, 20);
+
 		dlg.addMessage("Overlay Options");
 		dlg.addCheckbox("Alternating Trajectory Color", alternatingOverlayColor_);
 		dlg.addNumericField("Overlay Stroke Width", overlayStrokeWidth_, 2);
@@ -88,6 +124,19 @@ public class GlobalPrefs {
 		if (dlg.wasCanceled()) {
 			return false;
 		} else {
+			nThread_ = Math.max(1, (int) dlg.getNextNumber());
+			defaultPixelSize_ = dlg.getNextNumber();
+			readAheadFrames_ = Math.max(0, (int) dlg.getNextNumber());
+			frameCacheSize_ = Math.max(0, (int) dlg.getNextNumber());
+			memoryMappedIO_ = dlg.getNextBoolean();
+			String x = dlg.getNextString(), y = dlg.getNextString();
+			if (! x.equals(calibrationStrX_) || ! y.equals(calibrationStrY_)) {
+				calibrationStrX_ = x;
+				calibrationStrY_ = y;
+				oldCalibration_ = false;
+			}
+			alternatingOverlayColor_ = dlg.getNextBoolean();
+			overlayStrokeWidth_ = dlg.getNextNumber();
 			savePrefs();
 		}
 
@@ -0,0 +1,131 @@
+package edu.uchc.octane.analyze;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ij.IJ;
+
+/**
+ * Analyzes a Micro-Manager data set while it is being acquired. The data set is polled
+ * for new frames, which are analyzed by the batch engine and appended to the sink. 
+ * Runs until all frames of the acquisition are analyzed, no new frame appears within
+ * the idle timeout, or the user presses Esc.
+ */
+public class LiveAnalyzer {
+
+	final static Logger logger = LoggerFactory.getLogger(LiveAnalyzer.class);
+
+	final ParticleAnalyzer2D analyzer_;
+	final MMVirtualStack stack_;
+	long pollInterval_ = 1000; // ms
+	long idleTimeout_ = 60000; // ms
+
+	volatile boolean stopped_ = false;
+	volatile int framesDone_ = 0;
+	volatile long localizations_ = 0;
+	long start_;
+	long lastStatus_;
+
+	public LiveAnalyzer(ParticleAnalyzer2D analyzer, MMVirtualStack stack) {
+		analyzer_ = analyzer;
+		stack_ = stack;
+	}
+
+	/**
+	 * @param pollInterval Time between checks for new frames, in ms
+	 * @param idleTimeout Give up if no new frames appear for this long, in ms
+	 */
+	public void setTiming(long pollInterval, long idleTimeout) {
+		pollInterval_ = pollInterval;
+		idleTimeout_ = idleTimeout;
+	}
+
+	/**
+	 * Stop after the frames currently being analyzed. 
+	 */
+	public void stop() {
+		stopped_ = true;
+	}
+
+	public int getFramesDone() {
+		return framesDone_;
+	}
+
+	public long getLocalizationCount() {
+		return localizations_;
+	}
+
+	/**
+	 * Follow the acquisition and analyze frames as they are written.
+	 * @param sink The receiver of the localizations
+	 */
+	public void run(final LocalizationSink sink) throws IOException, InterruptedException, ExecutionException {
+		// count the localizations on their way to the sink
+		LocalizationSink counter = new LocalizationSink() {
+			@Override
+			public void begin(String[] headers) throws IOException {}
+
+			@Override
+			public void addFrame(int frame, List<double[]> rows) throws IOException {
+				sink.addFrame(frame, rows);
+				localizations_ += rows.size();
+				framesDone_ = frame;
+				if (System.currentTimeMillis() - lastStatus_ > 500) {
+					showProgress();
+				}
+			}
+
+			@Override
+			public void end() throws IOException {}
+		};
+
+		int total = stack_.getSize();
+		start_ = System.currentTimeMillis();
+		long lastNewFrame = start_;
+
+		boolean done = false;
+		try {
+			sink.begin(analyzer_.getHeaders());
+			analyzer_.getMetrics().markStart();
+			while (!stopped_ && framesDone_ < total) {
+				int available = stack_.refresh();
+				if (available > framesDone_) {
+					analyzer_.analyzeFrames(stack_, framesDone_ + 1, available, counter);
+					lastNewFrame = System.currentTimeMillis();
+					showProgress();
+				} else if (System.currentTimeMillis() - lastNewFrame > idleTimeout_) {
+					logger.info("No new frames for " + idleTimeout_ / 1000 + " s, stop following the acquisition.");
+					break;
+				} else {
+					Thread.sleep(pollInterval_);
+				}
+				if (IJ.escapePressed()) {
+					IJ.resetEscape();
+					stop();
+				}
+			}
+			sink.end();
+			done = true;
+		} finally {
+			if (! done) {
+				sink.abort();
+			}
+		}
+		IJ.showProgress(1.0);
+		IJ.log("Live analysis: " + framesDone_ + " frames, " + localizations_ + " localizations");
+		IJ.log(analyzer_.getMetrics().toString());
+	}
+
+	void showProgress() {
+		int total = stack_.getSize();
+		lastStatus_ = System.currentTimeMillis();
+		double seconds = (lastStatus_ - start_) / 1000.0;
+		IJ.showStatus(String.format("Live analysis: frame %d/%d, %d localizations, %.1f frames/s", 
+				framesDone_, total, localizations_, framesDone_ / Math.max(seconds, 1e-3)));
+		IJ.showProgress(framesDone_, total);
+	}
+}
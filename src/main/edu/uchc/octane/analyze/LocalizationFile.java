@@ -0,0 +1,131 @@
+package edu.uchc.octane.analyze;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * The columnar localization file. Localizations are stored in blocks of whole frames,
+ * in frame order. Each block has its frame range and the bounding box of its x/y
+ * coordinates, so that a time window or a region can be read without decoding the
+ * rest of the file. Layout, all values little-endian:
+ * <pre>
+ * header:  long MAGIC, int columns, then per column: short name length, UTF-8 name, byte codec, double quantum
+ * block:   int BLOCK_MAGIC, int count, int firstFrame, int lastFrame, double minX, minY, maxX, maxY,
+ *          int payload bytes, int CRC32 of the payload, payload (each column in turn)
+ * index:   int INDEX_MAGIC, int blocks, then per block: long offset, int count, int firstFrame, int lastFrame,
+ *          double minX, minY, maxX, maxY
+ * trailer: long index offset, long TRAILER_MAGIC
+ * </pre>
+ * Columns with the DELTA codec are quantized, and stored as zigzag varints of the difference
+ * to the previous row. The frame column is lossless with a quantum of 1. Other columns are raw doubles.
+ * A file without a valid trailer, e.g. after a crash, is recovered by scanning the blocks.
+ */
+public class LocalizationFile {
+
+	public final static String EXTENSION = ".oloc";
+
+	final static long MAGIC = 0x0100434f4c54434fL; // "OCTLOC", version 1
+	final static long TRAILER_MAGIC = 0x58444e49434f4c4fL;
+	final static int BLOCK_MAGIC = 0x4b4c424f;
+	final static int INDEX_MAGIC = 0x58444e4f;
+
+	final static byte CODEC_RAW = 0;
+	final static byte CODEC_DELTA = 1;
+
+	final static int BLOCK_HEADER_BYTES = 56;
+	final static int INDEX_ENTRY_BYTES = 52;
+	final static int TRAILER_BYTES = 16;
+
+	/**
+	 * The index entry of a block
+	 */
+	public static class BlockInfo {
+		final long offset_;
+		final int count_;
+		final int firstFrame_, lastFrame_;
+		final double minX_, minY_, maxX_, maxY_;
+
+		BlockInfo(long offset, int count, int firstFrame, int lastFrame, double minX, double minY, double maxX, double maxY) {
+			offset_ = offset;
+			count_ = count;
+			firstFrame_ = firstFrame;
+			lastFrame_ = lastFrame;
+			minX_ = minX;
+			minY_ = minY;
+			maxX_ = maxX;
+			maxY_ = maxY;
+		}
+
+		public int getCount() {
+			return count_;
+		}
+
+		public int getFirstFrame() {
+			return firstFrame_;
+		}
+
+		public int getLastFrame() {
+			return lastFrame_;
+		}
+
+		/**
+		 * @return True if the block may contain localizations of the frames
+		 */
+		public boolean overlapsFrames(int firstFrame, int lastFrame) {
+			return firstFrame_ <= lastFrame && lastFrame_ >= firstFrame;
+		}
+
+		/**
+		 * @return True if the block may contain localizations in the region. Blocks without coordinates always do.
+		 */
+		public boolean overlapsRegion(double minX, double minY, double maxX, double maxY) {
+			if (Double.isNaN(minX_)) {
+				return true;
+			}
+			return minX_ <= maxX && maxX_ >= minX && minY_ <= maxY && maxY_ >= minY;
+		}
+
+		void write(ByteBuffer b) {
+			b.putLong(offset_).putInt(count_).putInt(firstFrame_).putInt(lastFrame_);
+			b.putDouble(minX_).putDouble(minY_).putDouble(maxX_).putDouble(maxY_);
+		}
+
+		static BlockInfo read(ByteBuffer b) {
+			return new BlockInfo(b.getLong(), b.getInt(), b.getInt(), b.getInt(), b.getDouble(), b.getDouble(), b.getDouble(), b.getDouble());
+		}
+	}
+
+	static void putVarLong(ByteBuffer b, long v) {
+		while ((v & ~0x7fL) != 0) {
+			b.put((byte) ((v & 0x7f) | 0x80));
+			v >>>= 7;
+		}
+		b.put((byte) v);
+	}
+
+	static long getVarLong(ByteBuffer b) throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte x = b.get();
+			v |= (long) (x & 0x7f) << shift;
+			if (x >= 0) {
+				return v;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	static long unzigzag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	static ByteBuffer read(FileChannel ch, long pos, long len) throws IOException {
+		return MMMappedTiff.read(ch, pos, len, ByteOrder.LITTLE_ENDIAN);
+	}
+}
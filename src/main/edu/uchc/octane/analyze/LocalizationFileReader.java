@@ -0,0 +1,281 @@
+package edu.uchc.octane.analyze;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import edu.uchc.octane.analyze.LocalizationFile.BlockInfo;
+import edu.uchc.octane.core.datasource.OctaneDataFile;
+
+/**
+ * Reads a {@link LocalizationFile}. Blocks are read individually, so a time window
+ * or a region only costs the blocks that overlap it. Thread safe.
+ */
+public class LocalizationFileReader implements Closeable {
+
+	final FileChannel ch_;
+	String [] headers_;
+	byte [] codecs_;
+	double [] quanta_;
+	int frameCol_;
+	long dataStart_; // first block
+	long dataEnd_; // after the last valid block
+	final ArrayList<BlockInfo> blocks_ = new ArrayList<BlockInfo>();
+	boolean recovered_ = false;
+
+	/**
+	 * Open the file and read its index. If the index is missing, e.g. because the writer did
+	 * not finish, the blocks are scanned up to the first incomplete or corrupted one.
+	 * @param path The file
+	 * @throws IOException If the file can not be read, or is not a localization file
+	 */
+	public LocalizationFileReader(String path) throws IOException {
+		ch_ = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+		try {
+			readHeader();
+			if (!readIndex()) {
+				recover();
+			}
+		} catch (IOException e) {
+			ch_.close();
+			throw e;
+		}
+	}
+
+	public String [] getHeaders() {
+		return headers_;
+	}
+
+	public int getBlockCount() {
+		return blocks_.size();
+	}
+
+	public BlockInfo getBlockInfo(int block) {
+		return blocks_.get(block);
+	}
+
+	/**
+	 * @return Total number of localizations
+	 */
+	public long size() {
+		long n = 0;
+		for (BlockInfo info : blocks_) {
+			n += info.count_;
+		}
+		return n;
+	}
+
+	/**
+	 * @return The last frame in the file, or 0 if it is empty
+	 */
+	public int getLastFrame() {
+		int last = 0;
+		for (BlockInfo info : blocks_) {
+			last = Math.max(last, info.lastFrame_);
+		}
+		return last;
+	}
+
+	/**
+	 * @return True if the file had no valid index and was recovered by a scan
+	 */
+	public boolean wasRecovered() {
+		return recovered_;
+	}
+
+	/**
+	 * @return The blocks that may contain the frames
+	 */
+	public List<Integer> findBlocks(int firstFrame, int lastFrame) {
+		return findBlocks(firstFrame, lastFrame, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * @return The blocks that may contain localizations of the frames in the region
+	 */
+	public List<Integer> findBlocks(int firstFrame, int lastFrame, double minX, double minY, double maxX, double maxY) {
+		ArrayList<Integer> found = new ArrayList<Integer>();
+		for (int i = 0; i < blocks_.size(); i++) {
+			BlockInfo info = blocks_.get(i);
+			if (info.overlapsFrames(firstFrame, lastFrame) && info.overlapsRegion(minX, minY, maxX, maxY)) {
+				found.add(i);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Read and decode one block
+	 * @param block The block number
+	 * @return The columns of the block
+	 * @throws IOException If the block can not be read or fails the checksum
+	 */
+	public double [][] readBlock(int block) throws IOException {
+		BlockInfo info = blocks_.get(block);
+		ByteBuffer header = LocalizationFile.read(ch_, info.offset_, LocalizationFile.BLOCK_HEADER_BYTES);
+		ByteBuffer payload = readPayload(info.offset_, header);
+		if (payload == null) {
+			throw new IOException("Corrupted block " + block);
+		}
+		return decode(payload, header.getInt(4));
+	}
+
+	/**
+	 * Read the localizations of a time window
+	 * @param firstFrame First frame
+	 * @param lastFrame Last frame, inclusive
+	 * @return The localizations
+	 */
+	public OctaneDataFile read(int firstFrame, int lastFrame) throws IOException {
+		return new OctaneDataFile(readColumns(findBlocks(firstFrame, lastFrame), firstFrame, lastFrame), headers_);
+	}
+
+	/**
+	 * Read the whole file
+	 * @return The localizations
+	 */
+	public OctaneDataFile toOctaneDataFile() throws IOException {
+		return read(Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
+
+	// concatenate the blocks, keeping the rows of the frames
+	double [][] readColumns(List<Integer> blocks, int firstFrame, int lastFrame) throws IOException {
+		ColumnBufferSink out = new ColumnBufferSink();
+		out.begin(headers_);
+		for (int block : blocks) {
+			double [][] c = readBlock(block);
+			int n = c[0].length;
+			out.ensureCapacity(out.size_ + n);
+			for (int i = 0; i < n; i++) {
+				if (frameCol_ >= 0 && (c[frameCol_][i] < firstFrame || c[frameCol_][i] > lastFrame)) {
+					continue;
+				}
+				for (int k = 0; k < c.length; k++) {
+					out.columns_[k][out.size_] = c[k][i];
+				}
+				out.size_ ++;
+			}
+		}
+		double [][] data = new double[headers_.length][];
+		for (int k = 0; k < data.length; k++) {
+			data[k] = Arrays.copyOf(out.columns_[k], out.size_);
+		}
+		return data;
+	}
+
+	double [][] decode(ByteBuffer b, int n) throws IOException {
+		double [][] columns = new double[headers_.length][n];
+		for (int k = 0; k < columns.length; k++) {
+			final double [] c = columns[k];
+			if (codecs_[k] == LocalizationFile.CODEC_DELTA) {
+				final double q = quanta_[k];
+				long v = 0;
+				for (int i = 0; i < n; i++) {
+					v += LocalizationFile.unzigzag(LocalizationFile.getVarLong(b));
+					c[i] = v * q;
+				}
+			} else {
+				for (int i = 0; i < n; i++) {
+					c[i] = b.getDouble();
+				}
+			}
+		}
+		return columns;
+	}
+
+	// the payload after the block header, or null if it is incomplete or corrupted
+	ByteBuffer readPayload(long offset, ByteBuffer header) throws IOException {
+		int length = header.getInt(48);
+		if (header.getInt(0) != LocalizationFile.BLOCK_MAGIC || length < 0
+				|| offset + LocalizationFile.BLOCK_HEADER_BYTES + length > ch_.size()) {
+			return null;
+		}
+		ByteBuffer payload = LocalizationFile.read(ch_, offset + LocalizationFile.BLOCK_HEADER_BYTES, length);
+		CRC32 crc = new CRC32();
+		crc.update(payload.array(), 0, length);
+		if ((int) crc.getValue() != header.getInt(52)) {
+			return null;
+		}
+		return payload;
+	}
+
+	void readHeader() throws IOException {
+		ByteBuffer b = LocalizationFile.read(ch_, 0, 12);
+		if (b.getLong() != LocalizationFile.MAGIC) {
+			throw new IOException("Not a localization file");
+		}
+		int n = b.getInt();
+		if (n < 1 || n > 1024) {
+			throw new IOException("Corrupted header");
+		}
+		headers_ = new String[n];
+		codecs_ = new byte[n];
+		quanta_ = new double[n];
+		long pos = 12;
+		for (int k = 0; k < n; k++) {
+			int len = LocalizationFile.read(ch_, pos, 2).getShort() & 0xffff;
+			ByteBuffer c = LocalizationFile.read(ch_, pos + 2, len + 9);
+			byte [] name = new byte[len];
+			c.get(name);
+			headers_[k] = new String(name, StandardCharsets.UTF_8);
+			codecs_[k] = c.get();
+			quanta_[k] = c.getDouble();
+			pos += 11 + len;
+		}
+		dataStart_ = pos;
+		frameCol_ = Arrays.asList(headers_).indexOf("frame");
+	}
+
+	// false if there is no valid index
+	boolean readIndex() throws IOException {
+		long size = ch_.size();
+		if (size < dataStart_ + 8 + LocalizationFile.TRAILER_BYTES) {
+			return false;
+		}
+		ByteBuffer trailer = LocalizationFile.read(ch_, size - LocalizationFile.TRAILER_BYTES, LocalizationFile.TRAILER_BYTES);
+		long indexOffset = trailer.getLong(0);
+		if (trailer.getLong(8) != LocalizationFile.TRAILER_MAGIC || indexOffset < dataStart_ || indexOffset > size - LocalizationFile.TRAILER_BYTES - 8) {
+			return false;
+		}
+		ByteBuffer b = LocalizationFile.read(ch_, indexOffset, size - LocalizationFile.TRAILER_BYTES - indexOffset);
+		int n = b.getInt(4);
+		if (b.getInt(0) != LocalizationFile.INDEX_MAGIC || b.remaining() != 8 + (long) n * LocalizationFile.INDEX_ENTRY_BYTES) {
+			return false;
+		}
+		b.position(8);
+		for (int i = 0; i < n; i++) {
+			blocks_.add(BlockInfo.read(b));
+		}
+		dataEnd_ = indexOffset;
+		return true;
+	}
+
+	// rebuild the index from the blocks
+	void recover() throws IOException {
+		recovered_ = true;
+		blocks_.clear();
+		long pos = dataStart_;
+		while (pos + LocalizationFile.BLOCK_HEADER_BYTES <= ch_.size()) {
+			ByteBuffer h = LocalizationFile.read(ch_, pos, LocalizationFile.BLOCK_HEADER_BYTES);
+			if (readPayload(pos, h) == null) {
+				break;
+			}
+			blocks_.add(new BlockInfo(pos, h.getInt(4), h.getInt(8), h.getInt(12), h.getDouble(16), h.getDouble(24), h.getDouble(32), h.getDouble(40)));
+			pos += LocalizationFile.BLOCK_HEADER_BYTES + h.getInt(48);
+		}
+		dataEnd_ = pos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		ch_.close();
+	}
+}
@@ -0,0 +1,279 @@
+package edu.uchc.octane.analyze;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import edu.uchc.octane.analyze.LocalizationFile.BlockInfo;
+
+/**
+ * A LocalizationSink that writes a {@link LocalizationFile}. Frames are buffered until a block
+ * is full, so the memory use does not grow with the size of the data set.
+ */
+public class LocalizationFileWriter implements LocalizationSink {
+
+	final String path_;
+	final boolean append_;
+	int blockRows_ = 16384; // localizations per block
+	double quantum_ = 0.1; // of the x/y/z columns, in their units
+	long flushInterval_ = 0; // ms, 0 to write only full blocks
+	long lastFlush_;
+
+	FileChannel ch_;
+	long position_; // end of the last block
+	String [] headers_;
+	byte [] codecs_;
+	double [] quanta_;
+	int xCol_, yCol_;
+	final ArrayList<BlockInfo> blocks_ = new ArrayList<BlockInfo>();
+
+	final ColumnBufferSink buffer_ = new ColumnBufferSink(); // the current block
+	int blockFirstFrame_ = -1, blockLastFrame_; // -1 if no frames are buffered
+	ByteBuffer out_ = ByteBuffer.allocate(0);
+	final CRC32 crc_ = new CRC32();
+
+	/**
+	 * @param path The output file
+	 * @param append Continue an existing file instead of replacing it. The column names must match.
+	 */
+	public LocalizationFileWriter(String path, boolean append) {
+		path_ = path;
+		append_ = append;
+	}
+
+	/**
+	 * @param path The output file, replaced if it exists
+	 */
+	public LocalizationFileWriter(String path) {
+		this(path, false);
+	}
+
+	/**
+	 * @param rows Number of localizations per block. Smaller blocks make reads of short time windows faster.
+	 */
+	public void setBlockRows(int rows) {
+		blockRows_ = Math.max(1, rows);
+	}
+
+	/**
+	 * @param quantum Resolution of the stored coordinates, e.g. 0.1 nm
+	 */
+	public void setQuantum(double quantum) {
+		quantum_ = quantum;
+	}
+
+	/**
+	 * Write the buffered frames at least this often, and sync them to the disk, so that little
+	 * is lost if the run is killed.
+	 * @param millis The interval, or 0 to only write full blocks
+	 */
+	public void setFlushInterval(long millis) {
+		flushInterval_ = millis;
+	}
+
+	/**
+	 * @return The last frame written to the file so far, or 0
+	 */
+	public int getLastFrame() {
+		return blocks_.isEmpty() ? 0 : blocks_.get(blocks_.size() - 1).lastFrame_;
+	}
+
+	@Override
+	public void begin(String [] headers) throws IOException {
+		File f = new File(path_);
+		if (append_ && f.exists() && f.length() > 0) {
+			long end;
+			try (LocalizationFileReader reader = new LocalizationFileReader(path_)) {
+				if (!Arrays.equals(reader.getHeaders(), headers)) {
+					throw new IOException("Columns do not match the existing file " + path_);
+				}
+				codecs_ = reader.codecs_;
+				quanta_ = reader.quanta_;
+				blocks_.addAll(reader.blocks_);
+				end = reader.dataEnd_;
+			}
+			// drop the index, it is written again at the end
+			ch_ = FileChannel.open(f.toPath(), StandardOpenOption.WRITE);
+			ch_.truncate(end);
+			position_ = end;
+		} else {
+			ch_ = FileChannel.open(f.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+			codecs_ = new byte[headers.length];
+			quanta_ = new double[headers.length];
+			for (int k = 0; k < headers.length; k++) {
+				String s = headers[k];
+				if (s.equals("frame")) {
+					codecs_[k] = LocalizationFile.CODEC_DELTA;
+					quanta_[k] = 1;
+				} else if (s.equals("x") || s.equals("y") || s.equals("z")) {
+					codecs_[k] = LocalizationFile.CODEC_DELTA;
+					quanta_[k] = quantum_;
+				} else {
+					codecs_[k] = LocalizationFile.CODEC_RAW;
+				}
+			}
+			writeHeader(headers);
+		}
+		headers_ = headers;
+		xCol_ = Arrays.asList(headers).indexOf("x");
+		yCol_ = Arrays.asList(headers).indexOf("y");
+		buffer_.begin(headers);
+		blockFirstFrame_ = -1;
+		lastFlush_ = System.currentTimeMillis();
+	}
+
+	@Override
+	public void addFrame(int frame, List<double[]> rows) throws IOException {
+		if (blockFirstFrame_ < 0) {
+			blockFirstFrame_ = frame;
+		}
+		blockLastFrame_ = frame;
+		buffer_.addFrame(frame, rows);
+		if (buffer_.size() >= blockRows_) {
+			flush();
+		} else if (flushInterval_ > 0 && System.currentTimeMillis() - lastFlush_ >= flushInterval_) {
+			flush();
+			ch_.force(false);
+		}
+	}
+
+	@Override
+	public void end() throws IOException {
+		try {
+			flush();
+			writeIndex();
+			ch_.force(false);
+		} finally {
+			ch_.close();
+		}
+	}
+
+	/**
+	 * Close the file without writing the buffered frames and the index. The blocks written
+	 * so far are recovered by {@link LocalizationFileReader}, and the file can be appended to.
+	 */
+	@Override
+	public void abort() {
+		if (ch_ == null) {
+			return;
+		}
+		try {
+			ch_.close();
+		} catch (IOException e) {
+			// nothing more to release
+		}
+	}
+
+	/**
+	 * Write the buffered frames as a block, even if it is not full
+	 */
+	public void flush() throws IOException {
+		if (blockFirstFrame_ < 0) {
+			return;
+		}
+		final int n = buffer_.size();
+		final double [][] columns = buffer_.columns_;
+
+		double minX = Double.NaN, minY = Double.NaN, maxX = Double.NaN, maxY = Double.NaN;
+		if (xCol_ >= 0 && yCol_ >= 0 && n > 0) {
+			minX = maxX = columns[xCol_][0];
+			minY = maxY = columns[yCol_][0];
+			for (int i = 1; i < n; i++) {
+				minX = Math.min(minX, columns[xCol_][i]);
+				maxX = Math.max(maxX, columns[xCol_][i]);
+				minY = Math.min(minY, columns[yCol_][i]);
+				maxY = Math.max(maxY, columns[yCol_][i]);
+			}
+		}
+
+		// a varint takes at most 10 bytes
+		int capacity = LocalizationFile.BLOCK_HEADER_BYTES + 10 * n * columns.length;
+		if (out_.capacity() < capacity) {
+			out_ = ByteBuffer.allocate(capacity);
+		}
+		out_.clear();
+		out_.order(ByteOrder.LITTLE_ENDIAN);
+		out_.position(LocalizationFile.BLOCK_HEADER_BYTES);
+		for (int k = 0; k < columns.length; k++) {
+			final double [] c = columns[k];
+			if (codecs_[k] == LocalizationFile.CODEC_DELTA) {
+				final double q = quanta_[k];
+				long prev = 0;
+				for (int i = 0; i < n; i++) {
+					long v = Math.round(c[i] / q);
+					LocalizationFile.putVarLong(out_, LocalizationFile.zigzag(v - prev));
+					prev = v;
+				}
+			} else {
+				for (int i = 0; i < n; i++) {
+					out_.putDouble(c[i]);
+				}
+			}
+		}
+		int payload = out_.position() - LocalizationFile.BLOCK_HEADER_BYTES;
+		crc_.reset();
+		crc_.update(out_.array(), LocalizationFile.BLOCK_HEADER_BYTES, payload);
+
+		out_.putInt(0, LocalizationFile.BLOCK_MAGIC);
+		out_.putInt(4, n);
+		out_.putInt(8, blockFirstFrame_);
+		out_.putInt(12, blockLastFrame_);
+		out_.putDouble(16, minX);
+		out_.putDouble(24, minY);
+		out_.putDouble(32, maxX);
+		out_.putDouble(40, maxY);
+		out_.putInt(48, payload);
+		out_.putInt(52, (int) crc_.getValue());
+		out_.flip();
+
+		blocks_.add(new BlockInfo(position_, n, blockFirstFrame_, blockLastFrame_, minX, minY, maxX, maxY));
+		position_ = write(out_, position_);
+
+		buffer_.size_ = 0;
+		blockFirstFrame_ = -1;
+		lastFlush_ = System.currentTimeMillis();
+	}
+
+	void writeHeader(String [] headers) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(12 + headers.length * 11 + 4 * String.join("", headers).length()).order(ByteOrder.LITTLE_ENDIAN);
+		b.putLong(LocalizationFile.MAGIC);
+		b.putInt(headers.length);
+		for (int k = 0; k < headers.length; k++) {
+			byte [] name = headers[k].getBytes(StandardCharsets.UTF_8);
+			b.putShort((short) name.length);
+			b.put(name);
+			b.put(codecs_[k]);
+			b.putDouble(quanta_[k]);
+		}
+		b.flip();
+		position_ = write(b, 0);
+	}
+
+	void writeIndex() throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(8 + blocks_.size() * LocalizationFile.INDEX_ENTRY_BYTES + LocalizationFile.TRAILER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		b.putInt(LocalizationFile.INDEX_MAGIC);
+		b.putInt(blocks_.size());
+		for (BlockInfo info : blocks_) {
+			info.write(b);
+		}
+		b.putLong(position_);
+		b.putLong(LocalizationFile.TRAILER_MAGIC);
+		b.flip();
+		write(b, position_);
+	}
+
+	long write(ByteBuffer b, long pos) throws IOException {
+		while (b.hasRemaining()) {
+			pos += ch_.write(b, pos);
+		}
+		return pos;
+	}
+}
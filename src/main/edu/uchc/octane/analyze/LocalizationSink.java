@@ -0,0 +1,36 @@
+package edu.uchc.octane.analyze;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Receives localization results frame by frame, in increasing frame order.
+ * Implementations may write the data out and release it, so the caller must not
+ * hold on to the rows after handing them over.
+ */
+public interface LocalizationSink {
+
+	/**
+	 * Called once before any data.
+	 * @param headers Column names. Every row passed to {@link #addFrame} has the same length.
+	 */
+	void begin(String [] headers) throws IOException;
+
+	/**
+	 * Append the localizations of one frame.
+	 * @param frame The frame number
+	 * @param rows The localizations, possibly empty
+	 */
+	void addFrame(int frame, List<double[]> rows) throws IOException;
+
+	/**
+	 * Called once after the last frame.
+	 */
+	void end() throws IOException;
+
+	/**
+	 * Called instead of {@link #end()} if the analysis fails. Releases the resources
+	 * without completing the output. Must not throw.
+	 */
+	default void abort() {}
+}
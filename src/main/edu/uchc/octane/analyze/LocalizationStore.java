@@ -0,0 +1,363 @@
+package edu.uchc.octane.analyze;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.uchc.octane.core.datasource.OctaneDataFile;
+
+/**
+ * A LocalizationSink that keeps the localizations off the Java heap, in direct buffers of
+ * primitive columns, and indexes them for queries of a rectangle and a range of frames.
+ * <p>
+ * The rows arrive in frame order, so the frame index is the first row of each frame, searched
+ * by bisection. When the analysis ends, the rows are also sorted into a uniform grid of square
+ * cells. The rows of a cell stay in frame order, so a query visits the cells that overlap the
+ * rectangle and bisects each cell to the frame range. If the frame range holds fewer rows than
+ * these cells, its rows are scanned instead. Before {@link #end}, all queries scan the frame range.
+ * <p>
+ * The columns are allocated in fixed chunks of {@value #CHUNK} rows, so the store grows without
+ * copying, and its size is not limited by the largest direct buffer.
+ * <p>
+ * Rows are addressed by index, e.g. from a {@link Visitor}, and read with {@link #get}. Not thread
+ * safe while rows are added; read-only use after {@link #end} is safe from any thread.
+ */
+public class LocalizationStore implements LocalizationSink {
+
+	final static int MAX_CELLS = 1 << 22;
+	final static int CHUNK_BITS = 16;
+	final static int CHUNK = 1 << CHUNK_BITS; // rows per chunk
+	final static int CHUNK_MASK = CHUNK - 1;
+
+	/**
+	 * Receives the rows found by a query
+	 */
+	public interface Visitor {
+		void visit(int row);
+	}
+
+	final double cellSize_; // requested, in the units of x and y
+	String [] headers_;
+	DoubleBuffer [][] columns_; // by column and chunk
+	int nChunks_;
+	int xCol_, yCol_, frameCol_;
+	int size_;
+
+	// frame index: the frames with localizations and their first row
+	IntBuffer frames_, frameStart_;
+	int nFrames_;
+	double minX_, minY_, maxX_, maxY_;
+
+	// spatial index, null until the end
+	IntBuffer cellStart_; // first entry in order_ of each cell, and the end
+	IntBuffer order_; // rows by cell, in frame order within a cell
+	double cell_; // the size used, at least cellSize_
+	int nx_, ny_;
+
+	/**
+	 * @param cellSize Size of the grid cells, in the units of x and y, e.g. nm. About the size of a
+	 * typical query, or a few times the mean distance of the localizations in a frame.
+	 */
+	public LocalizationStore(double cellSize) {
+		if (!(cellSize > 0)) {
+			throw new IllegalArgumentException("Invalid cell size: " + cellSize);
+		}
+		cellSize_ = cellSize;
+	}
+
+	public LocalizationStore() {
+		this(1000);
+	}
+
+	@Override
+	public void begin(String [] headers) {
+		List<String> h = Arrays.asList(headers);
+		xCol_ = h.indexOf("x");
+		yCol_ = h.indexOf("y");
+		frameCol_ = h.indexOf("frame");
+		if (xCol_ < 0 || yCol_ < 0 || frameCol_ < 0) {
+			throw new IllegalArgumentException("The store needs x, y and frame columns");
+		}
+		headers_ = headers;
+		columns_ = new DoubleBuffer[headers.length][16];
+		nChunks_ = 0;
+		frames_ = allocateInts(1024);
+		frameStart_ = allocateInts(1024);
+		size_ = 0;
+		nFrames_ = 0;
+		minX_ = minY_ = Double.POSITIVE_INFINITY;
+		maxX_ = maxY_ = Double.NEGATIVE_INFINITY;
+		cellStart_ = null;
+		order_ = null;
+	}
+
+	@Override
+	public void addFrame(int frame, List<double[]> rows) {
+		if (rows.isEmpty()) {
+			return;
+		}
+		if (nFrames_ > 0 && frame <= frames_.get(nFrames_ - 1)) {
+			throw new IllegalStateException("Frame " + frame + " is out of order");
+		}
+		if (nFrames_ == frames_.capacity()) {
+			frames_ = grow(frames_, nFrames_ * 2);
+			frameStart_ = grow(frameStart_, nFrames_ * 2);
+		}
+		frames_.put(nFrames_, frame);
+		frameStart_.put(nFrames_, size_);
+		nFrames_ ++;
+
+		ensureCapacity(size_ + rows.size());
+		for (double [] row : rows) {
+			final int c = size_ >>> CHUNK_BITS, i = size_ & CHUNK_MASK;
+			for (int k = 0; k < columns_.length; k++) {
+				columns_[k][c].put(i, row[k]);
+			}
+			minX_ = Math.min(minX_, row[xCol_]);
+			maxX_ = Math.max(maxX_, row[xCol_]);
+			minY_ = Math.min(minY_, row[yCol_]);
+			maxY_ = Math.max(maxY_, row[yCol_]);
+			size_ ++;
+		}
+	}
+
+	/**
+	 * Build the spatial index
+	 */
+	@Override
+	public void end() {
+		if (size_ == 0) {
+			return;
+		}
+		cell_ = cellSize_;
+		while (true) {
+			nx_ = (int) Math.min(MAX_CELLS, Math.floor((maxX_ - minX_) / cell_) + 1);
+			ny_ = (int) Math.min(MAX_CELLS, Math.floor((maxY_ - minY_) / cell_) + 1);
+			if ((long) nx_ * ny_ <= MAX_CELLS) {
+				break;
+			}
+			cell_ *= 2;
+		}
+
+		// counting sort by cell, stable so that the rows of a cell stay in frame order
+		final int nCells = nx_ * ny_;
+		cellStart_ = allocateInts(nCells + 1);
+		for (int i = 0; i < size_; i++) {
+			int c = cellOf(i) + 1;
+			cellStart_.put(c, cellStart_.get(c) + 1);
+		}
+		for (int c = 1; c <= nCells; c++) {
+			cellStart_.put(c, cellStart_.get(c) + cellStart_.get(c - 1));
+		}
+		IntBuffer next = allocateInts(nCells);
+		for (int c = 0; c < nCells; c++) {
+			next.put(c, cellStart_.get(c));
+		}
+		order_ = allocateInts(size_);
+		for (int i = 0; i < size_; i++) {
+			int c = cellOf(i);
+			int pos = next.get(c);
+			order_.put(pos, i);
+			next.put(c, pos + 1);
+		}
+	}
+
+	/**
+	 * @return Number of localizations stored
+	 */
+	public int size() {
+		return size_;
+	}
+
+	public String [] getHeaders() {
+		return headers_;
+	}
+
+	/**
+	 * @param name A column name
+	 * @return The index of the column, or -1
+	 */
+	public int getColumn(String name) {
+		return Arrays.asList(headers_).indexOf(name);
+	}
+
+	/**
+	 * @param column Column index
+	 * @param row Row index
+	 * @return The value
+	 */
+	public double get(int column, int row) {
+		return columns_[column][row >>> CHUNK_BITS].get(row & CHUNK_MASK);
+	}
+
+	public double getX(int row) {
+		return get(xCol_, row);
+	}
+
+	public double getY(int row) {
+		return get(yCol_, row);
+	}
+
+	public int getFrame(int row) {
+		return (int) get(frameCol_, row);
+	}
+
+	/**
+	 * @param frame A frame number
+	 * @return The first row of the first frame at or after it
+	 */
+	public int firstRow(int frame) {
+		int lo = 0, hi = nFrames_; // first index with frames_ >= frame
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (frames_.get(mid) < frame) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo == nFrames_ ? size_ : frameStart_.get(lo);
+	}
+
+	/**
+	 * Visit the rows of the frames firstFrame..lastFrame, in order
+	 */
+	public void query(int firstFrame, int lastFrame, Visitor visitor) {
+		for (int i = firstRow(firstFrame), end = firstRow(lastFrame + 1); i < end; i++) {
+			visitor.visit(i);
+		}
+	}
+
+	/**
+	 * Visit the rows inside a rectangle (inclusive) in the frames firstFrame..lastFrame. Rows are
+	 * visited cell by cell, in frame order within a cell.
+	 * @return Number of rows visited
+	 */
+	public int query(double minX, double minY, double maxX, double maxY, int firstFrame, int lastFrame, Visitor visitor) {
+		final int from = firstRow(firstFrame), to = firstRow(lastFrame + 1);
+		if (from >= to || minX > maxX_ || maxX < minX_ || minY > maxY_ || maxY < minY_) {
+			return 0;
+		}
+		int cnt = 0;
+		if (order_ == null) {
+			return scan(from, to, minX, minY, maxX, maxY, visitor);
+		}
+		final int cx0 = cellX(minX), cx1 = cellX(maxX), cy0 = cellY(minY), cy1 = cellY(maxY);
+
+		// scan the frame range if that is cheaper than the cells
+		long inCells = 0;
+		for (int cy = cy0; cy <= cy1 && inCells < to - from; cy++) {
+			inCells += cellStart_.get(cy * nx_ + cx1 + 1) - cellStart_.get(cy * nx_ + cx0);
+		}
+		if (inCells >= to - from) {
+			return scan(from, to, minX, minY, maxX, maxY, visitor);
+		}
+
+		for (int cy = cy0; cy <= cy1; cy++) {
+			for (int cx = cx0; cx <= cx1; cx++) {
+				int c = cy * nx_ + cx;
+				int end = cellStart_.get(c + 1);
+				for (int p = search(cellStart_.get(c), end, from); p < end; p++) {
+					int i = order_.get(p);
+					if (i >= to) {
+						break;
+					}
+					double x = getX(i), y = getY(i);
+					if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+						visitor.visit(i);
+						cnt ++;
+					}
+				}
+			}
+		}
+		return cnt;
+	}
+
+	int scan(int from, int to, double minX, double minY, double maxX, double maxY, Visitor visitor) {
+		int cnt = 0;
+		for (int i = from; i < to; i++) {
+			double x = getX(i), y = getY(i);
+			if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+				visitor.visit(i);
+				cnt ++;
+			}
+		}
+		return cnt;
+	}
+
+	// the first position in order_[lo, hi) with a row >= row
+	int search(int lo, int hi, int row) {
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (order_.get(mid) < row) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	int cellX(double x) {
+		return (int) Math.max(0, Math.min(nx_ - 1, Math.floor((x - minX_) / cell_)));
+	}
+
+	int cellY(double y) {
+		return (int) Math.max(0, Math.min(ny_ - 1, Math.floor((y - minY_) / cell_)));
+	}
+
+	int cellOf(int row) {
+		return cellY(getY(row)) * nx_ + cellX(getX(row));
+	}
+
+	/**
+	 * Copy the data into an OctaneDataFile on the heap, e.g. to save it
+	 * @return The dataset
+	 */
+	public OctaneDataFile toOctaneDataFile() {
+		double [][] data = new double[columns_.length][size_];
+		for (int k = 0; k < columns_.length; k++) {
+			for (int c = 0; c * CHUNK < size_; c++) {
+				DoubleBuffer b = columns_[k][c].duplicate();
+				b.position(0);
+				b.get(data[k], c * CHUNK, Math.min(CHUNK, size_ - c * CHUNK));
+			}
+		}
+		return new OctaneDataFile(data, headers_);
+	}
+
+	// add chunks, the rows already stored are not moved
+	void ensureCapacity(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalStateException("Too many localizations for the store");
+		}
+		while ((long) nChunks_ * CHUNK < capacity) {
+			for (int k = 0; k < columns_.length; k++) {
+				if (nChunks_ == columns_[k].length) {
+					columns_[k] = Arrays.copyOf(columns_[k], nChunks_ * 2);
+				}
+				columns_[k][nChunks_] = allocateDoubles(CHUNK);
+			}
+			nChunks_ ++;
+		}
+	}
+
+	static DoubleBuffer allocateDoubles(int n) {
+		return ByteBuffer.allocateDirect(n * 8).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+	}
+
+	static IntBuffer allocateInts(int n) {
+		return ByteBuffer.allocateDirect(n * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+	}
+
+	static IntBuffer grow(IntBuffer b, int capacity) {
+		IntBuffer n = allocateInts(capacity);
+		IntBuffer old = b.duplicate();
+		old.position(0);
+		n.put(old);
+		return n;
+	}
+}
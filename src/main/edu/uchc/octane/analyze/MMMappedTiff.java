@@ -0,0 +1,367 @@
+package edu.uchc.octane.analyze;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Memory-mapped reader for uncompressed 16-bit Micro-Manager TIFF stacks.
+ * The IFDs are indexed when the data set is opened. Frames are then served as
+ * views of the mapped files, without copying or allocating. All channels, slices and
+ * positions are indexed; the methods without coordinates read channel 0, slice 0, position 0.
+ * <p>
+ * For data sets that are still being written, {@link #update()} indexes and maps only the files
+ * and images added since the last update. Each channel / slice / position is served up to its
+ * first frame that is not completely written yet.
+ */
+public class MMMappedTiff {
+
+	final static int MM_INDEX_MAP_OFFSET_HEADER = 54773648;
+	final static int MM_INDEX_MAP_HEADER = 3453623;
+
+	final static int TAG_IMAGE_WIDTH = 256;
+	final static int TAG_IMAGE_LENGTH = 257;
+	final static int TAG_BITS_PER_SAMPLE = 258;
+	final static int TAG_COMPRESSION = 259;
+	final static int TAG_STRIP_OFFSETS = 273;
+	final static int TAG_SAMPLES_PER_PIXEL = 277;
+
+	final int width_, height_;
+	final long frameBytes_;
+	final File dir_;
+	volatile HashMap<Long, ShortBuffer[]> frames_ = new HashMap<Long, ShortBuffer[]>(); // by coordinates, replaced by updates
+
+	// guarded by this
+	final HashMap<Long, TreeMap<Integer, ShortBuffer>> mapped_ = new HashMap<Long, TreeMap<Integer, ShortBuffer>>(); // all frames mapped so far
+	final TreeMap<String, FileState> files_ = new TreeMap<String, FileState>();
+
+	// how far a file has been indexed
+	static class FileState {
+		ByteOrder order_; // null until the header is complete
+		boolean indexMap_; // indexed by the MM index map, else by the IFD chain
+		int entries_; // index map entries done
+		long lastIfd_ = -1; // last IFD done in the chain
+		int nextFrame_; // frame number of the next IFD in the chain
+	}
+
+	/**
+	 * Index and map all TIFF files in the directory.
+	 * @param dir The Micro-Manager data set
+	 * @param width Expected frame width
+	 * @param height Expected frame height
+	 * @throws IOException If the files can not be read, or the data is not uncompressed 16-bit
+	 */
+	public MMMappedTiff(String dir, int width, int height) throws IOException {
+		width_ = width;
+		height_ = height;
+		frameBytes_ = 2L * width * height;
+		dir_ = new File(dir);
+		if (listFiles().length == 0) {
+			throw new IOException("No TIFF files in " + dir);
+		}
+		update();
+	}
+
+	File [] listFiles() {
+		File [] files = dir_.listFiles((d, name) -> name.toLowerCase().endsWith(".tif"));
+		if (files == null) {
+			return new File[0];
+		}
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 * Index and map the images written since the last update. Known files are only checked for
+	 * new index map entries or IFDs; the frames found before are neither read nor mapped again.
+	 * @return True if frames were added
+	 * @throws IOException If a file can not be read, or the data is not uncompressed 16-bit
+	 */
+	public synchronized boolean update() throws IOException {
+		boolean added = false;
+		for (File f : listFiles()) {
+			FileState state = files_.get(f.getName());
+			if (state == null) {
+				state = new FileState();
+				files_.put(f.getName(), state);
+			}
+			added |= mapFile(f, state);
+		}
+		if (added) {
+			// publish the complete part of each unit
+			HashMap<Long, ShortBuffer[]> frames = new HashMap<Long, ShortBuffer[]>();
+			for (Map.Entry<Long, TreeMap<Integer, ShortBuffer>> e : mapped_.entrySet()) {
+				TreeMap<Integer, ShortBuffer> unit = e.getValue();
+				int n = 0;
+				while (unit.containsKey(n)) {
+					n++;
+				}
+				frames.put(e.getKey(), unit.headMap(n).values().toArray(new ShortBuffer[n]));
+			}
+			frames_ = frames;
+		}
+		return added;
+	}
+
+	static long key(int channel, int slice, int position) {
+		return ((long) position << 40) | ((long) slice << 20) | channel;
+	}
+
+	ShortBuffer [] getUnit(int channel, int slice, int position) {
+		ShortBuffer [] unit = frames_.get(key(channel, slice, position));
+		return unit == null ? new ShortBuffer[0] : unit;
+	}
+
+	/**
+	 * @return Number of frames found of channel 0, slice 0, position 0
+	 */
+	public int getSize() {
+		return getSize(0, 0, 0);
+	}
+
+	/**
+	 * @return Number of frames found of the channel, slice and position
+	 */
+	public int getSize(int channel, int slice, int position) {
+		return getUnit(channel, slice, position).length;
+	}
+
+	/**
+	 * Get a read-only view of the pixels of a frame. The view is shared, so only absolute get
+	 * methods should be used on it.
+	 * @param n Frame number, 1-based
+	 * @return The pixels, in row order
+	 */
+	public ShortBuffer getFrameBuffer(int n) {
+		return getFrameBuffer(0, 0, 0, n);
+	}
+
+	/**
+	 * @see #getFrameBuffer(int)
+	 */
+	public ShortBuffer getFrameBuffer(int channel, int slice, int position, int n) {
+		return getUnit(channel, slice, position)[n - 1];
+	}
+
+	/**
+	 * Copy the pixels of a frame.
+	 * @param n Frame number, 1-based
+	 * @param dst The destination array, or null to allocate a new one
+	 * @return The pixels
+	 */
+	public short [] getPixels(int n, short [] dst) {
+		return getPixels(0, 0, 0, n, dst);
+	}
+
+	/**
+	 * @see #getPixels(int, short[])
+	 */
+	public short [] getPixels(int channel, int slice, int position, int n, short [] dst) {
+		if (dst == null) {
+			dst = new short[width_ * height_];
+		}
+		ShortBuffer b = getFrameBuffer(channel, slice, position, n).duplicate();
+		b.get(dst, 0, width_ * height_);
+		return dst;
+	}
+
+	// index and map the images of one file added since it was last seen
+	boolean mapFile(File file, FileState state) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel ch = raf.getChannel();
+			long size = ch.size();
+			if (state.order_ == null) {
+				if (size < 16) {
+					return false; // just created
+				}
+				ByteBuffer header = read(ch, 0, 16, ByteOrder.LITTLE_ENDIAN);
+				ByteOrder order;
+				if (header.get(0) == 'I' && header.get(1) == 'I') {
+					order = ByteOrder.LITTLE_ENDIAN;
+				} else if (header.get(0) == 'M' && header.get(1) == 'M') {
+					order = ByteOrder.BIG_ENDIAN;
+				} else {
+					throw new IOException("Not a TIFF file: " + file);
+				}
+				header.order(order);
+				if (header.getShort(2) != 42) {
+					throw new IOException("Not a classic TIFF file: " + file);
+				}
+				state.order_ = order;
+				state.indexMap_ = header.getInt(8) == MM_INDEX_MAP_OFFSET_HEADER && header.getInt(12) != 0;
+				if (! state.indexMap_) {
+					// no index map, e.g. the acquisition was aborted or is running. Assume a single channel / slice /
+					// position sequence continuing from the previous file.
+					TreeMap<Integer, ShortBuffer> previous = mapped_.get(key(0, 0, 0));
+					state.nextFrame_ = previous == null ? 0 : previous.lastKey() + 1;
+				}
+			}
+			ByteOrder order = state.order_;
+
+			// coordinates -> frame number -> pixel offset, of the images that are completely written
+			HashMap<Long, TreeMap<Integer, Long>> offsets = new HashMap<Long, TreeMap<Integer, Long>>();
+			if (state.indexMap_) {
+				long mapOffset = read(ch, 12, 4, order).getInt(0) & 0xffffffffL;
+				ByteBuffer b = read(ch, mapOffset, 8, order);
+				if (b.getInt(0) != MM_INDEX_MAP_HEADER) {
+					throw new IOException("Corrupted index map: " + file);
+				}
+				int count = b.getInt(4);
+				if (count > state.entries_) {
+					ByteBuffer entries = read(ch, mapOffset + 8 + 20L * state.entries_, 20L * (count - state.entries_), order);
+					for (int i = state.entries_; i < count; i++) {
+						int channel = entries.getInt();
+						int slice = entries.getInt();
+						int frame = entries.getInt();
+						int position = entries.getInt();
+						long ifd = entries.getInt() & 0xffffffffL;
+						long pixels = complete(ch, ifd, order, size);
+						if (pixels < 0) {
+							break; // retried at the next update
+						}
+						offsets.computeIfAbsent(key(channel, slice, position), k -> new TreeMap<Integer, Long>()).put(frame, pixels);
+						state.entries_ = i + 1;
+					}
+				}
+			} else {
+				TreeMap<Integer, Long> unit = new TreeMap<Integer, Long>();
+				offsets.put(key(0, 0, 0), unit);
+				long ifd = state.lastIfd_ < 0 ? read(ch, 4, 4, order).getInt(0) & 0xffffffffL : nextIfd(ch, state.lastIfd_, order);
+				while (ifd != 0) {
+					long pixels = complete(ch, ifd, order, size);
+					if (pixels < 0) {
+						break;
+					}
+					unit.put(state.nextFrame_++, pixels);
+					state.lastIfd_ = ifd;
+					ifd = nextIfd(ch, ifd, order);
+				}
+			}
+
+			boolean added = false;
+			for (Map.Entry<Long, TreeMap<Integer, Long>> e : offsets.entrySet()) {
+				if (! e.getValue().isEmpty()) {
+					mapUnit(ch, e.getValue(), order, mapped_.computeIfAbsent(e.getKey(), k -> new TreeMap<Integer, ShortBuffer>()), file);
+					added = true;
+				}
+			}
+			return added;
+		} finally {
+			// the mappings stay valid after the file is closed
+			raf.close();
+		}
+	}
+
+	// the pixel offset of the image of the IFD, or -1 if the IFD or the pixels are not completely written yet
+	long complete(FileChannel ch, long ifd, ByteOrder order, long size) throws IOException {
+		if (ifd + 2 > size) {
+			return -1;
+		}
+		int nEntries = read(ch, ifd, 2, order).getShort(0) & 0xffff;
+		if (ifd + 6 + 12L * nEntries > size) {
+			return -1;
+		}
+		long pixels = pixelOffset(ch, ifd, order);
+		return pixels + frameBytes_ > size ? -1 : pixels;
+	}
+
+	// the offset of the IFD following the IFD, 0 if there is none yet
+	static long nextIfd(FileChannel ch, long ifd, ByteOrder order) throws IOException {
+		int nEntries = read(ch, ifd, 2, order).getShort(0) & 0xffff;
+		return read(ch, ifd + 2 + 12L * nEntries, 4, order).getInt(0) & 0xffffffffL;
+	}
+
+	// map the frames of one channel / slice / position in segments of less than 2GB, each starting at a frame
+	void mapUnit(FileChannel ch, TreeMap<Integer, Long> offsets, ByteOrder order, TreeMap<Integer, ShortBuffer> frames, File file) throws IOException {
+		ArrayList<Integer> segmentFrames = new ArrayList<Integer>();
+		long segStart = -1, segEnd = -1;
+		for (Integer frame : offsets.keySet()) {
+			long offset = offsets.get(frame);
+			if (offset + frameBytes_ > ch.size()) {
+				throw new IOException("Truncated frame " + frame + " in " + file);
+			}
+			if (segStart >= 0 && (offset < segStart || offset + frameBytes_ - segStart > Integer.MAX_VALUE)) {
+				mapSegment(ch, segStart, segEnd, segmentFrames, offsets, order, frames);
+				segStart = -1;
+			}
+			if (segStart < 0) {
+				segStart = offset;
+				segEnd = offset;
+				segmentFrames.clear();
+			}
+			segEnd = Math.max(segEnd, offset + frameBytes_);
+			segmentFrames.add(frame);
+		}
+		if (segStart >= 0) {
+			mapSegment(ch, segStart, segEnd, segmentFrames, offsets, order, frames);
+		}
+	}
+
+	void mapSegment(FileChannel ch, long start, long end, ArrayList<Integer> segmentFrames, TreeMap<Integer, Long> offsets, ByteOrder order, TreeMap<Integer, ShortBuffer> frames) throws IOException {
+		MappedByteBuffer seg = ch.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+		seg.order(order);
+		for (Integer frame : segmentFrames) {
+			ByteBuffer b = seg.duplicate().order(order);
+			int pos = (int) (offsets.get(frame) - start);
+			b.position(pos);
+			b.limit(pos + (int) frameBytes_);
+			frames.put(frame, b.slice().order(order).asShortBuffer().asReadOnlyBuffer());
+		}
+	}
+
+	// parse the IFD and return the offset of the pixel data
+	long pixelOffset(FileChannel ch, long ifd, ByteOrder order) throws IOException {
+		int nEntries = read(ch, ifd, 2, order).getShort(0) & 0xffff;
+		ByteBuffer entries = read(ch, ifd + 2, 12L * nEntries, order);
+		long width = -1, height = -1, bits = -1, compression = 1, samples = 1, stripOffset = -1;
+		for (int i = 0; i < nEntries; i++) {
+			int tag = entries.getShort(i * 12) & 0xffff;
+			int type = entries.getShort(i * 12 + 2) & 0xffff;
+			long count = entries.getInt(i * 12 + 4) & 0xffffffffL;
+			// SHORT or LONG values fitting in the entry
+			long value = (type == 3) ? (entries.getShort(i * 12 + 8) & 0xffff) : (entries.getInt(i * 12 + 8) & 0xffffffffL);
+			switch (tag) {
+			case TAG_IMAGE_WIDTH: width = value; break;
+			case TAG_IMAGE_LENGTH: height = value; break;
+			case TAG_BITS_PER_SAMPLE: bits = value; break;
+			case TAG_COMPRESSION: compression = value; break;
+			case TAG_SAMPLES_PER_PIXEL: samples = value; break;
+			case TAG_STRIP_OFFSETS:
+				if (count != 1) {
+					throw new IOException("Multi-strip images are not supported");
+				}
+				stripOffset = value;
+				break;
+			}
+		}
+		if (width != width_ || height != height_ || bits != 16 || compression != 1 || samples != 1 || stripOffset < 0) {
+			throw new IOException("Only uncompressed 16-bit images of the same size can be mapped");
+		}
+		return stripOffset;
+	}
+
+	static ByteBuffer read(FileChannel ch, long pos, long len, ByteOrder order) throws IOException {
+		if (len > Integer.MAX_VALUE || pos + len > ch.size()) {
+			throw new IOException("Read beyond the end of file");
+		}
+		ByteBuffer b = ByteBuffer.allocate((int) len).order(order);
+		while (b.hasRemaining()) {
+			if (ch.read(b, pos + b.position()) < 0) {
+				throw new IOException("Unexpected end of file");
+			}
+		}
+		b.flip();
+		return b;
+	}
+}
@@ -8,29 +8,138 @@ import ij.ImagePlus;
 import ij.io.DirectoryChooser;
 
 import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import org.json.JSONException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import edu.uchc.octane.core.utils.MMTaggedTiff;
 import edu.uchc.octane.core.utils.TaggedImage;
 
+/**
+ * A Micro-Manager data set as a virtual stack of the time points of one channel, slice and
+ * position. The other channels, slices and positions are available as views, see {@link #getUnits()}, 
+ * which share the file readers and the frame cache of the stack they were created from.
+ */
 public class MMVirtualStack extends FileInfoVirtualStack {
+	final static Logger logger = LoggerFactory.getLogger(MMVirtualStack.class);
+
+	private MMVirtualStack source = this; // owns the readers and the cache
 	private String pathname;
 	private int nFrames;
+	private int nChannels = 1, nSlices = 1, nPositions = 1;
+	private int channel, slice, position;
+	private int unit; // index of the channel / slice / position
+	private volatile int availableFrames; // less than nFrames while the acquisition is running
 	private int width, height;
-	private MMTaggedTiff stackReader;
+	private volatile MMTaggedTiff stackReader;
+	private volatile MMMappedTiff mappedReader; // null if the data can not be memory mapped
+
+	// frames read recently or ahead of time, of all views
+	private FrameCache cache;
+	private int readAheadFrames;
+	private ExecutorService readAheadWorker;
+	private final ConcurrentHashMap<Integer, Future<short[]>> pendingReads = new ConcurrentHashMap<Integer, Future<short[]>>();
+	private volatile int lastRequested = 0;
 
 	private void init(String dir) throws IOException, JSONException {
 		this.pathname = dir;
 		this.stackReader = new MMTaggedTiff(dir, false, false);
 		this.nFrames = stackReader.getSummaryMetadata().getInt("Frames");
+		this.nChannels = Math.max(1, stackReader.getSummaryMetadata().optInt("Channels", 1));
+		this.nSlices = Math.max(1, stackReader.getSummaryMetadata().optInt("Slices", 1));
+		this.nPositions = Math.max(1, stackReader.getSummaryMetadata().optInt("Positions", 1));
+		this.availableFrames = nFrames;
 		TaggedImage curImg= stackReader.getImage(0 /*channel*/, 0 /*slice*/, 0 /*frame*/, 0 /*position*/);
 		width = curImg.tags.getInt("Width");
 		short [] pix = (short []) curImg.pix;
 		height = pix.length / width;
 		setBitDepth(16);
+
+		mapFiles();
+
+		cache = new FrameCache((long) GlobalPrefs.frameCacheSize_ << 20, 2L * width * height);
+		// prefetched frames must stay in the cache until they are used
+		readAheadFrames = Math.max(0, Math.min(GlobalPrefs.readAheadFrames_, cache.getCapacity() / 2));
+		if (readAheadFrames > 0) {
+			readAheadWorker = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "octane-readahead");
+				t.setDaemon(true);
+				return t;
+			});
+		}
 	}
 	
+	private void mapFiles() {
+		mappedReader = null;
+		if (GlobalPrefs.memoryMappedIO_) {
+			try {
+				mappedReader = new MMMappedTiff(pathname, width, height);
+			} catch (IOException e) {
+				logger.info("Data can not be memory mapped: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Check for frames written since the data set was opened, for data sets that are 
+	 * still being acquired. Memory mapped data only index the images added since the last
+	 * refresh. Otherwise the files are reopened, the previous reader is closed, and the last 
+	 * frame present is found by bisection, assuming frames are written in order.
+	 * @return Number of frames that can be read now
+	 * @throws IOException If the files can not be reopened
+	 */
+	public int refresh() throws IOException {
+		synchronized(source) {
+			MMMappedTiff mapped = source.mappedReader;
+			if (mapped != null) {
+				try {
+					mapped.update();
+					availableFrames = Math.min(nFrames, mapped.getSize(channel, slice, position));
+					return availableFrames;
+				} catch (IOException e) {
+					logger.info("Data can no longer be memory mapped: " + e.getMessage());
+					source.mappedReader = null;
+				}
+			}
+			MMTaggedTiff reader = new MMTaggedTiff(pathname, false, false);
+			// find the last available frame in [lo, hi] 
+			int lo = 0, hi = nFrames;
+			while (lo < hi) {
+				int mid = (lo + hi + 1) / 2;
+				if (reader.getImage(channel, slice, mid - 1 /*frame*/, position) != null) {
+					lo = mid;
+				} else {
+					hi = mid - 1;
+				}
+			}
+			MMTaggedTiff old = source.stackReader;
+			source.stackReader = reader;
+			// readers in progress finish first, see readFrame()
+			synchronized(old) {
+				old.close();
+			}
+			availableFrames = lo;
+			return lo;
+		}
+	}
+
+	/**
+	 * @return Number of frames written so far. Equals {@link #getSize()} unless {@link #refresh()} found fewer frames.
+	 */
+	public int getAvailableFrames() {
+		return availableFrames;
+	}
+
 	private ImagePlus open() {
 		ImagePlus imp = new ImagePlus();
 		String name = pathname.replaceAll("[\\/\\\\]$", "");
@@ -46,6 +155,78 @@ public class MMVirtualStack extends FileInfoVirtualStack {
 		init(pathname);
 	}
 
+	// a view of another channel / slice / position
+	private MMVirtualStack(MMVirtualStack source, int channel, int slice, int position) {
+		this.source = source;
+		this.pathname = source.pathname;
+		this.nFrames = source.nFrames;
+		this.nChannels = source.nChannels;
+		this.nSlices = source.nSlices;
+		this.nPositions = source.nPositions;
+		this.availableFrames = source.availableFrames;
+		this.width = source.width;
+		this.height = source.height;
+		this.channel = channel;
+		this.slice = slice;
+		this.position = position;
+		this.unit = (position * nSlices + slice) * nChannels + channel;
+		setBitDepth(16);
+	}
+
+	/**
+	 * Get all channels, slices and positions of the data set, e.g. to analyze them as independent 
+	 * work units. The views share the readers and the frame cache of this stack. 
+	 * @return One stack per channel, slice and position, ordered by position, then slice, then channel
+	 */
+	public List<MMVirtualStack> getUnits() {
+		ArrayList<MMVirtualStack> units = new ArrayList<MMVirtualStack>();
+		for (int p = 0; p < nPositions; p++) {
+			for (int z = 0; z < nSlices; z++) {
+				for (int c = 0; c < nChannels; c++) {
+					if (source.channel == c && source.slice == z && source.position == p) {
+						units.add(source);
+					} else {
+						units.add(new MMVirtualStack(source, c, z, p));
+					}
+				}
+			}
+		}
+		return units;
+	}
+
+	public int getNumChannels() {
+		return nChannels;
+	}
+
+	public int getNumSlices() {
+		return nSlices;
+	}
+
+	public int getNumPositions() {
+		return nPositions;
+	}
+
+	/**
+	 * @return The channel of the frames of this stack, 0-based
+	 */
+	public int getChannel() {
+		return channel;
+	}
+
+	/**
+	 * @return The slice of the frames of this stack, 0-based
+	 */
+	public int getSlice() {
+		return slice;
+	}
+
+	/**
+	 * @return The position of the frames of this stack, 0-based
+	 */
+	public int getPosition() {
+		return position;
+	}
+
 	@Override
 	public void run(String arg) {
 		DirectoryChooser dc = new DirectoryChooser("Select Data");
@@ -100,13 +281,162 @@ public class MMVirtualStack extends FileInfoVirtualStack {
 		if (n < 1 || n > nFrames)
 			throw new IllegalArgumentException("Frame number out of range.");
 
-		TaggedImage img= stackReader.getImage(0 /*channel*/, 0 /*slice*/, n-1 /*frame*/, 0 /*position*/);
-		if (img == null) {
+		short [] data = getPixels(n);
+		if (data == null) {
 			IJ.error("Error reading Frame " + n);
 			return null;
 		}
-		short [] data = (short []) img.pix; 
 
 		return new ShortProcessor(width, height, data, null);
 	}
+
+	/**
+	 * Get a copy of the pixels of a frame, which the caller may modify, as ImageJ expects of a stack.
+	 * @param n Frame number, 1-based
+	 * @return The pixels, or null if the frame could not be read
+	 * @see #getCachedPixels(int)
+	 */
+	@Override
+	public short [] getPixels(int n) {
+		short [] pix = getCachedPixels(n);
+		return pix == null ? null : pix.clone();
+	}
+
+	/**
+	 * Get the pixels of a frame, from the cache if possible. Forward access starts
+	 * background reading of the following frames. The returned array may be shared with 
+	 * the cache and must not be modified. 
+	 * @param n Frame number, 1-based
+	 * @return The pixels, or null if the frame could not be read
+	 */
+	public short [] getCachedPixels(int n) {
+		MMMappedTiff mapped = source.mappedReader;
+		if (mapped != null && n <= mapped.getSize(channel, slice, position)) {
+			// the OS page cache does the caching and read-ahead here
+			return mapped.getPixels(channel, slice, position, n, null);
+		}
+
+		final FrameCache cache = source.cache;
+		final int key = cacheKey(n);
+		Future<short[]> pending = source.pendingReads.get(key);
+		if (pending != null) {
+			try {
+				pending.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				// fall through and read it again
+			}
+		}
+
+		short [] pix = cache.get(key);
+		if (pix == null) {
+			pix = readFrame(n);
+			if (pix != null) {
+				cache.put(key, pix);
+			}
+		}
+
+		// Batch workers request frames nearly, but not exactly, in order
+		int last = lastRequested;
+		lastRequested = n;
+		if (n > last && n - last <= source.readAheadFrames) {
+			scheduleReadAhead(n);
+		}
+		return pix;
+	}
+
+	// the cache is shared by all views
+	int cacheKey(int n) {
+		return unit * nFrames + n;
+	}
+
+	/**
+	 * @return True if the frame is served from the memory mapped files
+	 */
+	public boolean isMapped(int n) {
+		MMMappedTiff reader = source.mappedReader;
+		return reader != null && n <= reader.getSize(channel, slice, position);
+	}
+
+	/**
+	 * Get the pixels of a frame without copying. Only available for memory mapped data.
+	 * @param n Frame number, 1-based
+	 * @return A shared read-only view of the pixels, or null if the frame is not mapped. Use absolute gets only. 
+	 */
+	public ShortBuffer getFrameBuffer(int n) {
+		MMMappedTiff reader = source.mappedReader;
+		return (reader != null && n <= reader.getSize(channel, slice, position)) ? reader.getFrameBuffer(channel, slice, position, n) : null;
+	}
+
+	short [] readFrame(int n) {
+		TaggedImage img = null;
+		// the reader is shared by all batch workers and views; only the file access is serialized 
+		for (boolean done = false; ! done; ) {
+			MMTaggedTiff reader = source.stackReader;
+			synchronized(reader) {
+				// a refresh may have replaced and closed it meanwhile
+				if (reader == source.stackReader) {
+					img = reader.getImage(channel, slice, n-1 /*frame*/, position);
+					done = true;
+				}
+			}
+		}
+		return img == null ? null : (short []) img.pix;
+	}
+
+	void scheduleReadAhead(int n) {
+		final FrameCache cache = source.cache;
+		final ConcurrentHashMap<Integer, Future<short[]>> pendingReads = source.pendingReads;
+		int last = Math.min(n + source.readAheadFrames, availableFrames);
+		for (int i = n + 1; i <= last; i++) {
+			final int frame = i, key = cacheKey(i);
+			if (cache.contains(key) || pendingReads.containsKey(key)) {
+				continue;
+			}
+			FutureTask<short[]> task = new FutureTask<short[]>(() -> {
+				try {
+					short [] pix = readFrame(frame);
+					if (pix != null) {
+						cache.put(key, pix);
+						cache.countPrefetch();
+					}
+					return pix;
+				} finally {
+					pendingReads.remove(key);
+				}
+			});
+			if (pendingReads.putIfAbsent(key, task) == null) {
+				source.readAheadWorker.execute(task);
+			}
+		}
+	}
+
+	/**
+	 * @return The frame cache, which also holds the hit / miss / prefetch counters
+	 */
+	public FrameCache getCache() {
+		return source.cache;
+	}
+
+	/**
+	 * Stop the read-ahead worker, drop the cached frames and release the memory mapped files.
+	 * Closing a view closes the stack it was created from.
+	 */
+	public void close() {
+		if (source != this) {
+			source.close();
+			return;
+		}
+		if (readAheadWorker != null) {
+			readAheadWorker.shutdownNow();
+		}
+		pendingReads.clear();
+		cache.clear();
+		synchronized(stackReader) {
+			stackReader.close();
+			// the mappings are unmapped when they are collected, which unlocks the files on Windows
+			mappedReader = null;
+		}
+	}
 }
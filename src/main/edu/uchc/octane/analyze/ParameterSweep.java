@@ -0,0 +1,354 @@
+package edu.uchc.octane.analyze;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.uchc.octane.core.fitting.Fitter;
+import edu.uchc.octane.core.frameanalysis.LocalMaximum;
+import edu.uchc.octane.core.pixelimage.RectangularImage;
+import ij.ImageStack;
+import ij.measure.ResultsTable;
+
+/**
+ * Compares analysis settings on the same data: a grid of noise thresholds times a set of fitter
+ * settings (fitter and resolution). The resolutions are only varied for the fitters that use them,
+ * see {@link ParticleAnalyzer2D#fitUsesResolution()}. Each frame is read and converted once. The detection runs
+ * once per threshold on the converted frame, and the candidates of all thresholds are merged, so
+ * that a candidate found at several thresholds is fitted only once per fitter setting.
+ * <p>
+ * For each setting, the report has the counts of candidates and localizations, the fit failures,
+ * the mean intensity and sigma of the localizations, and the time the setting would have taken on
+ * its own: the shared reading and conversion, its detection and the fitting of its candidates.
+ * All other parameters (camera, kernel, rois, background, cascade) are taken from the analyzer.
+ */
+public class ParameterSweep {
+
+	final static Logger logger = LoggerFactory.getLogger(ParameterSweep.class);
+
+	final ParticleAnalyzer2D params_;
+	final int [] noise_;
+	final ParticleAnalyzer2D [] fits_; // the fitter settings, only used to create the fitters
+	final ArrayList<Worker> workers_ = new ArrayList<Worker>();
+
+	/**
+	 * Results of one setting
+	 */
+	static class Setting {
+		long candidates_; // inside the rois
+		long fitted_; // passed the cascade
+		long accepted_, failed_, outOfBounds_, negativeIntensity_;
+		double sumIntensity_, sumSigma_, sumSigma2_; // of the accepted fits, sigma in pixels
+		long fitNanos_;
+
+		void add(Setting s) {
+			candidates_ += s.candidates_;
+			fitted_ += s.fitted_;
+			accepted_ += s.accepted_;
+			failed_ += s.failed_;
+			outOfBounds_ += s.outOfBounds_;
+			negativeIntensity_ += s.negativeIntensity_;
+			sumIntensity_ += s.sumIntensity_;
+			sumSigma_ += s.sumSigma_;
+			sumSigma2_ += s.sumSigma2_;
+			fitNanos_ += s.fitNanos_;
+		}
+	}
+
+	/**
+	 * @param params The analysis parameters. The noise threshold, fitter and resolution are replaced by the grid.
+	 * With an astigmatism calibration, all settings fit elliptical PSFs.
+	 * @param noise The noise thresholds
+	 * @param fitters Names of the fitters, see {@link ParticleAnalyzer2D#choices}
+	 * @param resolutions The resolutions (FWHM) in nm. Fitters that do not use the resolution get one setting.
+	 */
+	public ParameterSweep(ParticleAnalyzer2D params, int [] noise, String [] fitters, double [] resolutions) {
+		if (noise.length == 0 || fitters.length == 0 || resolutions.length == 0) {
+			throw new IllegalArgumentException("Empty parameter grid");
+		}
+		params_ = params;
+		noise_ = noise;
+		ArrayList<ParticleAnalyzer2D> fits = new ArrayList<ParticleAnalyzer2D>();
+		for (int f = 0; f < fitters.length; f++) {
+			for (int r = 0; r < resolutions.length; r++) {
+				ParticleAnalyzer2D p = new ParticleAnalyzer2D();
+				p.setPixelSize(params.pixelSize_);
+				p.setResolution(resolutions[r]);
+				p.setFitter(fitters[f]);
+				p.setAstigmatism(params.astigmatism_);
+				fits.add(p);
+				if (! p.fitUsesResolution()) {
+					break;
+				}
+			}
+		}
+		fits_ = fits.toArray(new ParticleAnalyzer2D[fits.size()]);
+	}
+
+	/**
+	 * Analyze a range of frames with all settings.
+	 * @param stack The image data
+	 * @param firstFrame First frame, 1-based
+	 * @param lastFrame Last frame, inclusive
+	 * @return One row per setting
+	 */
+	public ResultsTable run(final ImageStack stack, int firstFrame, int lastFrame) throws InterruptedException, ExecutionException {
+		workers_.clear();
+		long start = System.nanoTime();
+		new BatchEngine(params_.nThreads_).run(firstFrame, lastFrame, () -> {
+			Worker w = new Worker(stack);
+			synchronized (workers_) {
+				workers_.add(w);
+			}
+			return w;
+		});
+		long elapsed = System.nanoTime() - start;
+
+		Setting [][] settings = new Setting[noise_.length][fits_.length];
+		long [] detectNanos = new long[noise_.length];
+		long prepareNanos = 0;
+		for (int k = 0; k < noise_.length; k++) {
+			for (int c = 0; c < fits_.length; c++) {
+				settings[k][c] = new Setting();
+				for (Worker w : workers_) {
+					settings[k][c].add(w.settings_[k][c]);
+				}
+			}
+		}
+		for (Worker w : workers_) {
+			prepareNanos += w.prepareNanos_;
+			for (int k = 0; k < noise_.length; k++) {
+				detectNanos[k] += w.detectNanos_[k];
+			}
+		}
+		logger.info("Swept " + noise_.length * fits_.length + " settings over frames " + firstFrame + "-" + lastFrame
+				+ " in " + elapsed / 1e9 + " s. Reading and conversion: " + prepareNanos / 1e6 + " ms.");
+		return toTable(settings, detectNanos, prepareNanos, lastFrame - firstFrame + 1);
+	}
+
+	ResultsTable toTable(Setting [][] settings, long [] detectNanos, long prepareNanos, int nFrames) {
+		ResultsTable rt = new ResultsTable();
+		rt.showRowNumbers(false);
+		for (int k = 0; k < noise_.length; k++) {
+			for (int c = 0; c < fits_.length; c++) {
+				Setting s = settings[k][c];
+				ParticleAnalyzer2D fit = fits_[c];
+				double n = Math.max(1, s.accepted_);
+				double meanSigma = s.sumSigma_ / n;
+				double sdSigma = Math.sqrt(Math.max(0, s.sumSigma2_ / n - meanSigma * meanSigma));
+				rt.incrementCounter();
+				rt.addValue("noise", noise_[k]);
+				rt.addValue("fitter", fit.astigmatism_ != null ? "Astigmatic" : ParticleAnalyzer2D.choices[fit.fitterIndex_]);
+				if (fit.fitUsesResolution()) {
+					rt.addValue("resolution", fit.resolution_);
+				} else {
+					rt.addValue("resolution", "-"); // not used by the fitter
+				}
+				rt.addValue("candidates", s.candidates_);
+				rt.addValue("fitted", s.fitted_);
+				rt.addValue("localizations", s.accepted_);
+				rt.addValue("per frame", s.accepted_ / (double) nFrames);
+				rt.addValue("failed", s.failed_);
+				rt.addValue("out of bounds", s.outOfBounds_);
+				rt.addValue("negative intensity", s.negativeIntensity_);
+				rt.addValue("mean intensity", s.sumIntensity_ / n);
+				rt.addValue("mean sigma", meanSigma * params_.pixelSize_);
+				rt.addValue("sd sigma", sdSigma * params_.pixelSize_);
+				rt.addValue("detect ms", detectNanos[k] / 1e6);
+				rt.addValue("fit ms", s.fitNanos_ / 1e6);
+				rt.addValue("total ms", (prepareNanos + detectNanos[k] + s.fitNanos_) / 1e6);
+			}
+		}
+		return rt;
+	}
+
+	/**
+	 * The per-thread state. Converts the regions of a frame in its own {@link FrameAnalyzer2D} context.
+	 */
+	class Worker implements BatchEngine.FrameTask {
+		final ImageStack stack_;
+		final FrameAnalyzer2D context_ = params_.newFrameAnalyzer();
+		final LocalMaximum [] finders_ = new LocalMaximum[noise_.length];
+		final Fitter [] fitters_ = new Fitter[fits_.length];
+		final BatchedMLEFitter [] batches_ = new BatchedMLEFitter[fits_.length];
+		final Setting [][] settings_ = new Setting[noise_.length][fits_.length];
+		final long [] detectNanos_ = new long[noise_.length];
+		long prepareNanos_;
+
+		// the candidates of all thresholds, each fitted once per fitter setting
+		final CandidateBuffer union_ = new CandidateBuffer();
+		final HashMap<Long, Integer> index_ = new HashMap<Long, Integer>(); // position in the frame -> candidate, -1 if rejected by the cascade
+		int [][] found_ = new int[noise_.length][256]; // the candidates of each threshold
+		final int [] nFound_ = new int[noise_.length];
+		int threshold_; // being detected
+
+		// the fits of the union by the current fitter setting
+		int [] outcome_ = new int[256];
+		double [] intensity_ = new double[256];
+		double [] sigma_ = new double[256];
+		long [] nanos_ = new long[256];
+
+		final LocalMaximum.CallBackFunctions callback_ = new LocalMaximum.CallBackFunctions() {
+			@Override
+			public boolean fit(RectangularImage subimg, int x, int y) {
+				x += context_.x0_;
+				y += context_.y0_;
+				if (context_.isInside(x, y)) {
+					add(subimg, x, y);
+				}
+				return true;
+			}
+		};
+
+		Worker(ImageStack stack) {
+			stack_ = stack;
+			for (int k = 0; k < noise_.length; k++) {
+				finders_[k] = new LocalMaximum(noise_[k], 0, params_.kernelSize_);
+				for (int c = 0; c < fits_.length; c++) {
+					settings_[k][c] = new Setting();
+				}
+			}
+			for (int c = 0; c < fits_.length; c++) {
+				batches_[c] = fits_[c].createBatchFitter();
+				fitters_[c] = batches_[c] == null ? fits_[c].createFitter() : null;
+			}
+		}
+
+		@Override
+		public void process(int frame) {
+			union_.clear();
+			index_.clear();
+			Arrays.fill(nFound_, 0);
+
+			long t0 = System.nanoTime();
+			Object pixels = FrameAnalyzer2D.getPixels(stack_, frame);
+			float [] bg = context_.background_ == null ? null : context_.background_.getBackground(frame);
+			final int width = stack_.getWidth();
+			Rectangle [] regions = context_.getRegions(width, stack_.getHeight());
+			prepareNanos_ += System.nanoTime() - t0;
+			for (context_.region_ = 0; context_.region_ < regions.length; context_.region_++) {
+				Rectangle r = regions[context_.region_];
+				if (r.isEmpty()) {
+					continue;
+				}
+				long t1 = System.nanoTime();
+				context_.convert(pixels, width, r);
+				if (bg != null) {
+					context_.subtract(bg, width, r);
+				}
+				context_.x0_ = r.x;
+				context_.y0_ = r.y;
+				prepareNanos_ += System.nanoTime() - t1;
+				for (threshold_ = 0; threshold_ < finders_.length; threshold_++) {
+					long t2 = System.nanoTime();
+					finders_[threshold_].processFrame(context_.img_, callback_);
+					detectNanos_[threshold_] += System.nanoTime() - t2;
+				}
+			}
+
+			final int n = union_.size();
+			if (outcome_.length < n) {
+				outcome_ = new int[n];
+				intensity_ = new double[n];
+				sigma_ = new double[n];
+				nanos_ = new long[n];
+			}
+			for (int c = 0; c < fits_.length; c++) {
+				fitUnion(c, n);
+				for (int k = 0; k < noise_.length; k++) {
+					record(settings_[k][c], found_[k], nFound_[k]);
+				}
+			}
+		}
+
+		// a candidate of the current threshold, at x, y in the frame
+		void add(RectangularImage subimg, int x, int y) {
+			long position = ((long) x << 32) | y;
+			Integer i = index_.get(position);
+			if (i == null) {
+				if (context_.cascade_ && !context_.passesEstimate(subimg, x - context_.x0_, y - context_.y0_)) {
+					i = -1;
+				} else {
+					i = union_.size();
+					union_.add(subimg, context_.x0_, context_.y0_);
+				}
+				index_.put(position, i);
+			}
+			int [] found = found_[threshold_];
+			if (nFound_[threshold_] == found.length) {
+				found_[threshold_] = found = Arrays.copyOf(found, found.length * 2);
+			}
+			found[nFound_[threshold_]++] = i;
+		}
+
+		// fit all candidates with one fitter setting and keep the outcomes
+		void fitUnion(int c, int n) {
+			final CandidateBuffer u = union_;
+			if (batches_[c] != null) {
+				BatchedMLEFitter batch = batches_[c];
+				long t0 = System.nanoTime();
+				for (int i = 0; i < n; i++) {
+					batch.add(context_.getCandidate(u, i));
+				}
+				batch.fit();
+				for (int i = 0; i < n; i++) {
+					keep(i, batch.getResult(i));
+				}
+				batch.clear();
+				// the time of the batch is shared by its candidates
+				long t = n == 0 ? 0 : (System.nanoTime() - t0) / n;
+				Arrays.fill(nanos_, 0, n, t);
+			} else {
+				for (int i = 0; i < n; i++) {
+					long t0 = System.nanoTime();
+					double [] result = fitters_[c].fit(context_.getCandidate(u, i), null);
+					nanos_[i] = System.nanoTime() - t0;
+					keep(i, result);
+				}
+			}
+		}
+
+		void keep(int i, double [] result) {
+			final CandidateBuffer u = union_;
+			outcome_[i] = FrameAnalyzer2D.classify(result, u.x0_[i], u.y0_[i], u.width_[i], u.height_[i]);
+			if (outcome_[i] == FrameAnalyzer2D.ACCEPTED) {
+				sigma_[i] = result[2];
+				intensity_[i] = result[3];
+			}
+		}
+
+		// add the fits of the candidates of a threshold to its setting
+		void record(Setting s, int [] found, int nFound) {
+			s.candidates_ += nFound;
+			for (int j = 0; j < nFound; j++) {
+				int i = found[j];
+				if (i < 0) {
+					continue;
+				}
+				s.fitted_ ++;
+				s.fitNanos_ += nanos_[i];
+				switch (outcome_[i]) {
+				case FrameAnalyzer2D.ACCEPTED:
+					s.accepted_ ++;
+					s.sumIntensity_ += intensity_[i];
+					s.sumSigma_ += sigma_[i];
+					s.sumSigma2_ += sigma_[i] * sigma_[i];
+					break;
+				case FrameAnalyzer2D.OUT_OF_BOUNDS:
+					s.outOfBounds_ ++;
+					break;
+				case FrameAnalyzer2D.NEGATIVE_INTENSITY:
+					s.negativeIntensity_ ++;
+					break;
+				default:
+					s.failed_ ++;
+				}
+			}
+		}
+	}
+}
@@ -3,48 +3,32 @@ package edu.uchc.octane.analyze;
 import java.awt.Scrollbar;
 import java.awt.event.ActionEvent;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
 import java.util.prefs.Preferences;
-import java.util.stream.IntStream;
 
 import javax.swing.JFileChooser;
 
-import org.apache.commons.math3.util.FastMath;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import edu.uchc.octane.core.datasource.OctaneDataFile;
-import edu.uchc.octane.core.fitting.Fitter;
-import edu.uchc.octane.core.fitting.NotFitter;
 import edu.uchc.octane.core.fitting.leastsquare.DAOFitting;
-import edu.uchc.octane.core.fitting.leastsquare.IntegratedGaussianPSF;
-import edu.uchc.octane.core.fitting.leastsquare.LeastSquare;
-import edu.uchc.octane.core.fitting.maximumlikelihood.ConjugateGradient;
-import edu.uchc.octane.core.fitting.maximumlikelihood.Newton2DGaussian;
-import edu.uchc.octane.core.fitting.maximumlikelihood.Simplex;
-import edu.uchc.octane.core.fitting.maximumlikelihood.SymmetricErf;
-import edu.uchc.octane.core.frameanalysis.LocalMaximum;
-import edu.uchc.octane.core.pixelimage.RectangularDoubleImage;
-import edu.uchc.octane.core.pixelimage.RectangularImage;
 import edu.uchc.octane.core.pixelimage.RectangularShortImage;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.gui.PointRoi;
 import ij.gui.Roi;
+import ij.io.FileInfo;
+import ij.plugin.frame.RoiManager;
 
 public class ParticleAnalysisDialog2D extends ParticleAnalysisDialogBase {
 
-	final static double bg_offset = 100.0;
-	final static double cnts_per_photon = 1.63;
-	
 	final static Logger logger = LoggerFactory.getLogger(ParticleAnalysisDialog2D.class);
 
-	List<double[]> [] results_;
-	volatile Thread prevProcess_ = null;
+	final PreviewScheduler preview_ = new PreviewScheduler();
 	
 	int kernelSize_;
 	double sigma_;
@@ -60,43 +44,43 @@ public class ParticleAnalysisDialog2D extends ParticleAnalysisDialogBase {
 	//double heightMin_;
 	//double fittingQualityMin_;
 	double resolution_;
+	boolean followAcquisition_ = false; // only for MM data sets
+	boolean hasRoiManager_; // the ROI manager had ROIs when the dialog was created
+	boolean useRoiManager_ = false;
+	boolean cascade_;
+	double cascadeMinPhotons_;
+	boolean subtractBackground_;
+	int backgroundWindow_; // frames
+	RollingBackground background_; // shared by the previews
 	final private static String IMAGE_RESOLUTION = "imageResolution";
 	final private static String MULTI_PEAK_FITTING_KEY = "multiPeakFitting";
 	//final private static String ZERO_BACKGROUND_KEY = "zeroBackground";
 	//final private static String WATERSHED_THRESHOLD_KEY = "threshold";
 	final private static String WATERSHED_NOISE_KEY = "noise";
+	final private static String CASCADE_KEY = "fitCascade";
+	final private static String CASCADE_MIN_PHOTONS_KEY = "fitCascadeMinPhotons";
+	final private static String BACKGROUND_KEY = "temporalBackground";
+	final private static String BACKGROUND_WINDOW_KEY = "temporalBackgroundWindow";
 	//final private static String HEIGHT_MIN_KEY = "minHeight";
 	//final private static String FITTING_QUALITY_MIN_KEY = "minFittingQ";
 
-	final static String [] choices = {"NoFit", "LS", "Simplex", "CG", "Newton"};
-
-	//Detect and mark particles in current frame
-	class MarkParticles extends Thread {
-		void showRoi(List<double[]> particles) {
-			imp_.killRoi();
-
-			if (particles.size() > 0) {
-				PointRoi roi;
-				int [] xi = new int[particles.size()];
-				int [] yi = new int[particles.size()];
-				for (int i = 0; i < particles.size(); i ++ ) {
-					xi[i] = (int) (particles.get(i)[0] + 0.5);
-					yi[i] = (int) (particles.get(i)[1] + 0.5);
-				}
-				roi = new PointRoi(xi, yi, particles.size());
-				roi.setOptions("dot");
-				imp_.setRoi(roi);
-			}			
-		}
+	//Mark the particles of the current frame
+	void showRoi(List<double[]> particles) {
+		imp_.killRoi();
 
-		@Override
-		public void run() {
-			List<double[]> particles = analyzeOneFrame();
-			if (! Thread.interrupted()) {
-				showRoi(particles);
-				logger.info("Recorded: " + particles.size());
+		if (particles.size() > 0) {
+			PointRoi roi;
+			int [] xi = new int[particles.size()];
+			int [] yi = new int[particles.size()];
+			for (int i = 0; i < particles.size(); i ++ ) {
+				xi[i] = (int) (particles.get(i)[0] + 0.5);
+				yi[i] = (int) (particles.get(i)[1] + 0.5);
 			}
+			roi = new PointRoi(xi, yi, particles.size());
+			roi.setOptions("dot");
+			imp_.setRoi(roi);
 		}
+		logger.info("Recorded: " + particles.size());
 	}
 
 	/**
@@ -118,7 +102,13 @@ public class ParticleAnalysisDialog2D extends ParticleAnalysisDialogBase {
 		if (wasOKed()) {
 			savePrefs();
 			JFileChooser jc = new JFileChooser();
-			if (jc.showSaveDialog(IJ.getApplet()) == JFileChooser.APPROVE_OPTION) {
+			int ret = jc.showSaveDialog(IJ.getApplet());
+			if (ret == JFileChooser.APPROVE_OPTION && followAcquisition_) {
+				startLiveAnalysis(jc.getSelectedFile().getPath());
+			} else if (ret == JFileChooser.APPROVE_OPTION && jc.getSelectedFile().getName().endsWith(LocalizationFile.EXTENSION)) {
+				// written while the analysis runs, and resumed if it was interrupted
+				processAll(jc.getSelectedFile().getPath());
+			} else if (ret == JFileChooser.APPROVE_OPTION) {
 				OctaneDataFile dataset = processAll();
  				if (dataset != null) {
  					try {
@@ -132,52 +122,118 @@ public class ParticleAnalysisDialog2D extends ParticleAnalysisDialogBase {
 		imp_.setRoi(roi_);
 	}
 	
+	/**
+	 * Analyze the MM data set while it is being acquired, in a background thread. 
+	 * The results are saved when the acquisition ends, or as they come in for the columnar format.
+	 * @param path The output file
+	 */
+	void startLiveAnalysis(final String path) {
+		final LiveAnalyzer live = new LiveAnalyzer(createAnalyzer(), (MMVirtualStack) imp_.getStack());
+		IJ.log("Analyzing particles during acquisition. Press Esc to stop.");
+		new Thread(() -> {
+			boolean columnar = path.endsWith(LocalizationFile.EXTENSION);
+			ColumnBufferSink buffer = new ColumnBufferSink();
+			try {
+				live.run(columnar ? new LocalizationFileWriter(path) : buffer);
+				if (! columnar) {
+					buffer.toOctaneDataFile().writeToFile(path);
+				}
+			} catch (IOException e) {
+				IJ.error("Error saving data", e.getMessage());
+			} catch (ExecutionException e) {
+				logger.error("Live analysis failed", e.getCause());
+				IJ.error("Particle analysis failed: " + e.getCause());
+			} catch (InterruptedException e) {
+				IJ.log("Live analysis interrupted");
+			}
+		}, "octane-live").start();
+	}
+
 	public OctaneDataFile processAll() {
-		if (imp_ == null) {return null;}
+		ColumnBufferSink sink = new ColumnBufferSink();
+		if (! processAll(sink)) {
+			return null;
+		}
+		return sink.toOctaneDataFile();
+	}
+
+	/**
+	 * Analyze all frames and stream the results to the sink in frame order. 
+	 * Each frame is released as soon as it has been passed on.
+	 * @param sink The receiver of the localizations
+	 * @return True if all frames were processed
+	 */
+	public boolean processAll(LocalizationSink sink) {
+		if (imp_ == null) {return false;}
 		
 		imp_.killRoi();
-		IJ.log("Analyzing particles");
-		
-		final ImageStack stack = imp_.getImageStack();
-		int numOfFrames = stack.getSize();
+		return processFrames(createAnalyzer(), 1, sink);
+	}
 
-		results_ = new ArrayList[numOfFrames];
+	/**
+	 * Analyze all frames into a columnar file. The file is flushed periodically, and an interrupted
+	 * analysis of the same data with the same parameters continues after the last frame written.
+	 * @param path The output file, see {@link LocalizationFile}
+	 * @return True if all frames were processed
+	 */
+	public boolean processAll(String path) {
+		if (imp_ == null) {return false;}
 
-		IntStream.range(1, numOfFrames + 1).parallel().forEach( frameNumber -> {
-			results_[frameNumber - 1] = analyzeOneFrame();
-			IJ.log("Process frame " + (frameNumber)+ " to obtain " + (results_[frameNumber - 1].size()) + " particles.");
-		});
-		
-		//count total particles
-		int cnt = 0;
-		for (int i = 0; i < stack.getSize(); i++) {
-			cnt += results_[i].size();
+		imp_.killRoi();
+		ParticleAnalyzer2D analyzer = createAnalyzer();
+		ImageStack stack = imp_.getImageStack();
+		Checkpoint checkpoint = new Checkpoint(path, "input=" + getSource() + " frames=" + stack.getSize() + " " + analyzer.getParameterString());
+		try {
+			LocalizationFileWriter writer = checkpoint.open();
+			int first = checkpoint.getFirstFrame();
+			if (first > 1) {
+				IJ.log("Resuming at frame " + first);
+			}
+			if (! processFrames(analyzer, first, writer)) {
+				return false;
+			}
+			checkpoint.complete();
+		} catch (IOException e) {
+			logger.error("Batch analysis failed", e);
+			IJ.error("Error saving data", e.getMessage());
+			return false;
 		}
-		
-		// convert the results to 2D array and LocalizationDataset object
-		String [] tmpHeaders = (new SymmetricErf()).getHeaders();
-		String [] headers = Arrays.copyOf(tmpHeaders, tmpHeaders.length+1);
-		headers[headers.length-1] = "frame";
+		return true;
+	}
 
-		double [][] data = new double[headers.length][cnt];
-		int idx = 0;
-		for (int i = 0; i < stack.getSize(); i++) {
-			List<double[]> curFrame = results_[i];
-			for (int j = 0; j < curFrame.size(); j++) {
-				data[headers.length-1][idx] = i + 1; //frame
-				double [] param = curFrame.get(j);
-				for (int k = 0; k < headers.length - 1; k++) {
-					String s = headers[k]; 
-					if ( s.equals("x") || s.equals("y") || s.equals("z") || s.startsWith("sigma")) {
-						data[k][idx] = curFrame.get(j)[k] * pixelSize_;
-					} else {
-						data[k][idx] = curFrame.get(j)[k];
-					}					
-				}
-				idx++;
-			}
+	// the file or directory of the image, to recognize it when an analysis is resumed
+	String getSource() {
+		if (imp_.getStack() instanceof MMVirtualStack) {
+			return ((MMVirtualStack) imp_.getStack()).getDirectory();
+		}
+		FileInfo fi = imp_.getOriginalFileInfo();
+		if (fi != null && fi.fileName != null) {
+			return fi.directory + fi.fileName;
 		}
-		return new OctaneDataFile(data, headers);
+		return imp_.getTitle();
+	}
+
+	boolean processFrames(ParticleAnalyzer2D analyzer, int firstFrame, LocalizationSink sink) {
+		IJ.log("Analyzing particles");
+		
+		try {
+			ImageStack stack = imp_.getImageStack();
+			analyzer.processFrames(stack, firstFrame, stack.getSize(), sink);
+			IJ.log(analyzer.getMetrics().toString());
+		} catch (ExecutionException e) {
+			logger.error("Batch analysis failed", e.getCause());
+			IJ.error("Particle analysis failed: " + e.getCause());
+			return false;
+		} catch (IOException e) {
+			logger.error("Batch analysis failed", e);
+			IJ.error("Error saving data", e.getMessage());
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			IJ.log("Particle analysis interrupted");
+			return false;
+		}
+		return true;
 	}
 
 	public void loadPrefs() {
@@ -190,6 +246,10 @@ public class ParticleAnalysisDialog2D extends ParticleAnalysisDialogBase {
 		//preProcessBackground_ = prefs_.getBoolean(ZERO_BACKGROUND_KEY, false);
 		//watershedThreshold_ = prefs_.getInt(WATERSHED_THRESHOLD_KEY, 100);
 		watershedNoise_ = prefs_.getInt(WATERSHED_NOISE_KEY, 100);
+		cascade_ = prefs_.getBoolean(CASCADE_KEY, false);
+		cascadeMinPhotons_ = prefs_.getDouble(CASCADE_MIN_PHOTONS_KEY, 50);
+		subtractBackground_ = prefs_.getBoolean(BACKGROUND_KEY, false);
+		backgroundWindow_ = prefs_.getInt(BACKGROUND_WINDOW_KEY, 500);
 		//heightMin_ = prefs_.getDouble(HEIGHT_MIN_KEY, -1);
 		//fittingQualityMin_ = prefs_.getDouble(FITTING_QUALITY_MIN_KEY, -1);			
 	}
@@ -206,18 +266,77 @@ public class ParticleAnalysisDialog2D extends ParticleAnalysisDialogBase {
 		// prefs_.putBoolean(ZERO_BACKGROUND_KEY, preProcessBackground_);
 		//prefs_.putInt(WATERSHED_THRESHOLD_KEY, watershedThreshold_);
 		prefs_.putInt(WATERSHED_NOISE_KEY, watershedNoise_);
+		prefs_.putBoolean(CASCADE_KEY, cascade_);
+		prefs_.putDouble(CASCADE_MIN_PHOTONS_KEY, cascadeMinPhotons_);
+		prefs_.putBoolean(BACKGROUND_KEY, subtractBackground_);
+		prefs_.putInt(BACKGROUND_WINDOW_KEY, backgroundWindow_);
 		//prefs_.putDouble(HEIGHT_MIN_KEY, heightMin_);
 		//prefs_.putDouble(FITTING_QUALITY_MIN_KEY, fittingQualityMin_);
 	}
 
+	/**
+	 * @return An analyzer with a snapshot of the current parameters
+	 */
+	ParticleAnalyzer2D createAnalyzer() {
+		ParticleAnalyzer2D analyzer = new ParticleAnalyzer2D();
+		analyzer.setPixelSize(pixelSize_);
+		analyzer.setResolution(resolution_);
+		analyzer.setFitter(choiceIndex_);
+		analyzer.setNoiseThreshold(watershedNoise_);
+		analyzer.setKernelSize(kernelSize_);
+		RoiManager rm = RoiManager.getInstance();
+		if (useRoiManager_ && rm != null && rm.getCount() > 0) {
+			analyzer.setRois(rm.getRoisAsArray());
+		} else {
+			analyzer.setRoi(roi_);
+		}
+		analyzer.setCascade(cascade_, cascadeMinPhotons_);
+		if (subtractBackground_) {
+			analyzer.setBackground(getBackgroundModel());
+		}
+		analyzer.setNumThreads(GlobalPrefs.nThread_);
+		return analyzer;
+	}
+
+	/**
+	 * @return The background model of the current window, kept while the window does not change
+	 */
+	synchronized RollingBackground getBackgroundModel() {
+		if (background_ == null || background_.stack_ != imp_.getStack() || background_.windowFrames_ != backgroundWindow_) {
+			background_ = new RollingBackground(imp_.getStack(), backgroundWindow_);
+		}
+		return background_;
+	}
+
+	/**
+	 * @return Whether the fitter can be chosen. Modes with their own fitter leave it out.
+	 */
+	boolean hasFitterChoice() {
+		return true;
+	}
+
 	void setupDialog() { 
 
 		loadPrefs();
 		
 		addNumericField("Pixel Size (nm)", pixelSize_, 0);
 		addNumericField("Image Resolution (FWHM) (nm)", resolution_, 1);
-		this.addChoice("Fitter", choices, "NoFit");
+		if (hasFitterChoice()) {
+			this.addChoice("Fitter", ParticleAnalyzer2D.choices, "NoFit");
+		}
 		addCheckbox("High Molecular Density", multiPeakFitting_);
+		addCheckbox("Fast Rejection Before Fitting", cascade_);
+		addNumericField("Minimum Photons", cascadeMinPhotons_, 0);
+		addCheckbox("Subtract Temporal Median Background", subtractBackground_);
+		addNumericField("Background Window (frames)", backgroundWindow_, 0);
+		if (imp_.getStack() instanceof MMVirtualStack) {
+			addCheckbox("Follow Acquisition", followAcquisition_);
+		}
+		RoiManager rm = RoiManager.getInstance();
+		hasRoiManager_ = rm != null && rm.getCount() > 0;
+		if (hasRoiManager_) {
+			addCheckbox("Analyze All ROIs in ROI Manager", useRoiManager_);
+		}
 		//addSlider("Intensity Threshold", 1, 40000.0, watershedThreshold_);
 		addSlider("Noise Threshold", 1, 5000.0, watershedNoise_);
 		//addSlider("Minimum Intensity", 0, 5000.0, heightMin_);
@@ -232,8 +351,20 @@ public class ParticleAnalysisDialog2D extends ParticleAnalysisDialogBase {
 	public boolean readParameters() {
 		pixelSize_ = getNextNumber();
 		resolution_ = getNextNumber();
-		choiceIndex_ = getNextChoiceIndex();
+		if (hasFitterChoice()) {
+			choiceIndex_ = getNextChoiceIndex();
+		}
 		multiPeakFitting_ = (boolean) getNextBoolean();
+		cascade_ = getNextBoolean();
+		cascadeMinPhotons_ = getNextNumber();
+		subtractBackground_ = getNextBoolean();
+		backgroundWindow_ = (int) getNextNumber();
+		if (imp_.getStack() instanceof MMVirtualStack) {
+			followAcquisition_ = getNextBoolean();
+		}
+		if (hasRoiManager_) {
+			useRoiManager_ = getNextBoolean();
+		}
 		//watershedThreshold_ = (int) getNextNumber();
 		watershedNoise_ = (int) getNextNumber();
 		//heightMin_ = getNextNumber();
@@ -251,70 +382,22 @@ public class ParticleAnalysisDialog2D extends ParticleAnalysisDialogBase {
 //		}
 	}
 
-	ArrayList<double[]> analyzeOneFrame() {
-		float [] pixels;
-		ArrayList<double[]> particles = new ArrayList<double[]>(); 
-
-		synchronized(imp_) {
-			pixels = (float[]) imp_.getProcessor().convertToFloatProcessor().getPixels();
-		}
-
-		RectangularDoubleImage img = new RectangularDoubleImage(pixels, imp_.getWidth());
-		for (int i = 0; i < img.getLength(); i ++ ) {
-			img.setValue(i, (img.getValue(i) - bg_offset) / cnts_per_photon);
-		}
-
-		LocalMaximum finder = new LocalMaximum(watershedNoise_, 0, kernelSize_);
-		Fitter fitter;
-		
-		switch(choiceIndex_) {
-			case 1: fitter = new LeastSquare(new IntegratedGaussianPSF()); break;
-			case 2: fitter = new Simplex(new SymmetricErf()); 	break;
-			case 3: fitter = new ConjugateGradient(new SymmetricErf()); break;
-			case 4: fitter = new Newton2DGaussian(); break;
-			default:
-				fitter = new NotFitter();
-		}
-		
-		finder.processFrame(img, new LocalMaximum.CallBackFunctions() {
-			@Override
-			public boolean fit(RectangularImage subimg, int x, int y) {
-				// System.out.println("Location " + (c++) +" : " + x + " - " + y + " - " + img.getValueAtCoordinate(x, y));
-				if ( Thread.interrupted()) {
-					return false;
-				}
-				if (roi_ == null || roi_.contains(x, y)) {
-					double [] result = fitter.fit(subimg, null);
-					if (result != null ) {
-						result[2] = FastMath.abs(result[2]); // make sigma always positive 
-						if (result[0] < subimg.x0 || result[0] > subimg.x0 + subimg.width || result[1] < subimg.y0 || result[1] > subimg.y0 + subimg.height) {
-							logger.warn("Results out of bound: " + (result[0] - subimg.x0) + ", " + (result[1]- subimg.y0) );
-						} else if (result[3] < 0) {
-							logger.warn("Negtive intensity: " + result[3]);
-						} else {
-							particles.add(result);
-						}
-					} 
-				}
-				return true;
-			}	
-		});
-
-		return particles;
-	}
-
 	@Override
 	void updateResults() {
 		if (imp_ == null) { return;	}
 		imp_.killRoi();
 
-		// only allow one updating thread
-		synchronized(this) {
-			if (prevProcess_ != null && prevProcess_.isAlive()) {
-				prevProcess_.interrupt();
-			}	
-			prevProcess_ = new MarkParticles();
-			prevProcess_.start();
-		}
+		final ParticleAnalyzer2D analyzer = createAnalyzer();
+		final ImageStack stack = imp_.getStack();
+		final int frame = imp_.getCurrentSlice();
+		preview_.submit(frame + " " + analyzer.getParameterString(), 
+				cancelled -> analyzer.newFrameAnalyzer().analyze(stack, frame, cancelled), 
+				particles -> showRoi(particles));
+	}
+
+	@Override
+	public void dispose() {
+		super.dispose();
+		preview_.close();
 	}
 }
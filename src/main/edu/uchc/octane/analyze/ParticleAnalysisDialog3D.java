@@ -0,0 +1,35 @@
+package edu.uchc.octane.analyze;
+
+import ij.ImagePlus;
+
+/**
+ * Particle analysis of astigmatic 3D data. The parameters are those of the 2D analysis, except for the 
+ * fitter: elliptical PSFs are fitted, and z is computed from the widths with the calibration.
+ */
+public class ParticleAnalysisDialog3D extends ParticleAnalysisDialog2D {
+
+	final AstigmaticCalibration calibration_;
+
+	/**
+	 * Constructor
+	 * @param imp The image to be analyzed
+	 * @param calibration The z calibration
+	 */
+	public ParticleAnalysisDialog3D(ImagePlus imp, AstigmaticCalibration calibration) {
+		super(imp);
+		calibration_ = calibration;
+		setTitle("Particle analysis 3D:" + imp.getTitle());
+	}
+
+	@Override
+	boolean hasFitterChoice() {
+		return false;
+	}
+
+	@Override
+	ParticleAnalyzer2D createAnalyzer() {
+		ParticleAnalyzer2D analyzer = super.createAnalyzer();
+		analyzer.setAstigmatism(calibration_);
+		return analyzer;
+	}
+}
@@ -111,8 +111,8 @@ public abstract class ParticleAnalysisDialogBase extends NonBlockingGenericDialo
 	
 	/**
 	 * Update the analysis of the current frame to display the PointRoi.
-	 * The method starts a new analysis thread and returns immediately. Any new calls to the method 
-	 * cancels previous analysis thread.  
+	 * The analysis is scheduled on a background worker and the method returns immediately. Any new 
+	 * call to the method cancels the previous analysis.  
 	 */
 	abstract void updateResults();
 	
@@ -0,0 +1,477 @@
+package edu.uchc.octane.analyze;
+
+import java.awt.Polygon;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.uchc.octane.core.fitting.Fitter;
+import edu.uchc.octane.core.fitting.NotFitter;
+import edu.uchc.octane.core.fitting.leastsquare.IntegratedGaussianPSF;
+import edu.uchc.octane.core.fitting.leastsquare.LeastSquare;
+import edu.uchc.octane.core.fitting.maximumlikelihood.ConjugateGradient;
+import edu.uchc.octane.core.fitting.maximumlikelihood.Newton2DGaussian;
+import edu.uchc.octane.core.fitting.maximumlikelihood.Simplex;
+import edu.uchc.octane.core.fitting.maximumlikelihood.SymmetricErf;
+import ij.IJ;
+import ij.ImageStack;
+import ij.gui.Roi;
+
+/**
+ * The 2D particle analysis, independent of the GUI. Holds the analysis parameters 
+ * and runs the batch analysis of a stack. The per-frame work is done by {@link FrameAnalyzer2D}
+ * contexts, one per worker thread. 
+ */
+public class ParticleAnalyzer2D {
+
+	final static Logger logger = LoggerFactory.getLogger(ParticleAnalyzer2D.class);
+
+	final static String [] choices = {"NoFit", "LS", "Simplex", "CG", "Newton", "BatchMLE"};
+	final static int BATCH_FITTER = 5; // index of the batched fitter
+	final static int BATCH_ITERATIONS = 10;
+	final static String [] UNIT_HEADERS = {"channel", "slice", "position"};
+	final static String [] ASTIGMATIC_HEADERS = {"z", "sigmax", "sigmay"};
+	final static int ASTIGMATIC_ITERATIONS = 20;
+	final static double [] NO_TAGS = {};
+
+	double pixelSize_ = GlobalPrefs.defaultPixelSize_; // nm
+	double resolution_ = 300; // FWHM in nm
+	int fitterIndex_ = 0; // index into choices
+	int watershedNoise_ = 100;
+	int kernelSize_ = 4;
+	double sigma_;
+	Roi [] rois_; // null for the whole frame
+	double bgOffset_ = 100.0; // camera offset in counts
+	double cntsPerPhoton_ = 1.63;
+	int nThreads_ = GlobalPrefs.nThread_;
+	boolean cascade_ = false; // reject candidates by a centroid estimate before fitting
+	double cascadeMinPhotons_ = 50;
+	RollingBackground background_; // null for the constant camera offset
+	AstigmaticCalibration astigmatism_; // null for 2D
+	final FitStatistics stats_ = new FitStatistics();
+	final AnalysisMetrics metrics_ = new AnalysisMetrics(stats_);
+	long reportInterval_ = 5000; // ms between progress summaries
+
+	public ParticleAnalyzer2D() {
+		setResolution(resolution_);
+	}
+
+	public void setPixelSize(double pixelSize) {
+		pixelSize_ = pixelSize;
+		setResolution(resolution_);
+	}
+
+	/**
+	 * @param resolution Image resolution (FWHM) in nm
+	 */
+	public void setResolution(double resolution) {
+		resolution_ = resolution;
+		sigma_ = resolution_ / 2.355 / pixelSize_;
+	}
+
+	/**
+	 * @param index Index into {@link #choices}
+	 */
+	public void setFitter(int index) {
+		if (index < 0 || index >= choices.length) {
+			throw new IllegalArgumentException("Unknown fitter: " + index);
+		}
+		fitterIndex_ = index;
+	}
+
+	/**
+	 * @param name One of {@link #choices}, case insensitive
+	 */
+	public void setFitter(String name) {
+		for (int i = 0; i < choices.length; i++) {
+			if (choices[i].equalsIgnoreCase(name)) {
+				fitterIndex_ = i;
+				return;
+			}
+		}
+		throw new IllegalArgumentException("Unknown fitter: " + name);
+	}
+
+	public void setNoiseThreshold(int noise) {
+		watershedNoise_ = noise;
+	}
+
+	public void setKernelSize(int kernelSize) {
+		kernelSize_ = kernelSize;
+	}
+
+	/**
+	 * @param roi Only pixels around the roi are analyzed, and only particles inside the roi are kept. 
+	 * Null for the whole frame.
+	 */
+	public void setRoi(Roi roi) {
+		setRois(roi == null ? null : new Roi[] {roi});
+	}
+
+	/**
+	 * Analyze several regions, e.g. all ROIs of the ROI manager. Particles in overlapping regions are 
+	 * reported once. Selections that are not areas are ignored.
+	 * @param rois The regions. Null or empty for the whole frame.
+	 */
+	public void setRois(Roi [] rois) {
+		ArrayList<Roi> areas = new ArrayList<Roi>();
+		if (rois != null) {
+			for (Roi roi : rois) {
+				if (roi != null && roi.isArea()) {
+					areas.add(roi);
+				}
+			}
+		}
+		rois_ = areas.isEmpty() ? null : areas.toArray(new Roi[areas.size()]);
+	}
+
+	/**
+	 * @param bgOffset Camera offset, in counts
+	 * @param cntsPerPhoton Camera gain
+	 */
+	public void setCameraParameters(double bgOffset, double cntsPerPhoton) {
+		bgOffset_ = bgOffset;
+		cntsPerPhoton_ = cntsPerPhoton;
+	}
+
+	public void setNumThreads(int nThreads) {
+		nThreads_ = nThreads;
+	}
+
+	/**
+	 * Enable the fitting cascade. A cheap centroid estimate rejects candidates with too little signal 
+	 * or an off-center mass. Only the remaining candidates go to the selected fitter.
+	 * @param enabled Whether to use the cascade
+	 * @param minPhotons Minimum background-corrected photons of a candidate
+	 */
+	public void setCascade(boolean enabled, double minPhotons) {
+		cascade_ = enabled;
+		cascadeMinPhotons_ = minPhotons;
+	}
+
+	/**
+	 * Subtract a temporal per-pixel background instead of the constant camera offset. The background
+	 * is shared by all workers, so it should be created for the stack that is analyzed.
+	 * @param background The background, or null to only subtract the camera offset
+	 */
+	public void setBackground(RollingBackground background) {
+		background_ = background;
+	}
+
+	/**
+	 * Analyze astigmatic 3D data: fit elliptical PSFs instead of the selected fitter, and add the z
+	 * from the widths as a column. The calibration is shared by all workers.
+	 * @param calibration The z calibration, or null for 2D
+	 */
+	public void setAstigmatism(AstigmaticCalibration calibration) {
+		astigmatism_ = calibration;
+	}
+
+	/**
+	 * @return Timing and throughput of all frames analyzed so far
+	 */
+	public AnalysisMetrics getMetrics() {
+		return metrics_;
+	}
+
+	/**
+	 * @return The per-stage candidate counts of all frames analyzed so far
+	 */
+	public FitStatistics getFitStatistics() {
+		return stats_;
+	}
+
+	/**
+	 * @return All parameters that affect the localizations, as a string. Equal strings give equal results.
+	 */
+	public String getParameterString() {
+		StringBuilder sb = new StringBuilder();
+		if (astigmatism_ != null) {
+			sb.append("astigmatism ").append(astigmatism_.toString());
+		} else {
+			sb.append("fitter=").append(choices[fitterIndex_]);
+		}
+		sb.append(" noise=").append(watershedNoise_);
+		sb.append(" kernel=").append(kernelSize_);
+		sb.append(" pixelsize=").append(pixelSize_);
+		sb.append(" resolution=").append(resolution_);
+		sb.append(" offset=").append(bgOffset_);
+		sb.append(" gain=").append(cntsPerPhoton_);
+		if (cascade_) {
+			sb.append(" cascade minphotons=").append(cascadeMinPhotons_);
+		}
+		if (background_ != null) {
+			sb.append(" background ").append(background_.toString());
+		}
+		if (rois_ != null) {
+			for (Roi roi : rois_) {
+				Polygon p = roi.getPolygon();
+				sb.append(" roi=").append(roi.getType()).append(':').append(p.npoints).append(':')
+					.append(Arrays.hashCode(Arrays.copyOf(p.xpoints, p.npoints))).append(':').append(Arrays.hashCode(Arrays.copyOf(p.ypoints, p.npoints)));
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return A new per-thread analysis context
+	 */
+	public FrameAnalyzer2D newFrameAnalyzer() {
+		return new FrameAnalyzer2D(this);
+	}
+
+	/**
+	 * @return The batched fitter if it is selected or the analysis is 3D, else null
+	 */
+	BatchedMLEFitter createBatchFitter() {
+		if (astigmatism_ != null) {
+			return new AstigmaticMLEFitter(astigmatism_, astigmatism_.getFocusSigma(), pixelSize_, ASTIGMATIC_ITERATIONS, getHeaders().length - 1);
+		}
+		if (fitterIndex_ != BATCH_FITTER) {
+			return null;
+		}
+		return new BatchedMLEFitter(sigma_, BATCH_ITERATIONS, getHeaders().length - 1);
+	}
+
+	/**
+	 * @return True if the fit depends on the resolution. Only the batched fitter of 2D data uses it,
+	 * as the fixed width of the PSF.
+	 */
+	boolean fitUsesResolution() {
+		return astigmatism_ == null && fitterIndex_ == BATCH_FITTER;
+	}
+
+	Fitter createFitter() {
+		switch(fitterIndex_) {
+			case 1: return new LeastSquare(new IntegratedGaussianPSF());
+			case 2: return new Simplex(new SymmetricErf());
+			case 3: return new ConjugateGradient(new SymmetricErf());
+			case 4: return new Newton2DGaussian();
+			default:
+				return new NotFitter();
+		}
+	}
+
+	/**
+	 * @return The column names of the output, with the frame number as the last column
+	 */
+	public String [] getHeaders() {
+		return getHeaders(false);
+	}
+
+	/**
+	 * @param units Whether to add the channel, slice and position columns before the frame number
+	 * @return The column names of the output, with the frame number as the last column. 3D adds z and the widths
+	 * after the 2D columns.
+	 */
+	public String [] getHeaders(boolean units) {
+		String [] tmpHeaders = (new SymmetricErf()).getHeaders();
+		if (astigmatism_ != null) {
+			String [] h = Arrays.copyOf(tmpHeaders, tmpHeaders.length + ASTIGMATIC_HEADERS.length);
+			System.arraycopy(ASTIGMATIC_HEADERS, 0, h, tmpHeaders.length, ASTIGMATIC_HEADERS.length);
+			tmpHeaders = h;
+		}
+		int nTags = units ? UNIT_HEADERS.length : 0;
+		String [] headers = Arrays.copyOf(tmpHeaders, tmpHeaders.length + nTags + 1);
+		for (int k = 0; k < nTags; k++) {
+			headers[tmpHeaders.length + k] = UNIT_HEADERS[k];
+		}
+		headers[headers.length-1] = "frame";
+		return headers;
+	}
+
+	/**
+	 * Convert fitting results to output rows: lengths are scaled to nm and the frame number is appended.
+	 */
+	List<double[]> toOutputRows(List<double[]> particles, String [] headers, int frame) {
+		return toOutputRows(particles, headers, frame, NO_TAGS);
+	}
+
+	/**
+	 * Convert fitting results to output rows, with the tags of the work unit before the frame number.
+	 */
+	List<double[]> toOutputRows(List<double[]> particles, String [] headers, int frame, double [] tags) {
+		final int nFit = headers.length - 1 - tags.length;
+		ArrayList<double[]> rows = new ArrayList<double[]>(particles.size());
+		for (double [] param : particles) {
+			double [] row = new double[headers.length];
+			System.arraycopy(tags, 0, row, nFit, tags.length);
+			for (int k = 0; k < nFit; k++) {
+				String s = headers[k]; 
+				if ( s.equals("x") || s.equals("y") || s.equals("z") || s.startsWith("sigma")) {
+					row[k] = param[k] * pixelSize_;
+				} else {
+					row[k] = param[k];
+				}
+			}
+			row[headers.length - 1] = frame;
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	/**
+	 * Analyze all frames of the stack and stream the results to the sink in frame order. 
+	 * Each frame is released as soon as it has been passed on.
+	 * @param stack The image data
+	 * @param sink The receiver of the localizations
+	 */
+	public void processAll(ImageStack stack, LocalizationSink sink) throws IOException, InterruptedException, ExecutionException {
+		processFrames(stack, 1, stack.getSize(), sink);
+	}
+
+	/**
+	 * Analyze a range of frames and stream the results to the sink in frame order. 
+	 * @param stack The image data
+	 * @param firstFrame First frame, 1-based
+	 * @param lastFrame Last frame, inclusive
+	 * @param sink The receiver of the localizations
+	 */
+	public void processFrames(final ImageStack stack, int firstFrame, int lastFrame, LocalizationSink sink) throws IOException, InterruptedException, ExecutionException {
+		boolean done = false;
+		try {
+			sink.begin(getHeaders());
+			metrics_.markStart();
+			try (AnalysisMetrics.Reporter r = metrics_.startReporter(reportInterval_, s -> {
+				IJ.showStatus(s);
+				logger.info(s);
+			})) {
+				analyzeFrames(stack, firstFrame, lastFrame, sink);
+			}
+			sink.end();
+			done = true;
+		} finally {
+			if (! done) {
+				sink.abort();
+			}
+		}
+		logger.info(metrics_.toString());
+		if (stack instanceof MMVirtualStack) {
+			logger.info(((MMVirtualStack) stack).getCache().toString());
+		}
+	}
+
+	/**
+	 * Analyze a range of frames and add the results to a sink that has already been started. 
+	 * Can be called repeatedly on consecutive ranges to append to the same sink.
+	 * @param stack The image data
+	 * @param firstFrame First frame, 1-based
+	 * @param lastFrame Last frame, inclusive
+	 * @param sink The receiver of the localizations. {@link LocalizationSink#begin} must have been called.
+	 */
+	public void analyzeFrames(final ImageStack stack, int firstFrame, int lastFrame, LocalizationSink sink) throws InterruptedException, ExecutionException {
+		final String [] headers = getHeaders();
+
+		WorkStealingEngine engine = new WorkStealingEngine(nThreads_);
+		final FrameReorderBuffer reorder = new FrameReorderBuffer(sink, firstFrame, engine.getNumThreads() * 4);
+		if (background_ != null) {
+			background_.setSpread(engine.getNumThreads() * 4);
+		}
+		// one context per thread, reused for all frames and stolen candidates of the thread
+		engine.run(firstFrame, lastFrame, this::newFrameAnalyzer, (context, frameNumber) -> {
+			reorder.awaitSlot(frameNumber);
+			return context.detect(stack, frameNumber);
+		}, (frameNumber, particles) -> reorder.put(frameNumber, toOutputRows(particles, headers, frameNumber)));
+	}
+
+	/**
+	 * Analyze the frames of several channels, slices or positions of a data set and stream the results 
+	 * to the sink in frame order. All units share one pool of workers, and the localizations of a frame
+	 * are tagged with the channel, slice and position they came from.
+	 * @param units The image data, see {@link MMVirtualStack#getUnits()}
+	 * @param backgrounds The temporal background of each unit, or null to only subtract the camera offset
+	 * @param firstFrame First frame, 1-based
+	 * @param lastFrame Last frame, inclusive
+	 * @param sink The receiver of the localizations
+	 */
+	public void processUnits(final List<MMVirtualStack> units, final RollingBackground [] backgrounds, int firstFrame, int lastFrame, LocalizationSink sink) throws IOException, InterruptedException, ExecutionException {
+		boolean done = false;
+		try {
+			sink.begin(getHeaders(true));
+			metrics_.markStart();
+			try (AnalysisMetrics.Reporter r = metrics_.startReporter(reportInterval_, s -> {
+				IJ.showStatus(s);
+				logger.info(s);
+			})) {
+				analyzeUnits(units, backgrounds, firstFrame, lastFrame, sink);
+			}
+			sink.end();
+			done = true;
+		} finally {
+			if (! done) {
+				sink.abort();
+			}
+		}
+		logger.info(metrics_.toString());
+		if (! units.isEmpty()) {
+			logger.info(units.get(0).getCache().toString());
+		}
+	}
+
+	void analyzeUnits(final List<MMVirtualStack> units, final RollingBackground [] backgrounds, final int firstFrame, int lastFrame, LocalizationSink sink) throws InterruptedException, ExecutionException {
+		final String [] headers = getHeaders(true);
+		final int nUnits = units.size();
+		final double [][] tags = new double[nUnits][];
+		for (int u = 0; u < nUnits; u++) {
+			MMVirtualStack unit = units.get(u);
+			tags[u] = new double[] {unit.getChannel(), unit.getSlice(), unit.getPosition()};
+		}
+
+		// the work items are (frame, unit) pairs, in frame order, so that all units of a frame finish close together
+		WorkStealingEngine engine = new WorkStealingEngine(nThreads_);
+		final FrameReorderBuffer reorder = new FrameReorderBuffer(new UnitMerger(sink, nUnits, firstFrame), 1, engine.getNumThreads() * 4);
+		if (backgrounds != null) {
+			for (RollingBackground b : backgrounds) {
+				b.setSpread(engine.getNumThreads() * 4 / nUnits + 1);
+			}
+		}
+		engine.run(1, (lastFrame - firstFrame + 1) * nUnits, this::newFrameAnalyzer, (context, item) -> {
+			final int u = (item - 1) % nUnits;
+			reorder.awaitSlot(item);
+			context.background_ = backgrounds == null ? null : backgrounds[u];
+			return context.detect(units.get(u), firstFrame + (item - 1) / nUnits);
+		}, (item, particles) -> {
+			final int u = (item - 1) % nUnits;
+			final int frameNumber = firstFrame + (item - 1) / nUnits;
+			reorder.put(item, toOutputRows(particles, headers, frameNumber, tags[u]));
+		});
+	}
+
+	/**
+	 * Joins the results of the units of a frame, which arrive in order, and passes them on as one frame.
+	 */
+	static class UnitMerger implements LocalizationSink {
+		final LocalizationSink sink_;
+		final int nUnits_;
+		int frame_;
+		int received_ = 0;
+		ArrayList<double[]> rows_ = new ArrayList<double[]>();
+
+		UnitMerger(LocalizationSink sink, int nUnits, int firstFrame) {
+			sink_ = sink;
+			nUnits_ = nUnits;
+			frame_ = firstFrame;
+		}
+
+		@Override
+		public void begin(String [] headers) {}
+
+		@Override
+		public void addFrame(int item, List<double[]> rows) throws IOException {
+			rows_.addAll(rows);
+			if (++received_ == nUnits_) {
+				sink_.addFrame(frame_++, rows_);
+				rows_ = new ArrayList<double[]>();
+				received_ = 0;
+			}
+		}
+
+		@Override
+		public void end() {}
+	}
+}
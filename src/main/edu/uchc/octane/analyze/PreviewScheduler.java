@@ -0,0 +1,172 @@
+package edu.uchc.octane.analyze;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the preview analysis of the dialogs on a single worker thread. Requests are coalesced:
+ * only the latest one is kept, and a new request cancels the one that is running. Results are
+ * cached by key, so revisiting a frame with the same parameters is immediate.
+ */
+public class PreviewScheduler {
+
+	final static Logger logger = LoggerFactory.getLogger(PreviewScheduler.class);
+
+	final static long DEBOUNCE_MILLIS = 25; // quiet time before a request is started
+	final static int CACHE_ENTRIES = 64;
+
+	static class Request {
+		final String key_;
+		final Function<BooleanSupplier, List<double[]>> task_;
+		final Consumer<List<double[]>> onResult_;
+		final long seq_;
+		final long time_ = System.currentTimeMillis();
+		volatile boolean cancelled_ = false;
+
+		Request(String key, Function<BooleanSupplier, List<double[]>> task, Consumer<List<double[]>> onResult, long seq) {
+			key_ = key;
+			task_ = task;
+			onResult_ = onResult;
+			seq_ = seq;
+		}
+	}
+
+	final Object lock_ = new Object();
+	Request pending_; // latest request not yet started
+	Request running_;
+	Thread worker_;
+	long submitted_ = 0; // sequence number of the latest request
+	final Object deliveryLock_ = new Object();
+	long shown_ = 0; // sequence number of the latest result delivered
+	final LinkedHashMap<String, List<double[]>> cache_ = new LinkedHashMap<String, List<double[]>>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, List<double[]>> eldest) {
+			return size() > CACHE_ENTRIES;
+		}
+	};
+
+	/**
+	 * Schedule an analysis. Any pending request is dropped and the running one is cancelled.
+	 * A cached result is delivered on the calling thread.
+	 * @param key Identifies the frame and all parameters that affect the result
+	 * @param task The analysis. It should poll the supplied cancellation flag and return null when cancelled.
+	 * @param onResult Receives the result, unless the request is superseded
+	 */
+	public void submit(String key, Function<BooleanSupplier, List<double[]>> task, Consumer<List<double[]>> onResult) {
+		List<double[]> cached;
+		long seq;
+		synchronized(lock_) {
+			cancelAll();
+			seq = ++ submitted_;
+			cached = cache_.get(key);
+			if (cached == null) {
+				pending_ = new Request(key, task, onResult, seq);
+				if (worker_ == null) {
+					worker_ = new Thread(this::runWorker, "octane-preview");
+					worker_.setDaemon(true);
+					worker_.start();
+				}
+				lock_.notifyAll();
+			}
+		}
+		if (cached != null) {
+			deliver(seq, cached, onResult);
+		}
+	}
+
+	/**
+	 * Pass a result on, unless a result of a later request has been delivered already. The worker
+	 * may finish an older request after a newer one was answered from the cache.
+	 */
+	void deliver(long seq, List<double[]> result, Consumer<List<double[]>> onResult) {
+		synchronized(deliveryLock_) {
+			if (seq <= shown_) {
+				return;
+			}
+			shown_ = seq;
+			onResult.accept(result);
+		}
+	}
+
+	/**
+	 * Cancel the pending and running requests
+	 */
+	public void cancel() {
+		synchronized(lock_) {
+			cancelAll();
+		}
+	}
+
+	/**
+	 * Stop the worker thread and drop the cached results
+	 */
+	public void close() {
+		synchronized(lock_) {
+			cancelAll();
+			cache_.clear();
+			if (worker_ != null) {
+				worker_.interrupt();
+				worker_ = null;
+			}
+		}
+	}
+
+	// call with lock_ held
+	void cancelAll() {
+		pending_ = null;
+		if (running_ != null) {
+			running_.cancelled_ = true;
+		}
+	}
+
+	void runWorker() {
+		try {
+			while (true) {
+				final Request r;
+				synchronized(lock_) {
+					if (worker_ != Thread.currentThread()) {
+						return;
+					}
+					if (pending_ == null) {
+						lock_.wait();
+						continue;
+					}
+					// wait until the requests stop coming, e.g. while a slider is dragged
+					long wait = pending_.time_ + DEBOUNCE_MILLIS - System.currentTimeMillis();
+					if (wait > 0) {
+						lock_.wait(wait);
+						continue;
+					}
+					r = pending_;
+					pending_ = null;
+					running_ = r;
+				}
+
+				List<double[]> result = null;
+				try {
+					result = r.task_.apply(() -> r.cancelled_ || Thread.currentThread().isInterrupted());
+				} catch (RuntimeException e) {
+					logger.error("Preview analysis failed", e);
+				}
+
+				synchronized(lock_) {
+					running_ = null;
+					if (result == null || r.cancelled_) {
+						continue;
+					}
+					cache_.put(r.key_, result);
+				}
+				deliver(r.seq_, result, r.onResult_);
+			}
+		} catch (InterruptedException e) {
+			// closed
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package edu.uchc.octane.analyze;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+
+/**
+ * Renders the localizations into a super-resolution image while the analysis runs, and passes
+ * them on unchanged to another sink. Each localization is added to a histogram, or splatted as
+ * a Gaussian of a fixed width, directly into the image. The frames arrive one at a time, so there
+ * is a single buffer, and the image is redrawn every few seconds, so a bad run (e.g. out of focus,
+ * or drifting) shows early. The redraw does not hold up the frames. It may show a frame that is
+ * partly added.
+ * <p>
+ * The localizations must be in the units of the render pixel size, e.g. nm.
+ */
+public class ProgressiveRenderer implements LocalizationSink {
+
+	final LocalizationSink sink_;
+	final double pixelSize_; // of the rendering
+	final double blur_; // sigma of the splat in render pixels, 0 for a histogram
+	final int width_, height_;
+	final long refreshInterval_; // ms
+	final ImagePlus imp_;
+	final float [] pixels_; // of imp_
+
+	int xCol_, yCol_;
+	volatile boolean changed_ = false; // since the last redraw
+	ScheduledExecutorService timer_;
+
+	/**
+	 * @param sink Receives the localizations
+	 * @param width Width of the field of view, in the units of x and y
+	 * @param height Height of the field of view
+	 * @param pixelSize Pixel size of the rendering, in the units of x and y
+	 * @param blur Sigma of the Gaussian splat, in the units of x and y, 0 for a histogram
+	 * @param refreshInterval The image is updated this often, in ms
+	 * @throws IllegalArgumentException If the parameters are invalid, or the image does not fit in the memory
+	 */
+	public ProgressiveRenderer(LocalizationSink sink, double width, double height, double pixelSize, double blur, long refreshInterval) {
+		if (!(pixelSize > 0) || blur < 0) {
+			throw new IllegalArgumentException("Invalid rendering parameters");
+		}
+		sink_ = sink;
+		pixelSize_ = pixelSize;
+		blur_ = blur / pixelSize;
+		long w = (long) Math.ceil(width / pixelSize), h = (long) Math.ceil(height / pixelSize);
+		checkMemory(w, h);
+		width_ = (int) w;
+		height_ = (int) h;
+		refreshInterval_ = refreshInterval;
+		FloatProcessor ip = new FloatProcessor(width_, height_);
+		pixels_ = (float []) ip.getPixels();
+		imp_ = new ImagePlus("Reconstruction", ip);
+		imp_.getCalibration().pixelWidth = pixelSize;
+		imp_.getCalibration().pixelHeight = pixelSize;
+	}
+
+	// the float image, and the 8-bit copy of the display, must fit in half of the free memory
+	static void checkMemory(long width, long height) {
+		long pixels = width * height;
+		Runtime rt = Runtime.getRuntime();
+		long available = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+		if (pixels > Integer.MAX_VALUE || 5 * pixels > available / 2) {
+			throw new IllegalArgumentException("A rendering of " + width + " x " + height + " pixels needs "
+					+ 5 * pixels / (1 << 20) + " MB, only " + available / (1 << 20) + " MB are available. Use a larger render pixel size.");
+		}
+	}
+
+	/**
+	 * @return The rendering, updated while the analysis runs
+	 */
+	public ImagePlus getImage() {
+		return imp_;
+	}
+
+	@Override
+	public void begin(String [] headers) throws IOException {
+		List<String> h = Arrays.asList(headers);
+		xCol_ = h.indexOf("x");
+		yCol_ = h.indexOf("y");
+		if (xCol_ < 0 || yCol_ < 0) {
+			throw new IOException("No x and y columns to render");
+		}
+		sink_.begin(headers);
+		timer_ = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "octane-render");
+			t.setDaemon(true);
+			return t;
+		});
+		timer_.scheduleWithFixedDelay(this::refresh, refreshInterval_, refreshInterval_, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void addFrame(int frame, List<double[]> rows) throws IOException {
+		final float [] b = pixels_;
+		for (double [] row : rows) {
+			double x = row[xCol_] / pixelSize_, y = row[yCol_] / pixelSize_;
+			if (blur_ > 0) {
+				splat(b, x, y);
+			} else {
+				int ix = (int) x, iy = (int) y;
+				if (x >= 0 && y >= 0 && ix < width_ && iy < height_) {
+					b[iy * width_ + ix] += 1;
+				}
+			}
+		}
+		if (! rows.isEmpty()) {
+			changed_ = true;
+		}
+		sink_.addFrame(frame, rows);
+	}
+
+	@Override
+	public void end() throws IOException {
+		timer_.shutdownNow();
+		try {
+			timer_.awaitTermination(refreshInterval_, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		refresh();
+		sink_.end();
+	}
+
+	@Override
+	public void abort() {
+		timer_.shutdownNow();
+		sink_.abort();
+	}
+
+	// add a normalized Gaussian, truncated at 3 sigma
+	void splat(float [] b, double x, double y) {
+		final int r = (int) Math.ceil(3 * blur_);
+		final int cx = (int) Math.floor(x), cy = (int) Math.floor(y);
+		final int x0 = Math.max(0, cx - r), x1 = Math.min(width_ - 1, cx + r);
+		final int y0 = Math.max(0, cy - r), y1 = Math.min(height_ - 1, cy + r);
+		if (x0 > x1 || y0 > y1) {
+			return;
+		}
+		final double s2 = 2 * blur_ * blur_, norm = 1 / (Math.PI * s2);
+		final double [] wx = new double[x1 - x0 + 1];
+		for (int i = x0; i <= x1; i++) {
+			double d = i + 0.5 - x;
+			wx[i - x0] = Math.exp(- d * d / s2);
+		}
+		for (int j = y0; j <= y1; j++) {
+			double d = j + 0.5 - y;
+			double wy = norm * Math.exp(- d * d / s2);
+			for (int i = x0, k = j * width_ + x0; i <= x1; i++, k++) {
+				b[k] += wy * wx[i - x0];
+			}
+		}
+	}
+
+	/**
+	 * Redraw the image if localizations were added
+	 */
+	void refresh() {
+		if (! changed_) {
+			return;
+		}
+		changed_ = false;
+		imp_.getProcessor().resetMinAndMax();
+		if (IJ.getInstance() != null) {
+			if (imp_.getWindow() == null) {
+				imp_.show();
+			} else {
+				imp_.updateAndDraw();
+			}
+		}
+	}
+}
@@ -0,0 +1,274 @@
+package edu.uchc.octane.analyze;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import ij.ImageStack;
+
+/**
+ * Per-pixel temporal background of a stack: a percentile (e.g. the median) of the pixel over
+ * a sliding window of sample frames. Every interval-th frame is a sample, and each frame uses
+ * the window of samples centered on it.
+ * <p>
+ * The samples of the window are kept sorted per pixel, so sliding the window by one sample
+ * only removes one value and inserts another. Memory use is constant: window x pixels of
+ * 16-bit counts. Workers ask for frames in roughly increasing order, so the window mostly moves
+ * forward, and the backgrounds of all windows the workers may be in at the same time are cached
+ * (see {@link #setSpread}). Thread safe.
+ */
+public class RollingBackground {
+
+	final static int CACHED_WINDOWS = 4;
+	final static int DEFAULT_SAMPLES = 25;
+
+	final ImageStack stack_;
+	final int window_; // samples
+	final int interval_; // frames between samples
+	final double percentile_;
+	final int nPixels_;
+	int windowFrames_; // as requested
+	int cachedWindows_ = CACHED_WINDOWS;
+
+	char [] sorted_; // window_ sorted samples per pixel, in raw counts
+	int w_; // current number of samples per pixel, at most window_
+	int start_ = -1; // first sample of the window in sorted_
+	final char [] incoming_, outgoing_;
+	// by window size and start. Has its own lock, so that cached windows are served while a new one is computed.
+	// In insertion order, which follows the window, so the windows furthest behind are dropped first.
+	final LinkedHashMap<Long, float[]> backgrounds_ = new LinkedHashMap<Long, float[]>(8, 0.75f, false) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, float[]> eldest) {
+			return size() > cachedWindows_;
+		}
+	};
+
+	/**
+	 * @param stack The image data
+	 * @param window Number of sample frames in the window
+	 * @param interval Number of frames between samples
+	 * @param percentile 0.5 for the median. Lower values are more robust in dense data.
+	 */
+	public RollingBackground(ImageStack stack, int window, int interval, double percentile) {
+		stack_ = stack;
+		window_ = Math.max(1, window);
+		interval_ = Math.max(1, interval);
+		percentile_ = Math.min(1, Math.max(0, percentile));
+		nPixels_ = stack.getWidth() * stack.getHeight();
+		windowFrames_ = window_ * interval_;
+		incoming_ = new char[nPixels_];
+		outgoing_ = new char[nPixels_];
+	}
+
+	/**
+	 * The running median over a window of frames, sampled with {@value #DEFAULT_SAMPLES} frames.
+	 * @param stack The image data
+	 * @param windowFrames Length of the window in frames
+	 */
+	public RollingBackground(ImageStack stack, int windowFrames) {
+		this(stack, Math.min(DEFAULT_SAMPLES, windowFrames), Math.max(1, windowFrames / DEFAULT_SAMPLES), 0.5);
+		windowFrames_ = windowFrames;
+	}
+
+	/**
+	 * Cache enough windows for frames that are analyzed at the same time, so that a worker that
+	 * is behind the others does not rebuild an old window.
+	 * @param frames How far apart the frames in progress may be, e.g. the capacity of the reorder buffer
+	 */
+	public void setSpread(int frames) {
+		synchronized(backgrounds_) {
+			cachedWindows_ = Math.max(CACHED_WINDOWS, frames / interval_ + 2);
+		}
+	}
+
+	/**
+	 * Get the background of a frame.
+	 * @param frame Frame number, 1-based
+	 * @return The background in raw counts. Shared, must not be modified.
+	 */
+	public float [] getBackground(int frame) {
+		int nSamples = (getAvailableFrames() - 1) / interval_ + 1;
+		int w = Math.min(window_, nSamples);
+		int center = (int) Math.round((frame - 1) / (double) interval_);
+		int start = Math.max(0, Math.min(center - w / 2, nSamples - w));
+		Long key = key(w, start);
+
+		synchronized(backgrounds_) {
+			float [] bg = backgrounds_.get(key);
+			if (bg != null) {
+				return bg;
+			}
+		}
+		synchronized(this) {
+			synchronized(backgrounds_) {
+				float [] bg = backgrounds_.get(key);
+				if (bg != null) { // computed while waiting
+					return bg;
+				}
+			}
+			return computeBackground(start, w);
+		}
+	}
+
+	static Long key(int w, int start) {
+		return ((long) w << 32) | start;
+	}
+
+	// call with the lock held. The windows passed on the way are cached too, the workers behind will need them.
+	float [] computeBackground(int start, int w) {
+		// w changes when a live data set has grown
+		if (start_ < 0 || w != w_ || Math.abs(start - start_) >= w) {
+			fill(start, w);
+		} else {
+			while (start_ != start) {
+				slide(start > start_ ? 1 : -1);
+				if (start_ != start) {
+					cache(extract());
+				}
+			}
+		}
+		return cache(extract());
+	}
+
+	float [] cache(float [] bg) {
+		synchronized(backgrounds_) {
+			backgrounds_.put(key(w_, start_), bg);
+		}
+		return bg;
+	}
+
+	// the percentile of the current window
+	float [] extract() {
+		float [] bg = new float[nPixels_];
+		final int k = (int) Math.round(percentile_ * (w_ - 1));
+		for (int p = 0; p < nPixels_; p++) {
+			bg[p] = sorted_[p * w_ + k];
+		}
+		return bg;
+	}
+
+	int getAvailableFrames() {
+		if (stack_ instanceof MMVirtualStack) {
+			return ((MMVirtualStack) stack_).getAvailableFrames();
+		}
+		return stack_.getSize();
+	}
+
+	// build the window from scratch
+	void fill(final int start, final int w) {
+		if (sorted_ == null || sorted_.length != nPixels_ * w) {
+			sorted_ = new char[nPixels_ * w];
+		}
+		w_ = w;
+		for (int s = 0; s < w; s++) {
+			readSample(start + s, incoming_);
+			final int n = s;
+			forEachChunk((from, to) -> {
+				for (int p = from; p < to; p++) {
+					insert(p * w, n, incoming_[p]);
+				}
+			});
+		}
+		start_ = start;
+	}
+
+	// move the window forward (1) or back (-1) by one sample
+	void slide(int step) {
+		if (step > 0) {
+			readSample(start_, outgoing_);
+			readSample(start_ + w_, incoming_);
+		} else {
+			readSample(start_ + w_ - 1, outgoing_);
+			readSample(start_ - 1, incoming_);
+		}
+		final int w = w_;
+		forEachChunk((from, to) -> {
+			for (int p = from; p < to; p++) {
+				replace(p * w, w, outgoing_[p], incoming_[p]);
+			}
+		});
+		start_ += step;
+	}
+
+	// insert v into the n sorted values at base
+	void insert(int base, int n, char v) {
+		final char [] s = sorted_;
+		int i = base + n;
+		while (i > base && s[i - 1] > v) {
+			s[i] = s[i - 1];
+			i --;
+		}
+		s[i] = v;
+	}
+
+	// replace u by v in the n sorted values at base
+	void replace(int base, int n, char u, char v) {
+		final char [] s = sorted_;
+		int lo = base, hi = base + n - 1;
+		while (lo < hi) { // first index of u
+			int mid = (lo + hi) >>> 1;
+			if (s[mid] < u) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		int i = lo;
+		if (v > u) {
+			while (i + 1 < base + n && s[i + 1] < v) {
+				s[i] = s[i + 1];
+				i ++;
+			}
+		} else {
+			while (i > base && s[i - 1] > v) {
+				s[i] = s[i - 1];
+				i --;
+			}
+		}
+		s[i] = v;
+	}
+
+	interface Chunk {
+		void run(int from, int to);
+	}
+
+	// the pixels are independent, so the update is split over the common pool
+	void forEachChunk(final Chunk task) {
+		final int chunk = 1 << 16;
+		int nChunks = (nPixels_ + chunk - 1) / chunk;
+		IntStream.range(0, nChunks).parallel().forEach(c -> task.run(c * chunk, Math.min(nPixels_, (c + 1) * chunk)));
+	}
+
+	// raw counts of a sample frame, clamped to 16 bits
+	void readSample(int sample, char [] dst) {
+		int frame = 1 + sample * interval_;
+		Object pixels = stack_ instanceof MMVirtualStack ? ((MMVirtualStack) stack_).getCachedPixels(frame) : stack_.getPixels(frame);
+		if (pixels instanceof short[]) {
+			short [] p = (short []) pixels;
+			for (int i = 0; i < nPixels_; i++) {
+				dst[i] = (char) p[i];
+			}
+		} else if (pixels instanceof byte[]) {
+			byte [] p = (byte []) pixels;
+			for (int i = 0; i < nPixels_; i++) {
+				dst[i] = (char) (p[i] & 0xff);
+			}
+		} else {
+			if (pixels instanceof int[]) { // RGB, use the luminance
+				pixels = stack_.getProcessor(frame).convertToFloatProcessor().getPixels();
+			}
+			float [] p = (float []) pixels;
+			for (int i = 0; i < nPixels_; i++) {
+				dst[i] = (char) Math.max(0, Math.min(65535, Math.round(p[i])));
+			}
+		}
+	}
+
+	/**
+	 * @return The parameters, for the parameter string of the analysis
+	 */
+	@Override
+	public String toString() {
+		return "window=" + window_ + " interval=" + interval_ + " percentile=" + percentile_;
+	}
+}
@@ -0,0 +1,183 @@
+package edu.uchc.octane.analyze;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Joins the results of a data set that was analyzed in frame range shards, see {@link BatchRunner},
+ * into one frame ordered file:
+ * <pre>
+ * java -cp ... edu.uchc.octane.analyze.BatchRunner input=/data/run1 output=/data/run1.1.oloc first=1 last=25000
+ * java -cp ... edu.uchc.octane.analyze.BatchRunner input=/data/run1 output=/data/run1.2.oloc first=25001
+ * java -cp ... edu.uchc.octane.analyze.ShardMerger /data/run1.dat /data/run1.1.oloc /data/run1.2.oloc
+ * </pre>
+ * The shards must be localization files ({@link LocalizationFile#EXTENSION}) with the same columns and
+ * frame ranges that do not overlap. They are read one block at a time. Trajectory ids are renumbered
+ * to stay unique; trajectories are not joined across shards. An output in the same format is
+ * written while reading, any other output is written as an OctaneDataFile at the end.
+ */
+public class ShardMerger {
+
+	final static Logger logger = LoggerFactory.getLogger(ShardMerger.class);
+
+	final static String USAGE = "Usage: ShardMerger <output> <shard" + LocalizationFile.EXTENSION + "> ...";
+
+	final ArrayList<Shard> shards_ = new ArrayList<Shard>();
+	String [] headers_;
+	int frameCol_;
+	int trackCol_; // -1 if the shards are not linked
+	double trackOffset_, maxTrack_; // trajectory ids of each shard start at 1
+
+	static class Shard {
+		final String path_;
+		final int firstFrame_, lastFrame_; // lastFrame_ < firstFrame_ if the shard is empty
+
+		Shard(String path, int firstFrame, int lastFrame) {
+			path_ = path;
+			firstFrame_ = firstFrame;
+			lastFrame_ = lastFrame;
+		}
+	}
+
+	/**
+	 * Check the shards and sort them by frame.
+	 * @param shards The localization files
+	 * @throws IOException If a shard can not be read, the columns differ or the frame ranges overlap
+	 */
+	public ShardMerger(List<String> shards) throws IOException {
+		for (String path : shards) {
+			try (LocalizationFileReader reader = new LocalizationFileReader(path)) {
+				if (headers_ == null) {
+					headers_ = reader.getHeaders();
+				} else if (! Arrays.equals(headers_, reader.getHeaders())) {
+					throw new IOException("Columns of " + path + " do not match " + shards.get(0));
+				}
+				if (reader.wasRecovered() || new File(path + Checkpoint.SUFFIX).exists()) {
+					logger.warn(path + " is incomplete, the analysis of this shard has not finished");
+				}
+				int first = Integer.MAX_VALUE;
+				for (int i = 0; i < reader.getBlockCount(); i++) {
+					first = Math.min(first, reader.getBlockInfo(i).firstFrame_);
+				}
+				shards_.add(new Shard(path, first, reader.getLastFrame()));
+			}
+		}
+		if (headers_ == null) {
+			throw new IOException("No shards");
+		}
+		frameCol_ = Arrays.asList(headers_).indexOf("frame");
+		trackCol_ = Arrays.asList(headers_).indexOf(TrackingSink.TRACK_HEADER);
+		if (frameCol_ < 0) {
+			throw new IOException("The shards have no frame column");
+		}
+
+		shards_.removeIf(s -> s.lastFrame_ < s.firstFrame_);
+		shards_.sort(Comparator.comparingInt(s -> s.firstFrame_));
+		for (int i = 1; i < shards_.size(); i++) {
+			Shard prev = shards_.get(i - 1), cur = shards_.get(i);
+			if (cur.firstFrame_ <= prev.lastFrame_) {
+				throw new IOException("Frames of " + cur.path_ + " overlap with " + prev.path_);
+			}
+		}
+	}
+
+	public String [] getHeaders() {
+		return headers_;
+	}
+
+	/**
+	 * Stream the localizations of all shards to the sink, in frame order.
+	 * @param sink The receiver
+	 * @return Number of localizations
+	 */
+	public long merge(LocalizationSink sink) throws IOException {
+		long cnt = 0;
+		boolean done = false;
+		try {
+			sink.begin(headers_);
+			for (Shard shard : shards_) {
+				try (LocalizationFileReader reader = new LocalizationFileReader(shard.path_)) {
+					for (int b = 0; b < reader.getBlockCount(); b++) {
+						cnt += addBlock(reader.readBlock(b), sink);
+					}
+				}
+				trackOffset_ = maxTrack_;
+			}
+			sink.end();
+			done = true;
+		} finally {
+			if (! done) {
+				sink.abort();
+			}
+		}
+		return cnt;
+	}
+
+	/**
+	 * Merge the shards into a file.
+	 * @param output A localization file, or an OctaneDataFile for any other extension
+	 * @return Number of localizations
+	 */
+	public long merge(String output) throws IOException {
+		if (output.endsWith(LocalizationFile.EXTENSION)) {
+			return merge(new LocalizationFileWriter(output));
+		}
+		ColumnBufferSink buffer = new ColumnBufferSink();
+		long cnt = merge(buffer);
+		buffer.toOctaneDataFile().writeToFile(output);
+		return cnt;
+	}
+
+	// the rows of a block are in frame order; pass them on frame by frame
+	int addBlock(double [][] columns, LocalizationSink sink) throws IOException {
+		final int n = columns[0].length;
+		ArrayList<double[]> rows = new ArrayList<double[]>();
+		int frame = 0;
+		for (int i = 0; i < n; i++) {
+			int f = (int) Math.round(columns[frameCol_][i]);
+			if (f != frame && ! rows.isEmpty()) {
+				sink.addFrame(frame, rows);
+				rows = new ArrayList<double[]>();
+			}
+			frame = f;
+			double [] row = new double[columns.length];
+			for (int k = 0; k < columns.length; k++) {
+				row[k] = columns[k][i];
+			}
+			if (trackCol_ >= 0) {
+				row[trackCol_] += trackOffset_;
+				maxTrack_ = Math.max(maxTrack_, row[trackCol_]);
+			}
+			rows.add(row);
+		}
+		if (! rows.isEmpty()) {
+			sink.addFrame(frame, rows);
+		}
+		return n;
+	}
+
+	public static void main(String ... args) {
+		if (args.length < 2) {
+			System.err.println(USAGE);
+			System.exit(2);
+			return;
+		}
+		try {
+			long start = System.currentTimeMillis();
+			ShardMerger merger = new ShardMerger(Arrays.asList(args).subList(1, args.length));
+			long cnt = merger.merge(args[0]);
+			logger.info("Merged " + cnt + " particles from " + (args.length - 1) + " shards in " + (System.currentTimeMillis() - start) / 1000.0 + " s. Saved to " + args[0]);
+		} catch (Exception e) {
+			logger.error("Merge failed", e);
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
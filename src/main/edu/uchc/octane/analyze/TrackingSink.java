@@ -0,0 +1,227 @@
+package edu.uchc.octane.analyze;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Links the localizations into trajectories while the frames stream past, and passes them on
+ * with a trajectory id column. A localization joins the nearest trajectory that was last seen
+ * within the max displacement, at most maxGap frames ago. Pairs are assigned by increasing
+ * distance, and each trajectory takes at most one localization per frame. Localizations that
+ * are not linked start a new trajectory.
+ * <p>
+ * The open trajectories are kept in a grid of cells as large as the max displacement, so a
+ * localization is only compared with the trajectories of the neighboring cells. Memory use
+ * depends on the number of open trajectories only. With channel, slice or position columns,
+ * localizations of different units are never linked.
+ */
+public class TrackingSink implements LocalizationSink {
+
+	public final static String TRACK_HEADER = "track";
+
+	final LocalizationSink sink_;
+	final double maxDisplacement_; // in the units of x and y
+	final int maxGap_; // frames
+	long nextId_ = 1;
+
+	int xCol_, yCol_;
+	int [] unitCols_; // columns that separate the units
+
+	static class Track {
+		final long id_;
+		final long unit_;
+		double x_, y_;
+		int lastFrame_;
+		long cell_;
+
+		Track(long id, long unit) {
+			id_ = id;
+			unit_ = unit;
+		}
+	}
+
+	final HashMap<Long, ArrayList<Track>> grid_ = new HashMap<Long, ArrayList<Track>>();
+	ArrayList<Track> open_ = new ArrayList<Track>();
+
+	/**
+	 * @param sink Receives the localizations with the trajectory id
+	 * @param maxDisplacement Max distance between linked localizations, in the units of x and y
+	 * @param maxGap Max number of frames a trajectory may be missing, 0 to link consecutive frames only
+	 */
+	public TrackingSink(LocalizationSink sink, double maxDisplacement, int maxGap) {
+		if (!(maxDisplacement > 0) || maxGap < 0) {
+			throw new IllegalArgumentException("Invalid linking parameters");
+		}
+		sink_ = sink;
+		maxDisplacement_ = maxDisplacement;
+		maxGap_ = maxGap;
+	}
+
+	/**
+	 * @param id The id of the first new trajectory, e.g. to continue after the ids already in a file
+	 */
+	public void setFirstTrackId(long id) {
+		nextId_ = id;
+	}
+
+	@Override
+	public void begin(String [] headers) throws IOException {
+		List<String> h = Arrays.asList(headers);
+		xCol_ = h.indexOf("x");
+		yCol_ = h.indexOf("y");
+		if (xCol_ < 0 || yCol_ < 0) {
+			throw new IOException("No x and y columns to link");
+		}
+		ArrayList<Integer> units = new ArrayList<Integer>();
+		for (String s : ParticleAnalyzer2D.UNIT_HEADERS) {
+			if (h.contains(s)) {
+				units.add(h.indexOf(s));
+			}
+		}
+		unitCols_ = new int[units.size()];
+		for (int k = 0; k < unitCols_.length; k++) {
+			unitCols_[k] = units.get(k);
+		}
+		String [] out = Arrays.copyOf(headers, headers.length + 1);
+		out[headers.length] = TRACK_HEADER;
+		sink_.begin(out);
+	}
+
+	@Override
+	public void addFrame(int frame, List<double[]> rows) throws IOException {
+		retire(frame);
+
+		final int n = rows.size();
+		final long [] units = new long[n];
+		final long [] cells = new long[n];
+		for (int i = 0; i < n; i++) {
+			double [] row = rows.get(i);
+			units[i] = unit(row);
+			cells[i] = cell(row[xCol_], row[yCol_]);
+		}
+
+		// all pairs within reach, by increasing distance
+		ArrayList<Link> links = new ArrayList<Link>();
+		final double max2 = maxDisplacement_ * maxDisplacement_;
+		for (int i = 0; i < n; i++) {
+			double [] row = rows.get(i);
+			int cx = (int) (cells[i] >> 32), cy = (int) cells[i];
+			for (int dy = -1; dy <= 1; dy++) {
+				for (int dx = -1; dx <= 1; dx++) {
+					ArrayList<Track> tracks = grid_.get(key(units[i], cx + dx, cy + dy));
+					if (tracks == null) {
+						continue;
+					}
+					for (Track t : tracks) {
+						double ddx = row[xCol_] - t.x_, ddy = row[yCol_] - t.y_;
+						double d2 = ddx * ddx + ddy * ddy;
+						if (d2 <= max2 && t.unit_ == units[i]) {
+							links.add(new Link(d2, i, t));
+						}
+					}
+				}
+			}
+		}
+		links.sort((a, b) -> Double.compare(a.d2_, b.d2_));
+
+		Track [] assigned = new Track[n];
+		for (Link l : links) {
+			if (assigned[l.row_] == null && l.track_.lastFrame_ != frame) {
+				assigned[l.row_] = l.track_;
+				l.track_.lastFrame_ = frame; // taken in this frame
+			}
+		}
+
+		ArrayList<double[]> out = new ArrayList<double[]>(n);
+		for (int i = 0; i < n; i++) {
+			double [] row = rows.get(i);
+			Track t = assigned[i];
+			if (t == null) {
+				t = new Track(nextId_++, units[i]);
+				open_.add(t);
+			} else {
+				removeFromGrid(t);
+			}
+			t.x_ = row[xCol_];
+			t.y_ = row[yCol_];
+			t.lastFrame_ = frame;
+			t.cell_ = key(units[i], (int) (cells[i] >> 32), (int) cells[i]);
+			grid_.computeIfAbsent(t.cell_, k -> new ArrayList<Track>()).add(t);
+
+			double [] r = Arrays.copyOf(row, row.length + 1);
+			r[row.length] = t.id_;
+			out.add(r);
+		}
+		sink_.addFrame(frame, out);
+	}
+
+	@Override
+	public void end() throws IOException {
+		grid_.clear();
+		open_.clear();
+		sink_.end();
+	}
+
+	@Override
+	public void abort() {
+		grid_.clear();
+		open_.clear();
+		sink_.abort();
+	}
+
+	static class Link {
+		final double d2_;
+		final int row_;
+		final Track track_;
+
+		Link(double d2, int row, Track track) {
+			d2_ = d2;
+			row_ = row;
+			track_ = track;
+		}
+	}
+
+	// close the trajectories that can not be continued in this frame
+	void retire(int frame) {
+		ArrayList<Track> open = new ArrayList<Track>(open_.size());
+		for (Track t : open_) {
+			if (frame - t.lastFrame_ > maxGap_ + 1) {
+				removeFromGrid(t);
+			} else {
+				open.add(t);
+			}
+		}
+		open_ = open;
+	}
+
+	void removeFromGrid(Track t) {
+		ArrayList<Track> c = grid_.get(t.cell_);
+		c.remove(t);
+		if (c.isEmpty()) {
+			grid_.remove(t.cell_);
+		}
+	}
+
+	long unit(double [] row) {
+		long u = 0;
+		for (int c : unitCols_) {
+			u = u * 1031 + (long) row[c];
+		}
+		return u;
+	}
+
+	// the grid cell, as x in the upper and y in the lower half
+	long cell(double x, double y) {
+		int cx = (int) Math.floor(x / maxDisplacement_);
+		int cy = (int) Math.floor(y / maxDisplacement_);
+		return ((long) cx << 32) | (cy & 0xffffffffL);
+	}
+
+	// the grid key of a cell of a unit. Keys may collide, the tracks of a cell are checked anyway.
+	long key(long unit, int cx, int cy) {
+		return (((long) cx << 32) | (cy & 0xffffffffL)) * 31 + unit;
+	}
+}
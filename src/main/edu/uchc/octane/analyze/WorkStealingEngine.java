@@ -0,0 +1,162 @@
+package edu.uchc.octane.analyze;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs the analysis of a range of frames on a work-stealing pool, balanced at the level of
+ * candidates instead of frames. Each worker takes the next frame, detects its candidates and
+ * splits their fitting into small tasks. Workers that are idle, e.g. out of frames at the end
+ * of the run, steal these tasks, so a dense frame is fitted by several workers and the last frames
+ * do not hold up the run. A worker that waits for the reorder buffer does not steal itself. It
+ * blocks through {@link ForkJoinPool#managedBlock}, so the pool starts a spare thread that does.
+ * <p>
+ * Each thread has its own {@link FrameAnalyzer2D} context, which fits the stolen candidates of
+ * other frames with its own fitter.
+ */
+public class WorkStealingEngine {
+
+	final static int CHUNK = 16; // candidates fitted as one task
+
+	/**
+	 * Detects the candidates of a work item, e.g. a frame. Called concurrently from all workers.
+	 */
+	public interface Detector {
+		CandidateBuffer detect(FrameAnalyzer2D context, int item) throws Exception;
+	}
+
+	/**
+	 * Receives the particles of a work item, on the worker that detected it
+	 */
+	public interface Collector {
+		void collect(int item, ArrayList<double[]> particles) throws Exception;
+	}
+
+	final int nThreads_;
+
+	/**
+	 * Constructor
+	 * @param nThreads Number of worker threads. Values < 1 means one thread per core.
+	 */
+	public WorkStealingEngine(int nThreads) {
+		if (nThreads < 1) {
+			nThreads = Runtime.getRuntime().availableProcessors();
+		}
+		nThreads_ = nThreads;
+	}
+
+	public int getNumThreads() {
+		return nThreads_;
+	}
+
+	/**
+	 * Process the items firstItem..lastItem (inclusive). Returns when all items are done.
+	 * @param firstItem First item
+	 * @param lastItem Last item
+	 * @param contextFactory Creates the per-thread contexts
+	 * @param detector The detection of an item
+	 * @param collector Receives the fitted particles
+	 * @throws InterruptedException If the calling thread was interrupted. Workers are stopped.
+	 * @throws ExecutionException If any task failed. Remaining items are skipped.
+	 */
+	public void run(final int firstItem, final int lastItem, Supplier<FrameAnalyzer2D> contextFactory,
+			final Detector detector, final Collector collector) throws InterruptedException, ExecutionException {
+		final AtomicInteger nextItem = new AtomicInteger(firstItem);
+		int nWorkers = Math.min(nThreads_, lastItem - firstItem + 1);
+		if (nWorkers < 1) {
+			return;
+		}
+		final ThreadLocal<FrameAnalyzer2D> contexts = ThreadLocal.withInitial(contextFactory);
+
+		// all threads steal, even if there are fewer items than threads
+		ForkJoinPool pool = new ForkJoinPool(nThreads_, new WorkerFactory(), null, false);
+		CompletionService<Object> workers = new ExecutorCompletionService<Object>(pool);
+		try {
+			for (int i = 0; i < nWorkers; i++) {
+				workers.submit(() -> {
+					int item;
+					while ((item = nextItem.getAndIncrement()) <= lastItem) {
+						if (Thread.currentThread().isInterrupted()) {
+							return null;
+						}
+						FrameAnalyzer2D context = contexts.get();
+						CandidateBuffer candidates = detector.detect(context, item);
+						FitTask fit = new FitTask(contexts, candidates, 0, candidates.size());
+						ArrayList<double[]> particles = fit.invoke();
+						context.recordFit(candidates, particles.size(), fit.nanos_);
+						collector.collect(item, particles);
+					}
+					return null;
+				});
+			}
+			// take the workers as they finish, so that a failure is seen even if other workers are blocked
+			for (int i = 0; i < nWorkers; i++) {
+				workers.take().get();
+			}
+		} catch (ExecutionException | InterruptedException e) {
+			nextItem.set(lastItem + 1);
+			throw e;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Fits a range of candidates, splitting it in halves until it is small. The halves not
+	 * computed right away are open to stealing.
+	 */
+	static class FitTask extends RecursiveTask<ArrayList<double[]>> {
+		private static final long serialVersionUID = 1L;
+
+		final ThreadLocal<FrameAnalyzer2D> contexts_;
+		final CandidateBuffer candidates_;
+		final int from_, to_;
+		long nanos_; // time spent fitting, summed over the threads
+
+		FitTask(ThreadLocal<FrameAnalyzer2D> contexts, CandidateBuffer candidates, int from, int to) {
+			contexts_ = contexts;
+			candidates_ = candidates;
+			from_ = from;
+			to_ = to;
+		}
+
+		@Override
+		protected ArrayList<double[]> compute() {
+			if (to_ - from_ <= CHUNK) {
+				long t0 = System.nanoTime();
+				ArrayList<double[]> particles = contexts_.get().fitCandidates(candidates_, from_, to_);
+				nanos_ = System.nanoTime() - t0;
+				return particles;
+			}
+			int mid = (from_ + to_) >>> 1;
+			FitTask right = new FitTask(contexts_, candidates_, mid, to_);
+			right.fork();
+			FitTask left = new FitTask(contexts_, candidates_, from_, mid);
+			ArrayList<double[]> particles = left.compute();
+			particles.addAll(right.join());
+			nanos_ = left.nanos_ + right.nanos_;
+			return particles;
+		}
+	}
+
+	static class WorkerFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+		static final AtomicInteger poolCount_ = new AtomicInteger();
+		final int poolId_ = poolCount_.incrementAndGet();
+		final AtomicInteger threadCount_ = new AtomicInteger();
+
+		@Override
+		public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+			ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			t.setName("octane-batch-" + poolId_ + "-" + threadCount_.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package edu.uchc.octane.analyze;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class AstigmaticCalibrationTest {
+
+	final static double [] X = {1.3, -250, 3e-6}, Y = {1.3, 250, 3e-6}; // a, c, b
+
+	static double width(double [] p, double z) {
+		return p[0] + p[2] * (z - p[1]) * (z - p[1]);
+	}
+
+	@Test
+	public void testZFromWidths() {
+		AstigmaticCalibration c = new AstigmaticCalibration(AstigmaticCalibration.format(X), AstigmaticCalibration.format(Y));
+		for (double z = -600; z <= 600; z += 7) {
+			assertEquals(z, c.getZ(width(X, z), width(Y, z)), 2 * c.zStep_);
+		}
+		// far from the curve
+		assertTrue(Double.isNaN(c.getZ(5, 5)));
+		assertTrue(Double.isNaN(c.getZ(0, 1.3)));
+	}
+
+	@Test
+	public void testFitCurveRecoversTheCalibration() {
+		Random r = new Random(1);
+		int n = 81;
+		double [] z = new double[n], sx = new double[n], sy = new double[n];
+		for (int i = 0; i < n; i++) {
+			z[i] = -800 + 20 * i;
+			sx[i] = width(X, z[i]) + 0.01 * r.nextGaussian();
+			sy[i] = width(Y, z[i]) + 0.01 * r.nextGaussian();
+		}
+		double [] px = AstigmaticCalibration.fitCurve(z, sx, n), py = AstigmaticCalibration.fitCurve(z, sy, n);
+		assertEquals(X[0], px[0], 0.01);
+		assertEquals(X[1], px[1], 5);
+		assertEquals(X[2], px[2], 0.05 * X[2]);
+		assertEquals(Y[1], py[1], 5);
+
+		// the fitted strings give back the z of the beads
+		AstigmaticCalibration c = new AstigmaticCalibration(AstigmaticCalibration.format(px), AstigmaticCalibration.format(py));
+		for (int i = 10; i < n - 10; i++) {
+			assertEquals(z[i], c.getZ(width(X, z[i]), width(Y, z[i])), 10);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testFitCurveNeedsAMinimum() {
+		double [] z = {0, 100, 200, 300}, sigma = {3, 2.5, 2, 1.5};
+		AstigmaticCalibration.fitCurve(z, sigma, 4);
+	}
+}
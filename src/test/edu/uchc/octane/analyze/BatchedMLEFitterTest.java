@@ -0,0 +1,92 @@
+package edu.uchc.octane.analyze;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.uchc.octane.core.pixelimage.RectangularDoubleImage;
+
+public class BatchedMLEFitterTest {
+
+	final static double PHOTONS = 1000, BACKGROUND = 20, SIGMA = 1.3;
+	final static int SIZE = 9; // pixels of a candidate
+	final static int SPOTS = 500;
+
+	static int poisson(Random r, double mean) {
+		double l = Math.exp(-mean), p = r.nextDouble();
+		int k = 0;
+		while (p > l) {
+			p *= r.nextDouble();
+			k ++;
+		}
+		return k;
+	}
+
+	// a pixel-integrated Gaussian at x, y of the candidate, with Poisson noise
+	static RectangularDoubleImage spot(Random r, double x, double y) {
+		double [] d = new double[SIZE * SIZE];
+		double s = Math.sqrt(2) * SIGMA;
+		for (int row = 0; row < SIZE; row++) {
+			double ey = 0.5 * (BatchedMLEFitter.erf((row - y + 0.5) / s) - BatchedMLEFitter.erf((row - y - 0.5) / s));
+			for (int c = 0; c < SIZE; c++) {
+				double ex = 0.5 * (BatchedMLEFitter.erf((c - x + 0.5) / s) - BatchedMLEFitter.erf((c - x - 0.5) / s));
+				d[row * SIZE + c] = poisson(r, BACKGROUND + PHOTONS * ex * ey);
+			}
+		}
+		return new RectangularDoubleImage(d, SIZE);
+	}
+
+	@Test
+	public void testPositionErrorOfSimulatedSpots() {
+		Random r = new Random(42);
+		BatchedMLEFitter fitter = new BatchedMLEFitter(SIGMA, 10, 5);
+		double [] x = new double[SPOTS], y = new double[SPOTS];
+		int [] x0 = new int[SPOTS], y0 = new int[SPOTS];
+		for (int i = 0; i < SPOTS; i++) {
+			x[i] = SIZE / 2 + r.nextDouble() - 0.5;
+			y[i] = SIZE / 2 + r.nextDouble() - 0.5;
+			RectangularDoubleImage img = spot(r, x[i], y[i]);
+			x0[i] = img.x0 = r.nextInt(500);
+			y0[i] = img.y0 = r.nextInt(500);
+			fitter.add(img);
+		}
+		fitter.fit();
+
+		assertEquals(SPOTS, fitter.size());
+		double se = 0, sn = 0, sb = 0;
+		for (int i = 0; i < SPOTS; i++) {
+			double [] p = fitter.getResult(i);
+			assertNotNull("fit " + i + " did not converge", p);
+			double dx = p[0] - x0[i] - x[i], dy = p[1] - y0[i] - y[i];
+			se += dx * dx + dy * dy;
+			sn += p[3];
+			sb += p[4];
+		}
+		double rms = Math.sqrt(se / (2 * SPOTS));
+		// the Cramer-Rao bound of these spots is about 0.06 px
+		assertTrue("position error " + rms + " px RMS", rms < 0.075);
+		assertEquals(PHOTONS, sn / SPOTS, 0.03 * PHOTONS);
+		assertEquals(BACKGROUND, sb / SPOTS, 0.03 * BACKGROUND);
+	}
+
+	@Test
+	public void testBatchIsReused() {
+		Random r = new Random(1);
+		BatchedMLEFitter fitter = new BatchedMLEFitter(SIGMA, 10, 8);
+		fitter.add(spot(r, 3.2, 4.7));
+		fitter.fit();
+		fitter.clear();
+		assertEquals(0, fitter.size());
+		fitter.add(spot(r, 5.1, 3.6));
+		fitter.fit();
+		double [] p = fitter.getResult(0);
+		assertEquals(8, p.length);
+		assertEquals(5.1, p[0], 0.3);
+		assertEquals(3.6, p[1], 0.3);
+		assertEquals(SIGMA, p[2], 0);
+	}
+}
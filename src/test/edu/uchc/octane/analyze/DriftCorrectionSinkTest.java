@@ -0,0 +1,166 @@
+package edu.uchc.octane.analyze;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.uchc.octane.core.datasource.OctaneDataFile;
+
+public class DriftCorrectionSinkTest {
+
+	final static String [] HEADERS = {"frame", "x", "y", "channel"};
+	final static double SIZE = 5000, BIN = 30, MAX_DRIFT = 1000; // nm
+	final static int WINDOW = 100, FRAMES = 1000, PER_FRAME = 20;
+	final static double [] DRIFT = {0.5, -0.3}; // nm per frame of channel 0. Channel 1 does not drift.
+
+	File dir_;
+	String path_;
+
+	@Before
+	public void setUp() throws IOException {
+		dir_ = Files.createTempDirectory("drift").toFile();
+		path_ = new File(dir_, "a" + LocalizationFile.EXTENSION).getPath();
+	}
+
+	@After
+	public void tearDown() {
+		for (File f : dir_.listFiles()) {
+			f.delete();
+		}
+		dir_.delete();
+	}
+
+	static class Collector implements LocalizationSink {
+		final ArrayList<double[]> rows_ = new ArrayList<double[]>();
+
+		@Override
+		public void begin(String [] headers) {
+		}
+
+		@Override
+		public void addFrame(int frame, List<double[]> rows) {
+			rows_.addAll(rows);
+		}
+
+		@Override
+		public void end() {
+		}
+	}
+
+	// blinking of a fixed structure of each channel, moved by the drift of the channel
+	static class Sample {
+		final double [][] sites_ = new double[2][400];
+
+		Sample() {
+			Random r = new Random(1);
+			for (int c = 0; c < 2; c++) {
+				for (int i = 0; i < sites_[c].length; i += 2) {
+					sites_[c][i] = 500 + r.nextDouble() * (SIZE - 1000);
+					sites_[c][i + 1] = 500 + r.nextDouble() * (SIZE - 1000);
+				}
+			}
+		}
+
+		List<double[]> frame(int frame) {
+			Random r = new Random(frame);
+			ArrayList<double[]> rows = new ArrayList<double[]>();
+			for (int c = 0; c < 2; c++) {
+				double dx = c == 0 ? DRIFT[0] * frame : 0, dy = c == 0 ? DRIFT[1] * frame : 0;
+				for (int i = 0; i < PER_FRAME; i++) {
+					int s = r.nextInt(sites_[c].length / 2) * 2;
+					rows.add(new double[] {frame, sites_[c][s] + dx + 10 * r.nextGaussian(), sites_[c][s + 1] + dy + 10 * r.nextGaussian(), c});
+				}
+			}
+			return rows;
+		}
+	}
+
+	static DriftCorrectionSink sink(LocalizationSink out) {
+		return new DriftCorrectionSink(out, SIZE, SIZE, WINDOW, BIN, MAX_DRIFT);
+	}
+
+	// the largest error of the corrected positions, against the drift relative to the first window
+	static double maxError(List<double[]> rows) {
+		double max = 0;
+		double center = (1 + WINDOW) / 2.0;
+		for (double [] r : rows) {
+			double dx = r[3] == 0 ? DRIFT[0] * (r[0] - center) : 0, dy = r[3] == 0 ? DRIFT[1] * (r[0] - center) : 0;
+			max = Math.max(max, Math.abs(r[1] - dx - r[4]));
+			max = Math.max(max, Math.abs(r[2] - dy - r[5]));
+		}
+		return max;
+	}
+
+	@Test
+	public void testUnitsAreCorrectedSeparately() throws IOException {
+		Sample sample = new Sample();
+		Collector out = new Collector();
+		DriftCorrectionSink drift = sink(out);
+		drift.begin(HEADERS);
+		for (int f = 1; f <= FRAMES; f++) {
+			drift.addFrame(f, sample.frame(f));
+		}
+		drift.end();
+		assertEquals(FRAMES * PER_FRAME * 2, out.rows_.size());
+		assertTrue("error " + maxError(out.rows_), maxError(out.rows_) < 2 * BIN);
+
+		OctaneDataFile trace = drift.getDriftTrace();
+		assertEquals("channel", trace.headers[3]);
+		for (int i = 0; i < trace.data[0].length; i++) {
+			if (trace.data[3][i] == 1) {
+				assertEquals(0, trace.data[1][i], BIN);
+				assertEquals(0, trace.data[2][i], BIN);
+			}
+		}
+	}
+
+	@Test
+	public void testResumeContinuesTheDrift() throws IOException {
+		Sample sample = new Sample();
+		final int stop = 650;
+		// an interrupted run. The frames held for the next window center are lost.
+		DriftCorrectionSink drift = sink(new LocalizationFileWriter(path_, false));
+		drift.begin(HEADERS);
+		for (int f = 1; f <= stop; f++) {
+			drift.addFrame(f, sample.frame(f));
+		}
+		drift.abort();
+
+		int first;
+		try (LocalizationFileReader reader = new LocalizationFileReader(path_)) {
+			first = reader.getLastFrame() + 1;
+		}
+		assertTrue(first > WINDOW && first <= stop);
+		drift = sink(new LocalizationFileWriter(path_, true));
+		drift.resumeFrom(path_);
+		drift.begin(HEADERS);
+		for (int f = first; f <= FRAMES; f++) {
+			drift.addFrame(f, sample.frame(f));
+		}
+		drift.end();
+
+		ArrayList<double[]> rows = new ArrayList<double[]>();
+		try (LocalizationFileReader reader = new LocalizationFileReader(path_)) {
+			OctaneDataFile data = reader.toOctaneDataFile();
+			for (int i = 0; i < data.data[0].length; i++) {
+				double [] r = new double[data.headers.length];
+				for (int k = 0; k < r.length; k++) {
+					r[k] = data.data[k][i];
+				}
+				rows.add(r);
+			}
+		}
+		assertEquals(FRAMES * PER_FRAME * 2, rows.size());
+		assertTrue("error " + maxError(rows), maxError(rows) < 2 * BIN);
+	}
+}
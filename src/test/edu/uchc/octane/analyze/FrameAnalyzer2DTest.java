@@ -0,0 +1,106 @@
+package edu.uchc.octane.analyze;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.uchc.octane.core.pixelimage.RectangularDoubleImage;
+import ij.process.FloatProcessor;
+
+public class FrameAnalyzer2DTest {
+
+	final static double OFFSET = 100, BACKGROUND = 10, PHOTONS = 2000, SIGMA = 1.2;
+
+	// photon counts of a frame with Gaussian spots at x, y pairs, with Poisson-like noise
+	static double [] photons(int w, int h, double [] spots, long seed) {
+		Random r = new Random(seed);
+		double [] p = new double[w * h];
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				double v = BACKGROUND;
+				for (int k = 0; k < spots.length; k += 2) {
+					double dx = x - spots[k], dy = y - spots[k + 1];
+					v += PHOTONS / (2 * Math.PI * SIGMA * SIGMA) * Math.exp(-(dx * dx + dy * dy) / (2 * SIGMA * SIGMA));
+				}
+				p[y * w + x] = Math.max(0, v + Math.sqrt(v) * r.nextGaussian());
+			}
+		}
+		return p;
+	}
+
+	// the part of the frame around x, y, clipped at the edges like the detection does
+	static RectangularDoubleImage subImage(double [] p, int w, int h, int x, int y, int k) {
+		int x0 = Math.max(0, x - k), x1 = Math.min(w - 1, x + k);
+		int y0 = Math.max(0, y - k), y1 = Math.min(h - 1, y + k);
+		double [] d = new double[(x1 - x0 + 1) * (y1 - y0 + 1)];
+		for (int j = y0, i = 0; j <= y1; j++) {
+			for (int c = x0; c <= x1; c++) {
+				d[i++] = p[j * w + c];
+			}
+		}
+		RectangularDoubleImage img = new RectangularDoubleImage(d, x1 - x0 + 1);
+		img.x0 = x0;
+		img.y0 = y0;
+		return img;
+	}
+
+	static ParticleAnalyzer2D analyzer(boolean cascade) {
+		ParticleAnalyzer2D analyzer = new ParticleAnalyzer2D();
+		analyzer.setPixelSize(100);
+		analyzer.setResolution(SIGMA * 2.355 * 100);
+		analyzer.setFitter("BatchMLE");
+		analyzer.setNoiseThreshold(60);
+		analyzer.setCameraParameters(OFFSET, 1);
+		analyzer.setCascade(cascade, 50);
+		return analyzer;
+	}
+
+	@Test
+	public void testEstimateAcceptsClippedSubImages() {
+		final int w = 32, h = 32;
+		int k = analyzer(true).kernelSize_;
+		// within the kernel size of the left, top and right / bottom edges
+		int [][] spots = {{1, 15}, {16, 1}, {30, 30}, {1, 1}, {2, 30}};
+		for (int [] s : spots) {
+			double [] p = photons(w, h, new double[] {s[0], s[1]}, 3);
+			FrameAnalyzer2D fa = analyzer(true).newFrameAnalyzer();
+			assertTrue("spot at " + s[0] + ", " + s[1], fa.passesEstimate(subImage(p, w, h, s[0], s[1], k), s[0], s[1]));
+		}
+	}
+
+	@Test
+	public void testEstimateRejectsMassAwayFromTheMaximum() {
+		final int w = 32, h = 32;
+		int k = analyzer(true).kernelSize_;
+		// a maximum at 16, 16 with the spot at the corner of its sub-image
+		double [] p = photons(w, h, new double[] {19.5, 19.5}, 5);
+		FrameAnalyzer2D fa = analyzer(true).newFrameAnalyzer();
+		assertFalse(fa.passesEstimate(subImage(p, w, h, 16, 16, k), 16, 16));
+		assertEquals(1, fa.stats_.offCenter_.sum());
+	}
+
+	@Test
+	public void testCascadeKeepsSpotsNearTheBorder() {
+		final int w = 40, h = 40;
+		double [] spots = {1.2, 20.3, 20.4, 1.1, 37.8, 19.6, 19.8, 38.2, 20.2, 20.1};
+		double [] p = photons(w, h, spots, 7);
+		float [] counts = new float[p.length];
+		for (int i = 0; i < p.length; i++) {
+			counts[i] = (float) (p[i] + OFFSET);
+		}
+		FloatProcessor ip = new FloatProcessor(w, h, counts);
+
+		ParticleAnalyzer2D plain = analyzer(false);
+		List<double[]> all = plain.newFrameAnalyzer().analyze(ip);
+		ParticleAnalyzer2D cascaded = analyzer(true);
+		List<double[]> kept = cascaded.newFrameAnalyzer().analyze(ip);
+		assertEquals(spots.length / 2, all.size());
+		assertEquals(all.size(), kept.size());
+		assertEquals(0, cascaded.getFitStatistics().offCenter_.sum());
+	}
+}
@@ -0,0 +1,73 @@
+package edu.uchc.octane.analyze;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+public class FrameReorderBufferTest {
+
+	static class FrameList extends ColumnBufferSink {
+		final List<Integer> frames_ = Collections.synchronizedList(new ArrayList<Integer>());
+
+		@Override
+		public void addFrame(int frame, List<double[]> rows) {
+			frames_.add(frame);
+		}
+	}
+
+	@Test
+	public void testFramesArriveInOrder() throws Exception {
+		FrameList sink = new FrameList();
+		FrameReorderBuffer reorder = new FrameReorderBuffer(sink, 3, 4);
+		reorder.put(5, new ArrayList<double[]>());
+		reorder.put(4, new ArrayList<double[]>());
+		assertEquals(0, sink.frames_.size());
+		reorder.put(3, new ArrayList<double[]>());
+		assertEquals(6, reorder.getNextFrame());
+		reorder.put(6, new ArrayList<double[]>());
+		assertEquals(Arrays.asList(3, 4, 5, 6), sink.frames_);
+	}
+
+	@Test
+	public void testWaitingWorkerDoesNotStallThePool() throws InterruptedException, ExecutionException, TimeoutException {
+		// a single worker waits for a slot, and the frame it waits for is still queued on the pool
+		ForkJoinPool pool = new ForkJoinPool(1);
+		try {
+			final FrameList sink = new FrameList();
+			final FrameReorderBuffer reorder = new FrameReorderBuffer(sink, 1, 1);
+			ForkJoinTask<?> ahead = pool.submit(() -> {
+				try {
+					reorder.awaitSlot(2);
+					reorder.put(2, new ArrayList<double[]>());
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			});
+			while (pool.getActiveThreadCount() == 0) {
+				Thread.sleep(1);
+			}
+			ForkJoinTask<?> first = pool.submit(() -> {
+				try {
+					reorder.put(1, new ArrayList<double[]>());
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			});
+			first.get(10, TimeUnit.SECONDS);
+			ahead.get(10, TimeUnit.SECONDS);
+			assertEquals(Arrays.asList(1, 2), sink.frames_);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+}
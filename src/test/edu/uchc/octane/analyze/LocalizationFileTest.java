@@ -0,0 +1,255 @@
+package edu.uchc.octane.analyze;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+public class LocalizationFileTest {
+
+	final static String [] HEADERS = {"frame", "x", "y", "intensity"};
+
+	File dir_;
+	String path_;
+
+	@Before
+	public void setUp() throws IOException {
+		dir_ = Files.createTempDirectory("oloc").toFile();
+		path_ = new File(dir_, "a" + LocalizationFile.EXTENSION).getPath();
+	}
+
+	@After
+	public void tearDown() {
+		for (File f : dir_.listFiles()) {
+			f.delete();
+		}
+		dir_.delete();
+	}
+
+	// frame f has f % 4 localizations, spread over x and y
+	static List<double[]> rows(int frame) {
+		ArrayList<double[]> rows = new ArrayList<double[]>();
+		for (int i = 0; i < frame % 4; i++) {
+			rows.add(new double[] {frame, 1000.0 * i + frame * 0.37, -50 + frame * 12.21, frame * 1e-3 + i});
+		}
+		return rows;
+	}
+
+	static void write(LocalizationFileWriter writer, int firstFrame, int lastFrame) throws IOException {
+		for (int f = firstFrame; f <= lastFrame; f++) {
+			writer.addFrame(f, rows(f));
+		}
+	}
+
+	// the file holds exactly the localizations of the frames
+	static void check(LocalizationFileReader reader, int firstFrame, int lastFrame) throws IOException {
+		double [][] c = reader.readColumns(reader.findBlocks(firstFrame, lastFrame), firstFrame, lastFrame);
+		int i = 0;
+		for (int f = firstFrame; f <= lastFrame; f++) {
+			for (double [] row : rows(f)) {
+				assertEquals(row[0], c[0][i], 0);
+				assertEquals(row[1], c[1][i], 0.05 + 1e-9);
+				assertEquals(row[2], c[2][i], 0.05 + 1e-9);
+				assertEquals(row[3], c[3][i], 0); // raw column
+				i++;
+			}
+		}
+		assertEquals(i, c[0].length);
+		assertEquals(i, reader.size());
+	}
+
+	LocalizationFileWriter newWriter(boolean append) {
+		LocalizationFileWriter writer = new LocalizationFileWriter(path_, append);
+		writer.setBlockRows(10);
+		return writer;
+	}
+
+	@Test
+	public void testVarLongAndZigzag() throws IOException {
+		long [] values = {0, 1, -1, 63, -64, 64, 127, 128, 300, -300, Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+		ByteBuffer b = ByteBuffer.allocate(10 * values.length);
+		for (long v : values) {
+			LocalizationFile.putVarLong(b, LocalizationFile.zigzag(v));
+		}
+		b.flip();
+		for (long v : values) {
+			assertEquals(v, LocalizationFile.unzigzag(LocalizationFile.getVarLong(b)));
+		}
+		assertFalse(b.hasRemaining());
+		// small magnitudes of either sign take one byte
+		assertEquals(1, LocalizationFile.zigzag(-1));
+		assertEquals(127, LocalizationFile.zigzag(-64));
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		LocalizationFileWriter writer = newWriter(false);
+		writer.begin(HEADERS);
+		write(writer, 1, 100);
+		writer.end();
+		try (LocalizationFileReader reader = new LocalizationFileReader(path_)) {
+			assertFalse(reader.wasRecovered());
+			assertTrue(reader.getBlockCount() > 1);
+			assertEquals(100, reader.getLastFrame()); // frames without localizations count
+			check(reader, 1, 100);
+
+			// the footer index finds the blocks of a time window and a region
+			double [][] window = reader.readColumns(reader.findBlocks(40, 45), 40, 45);
+			for (double f : window[0]) {
+				assertTrue(f >= 40 && f <= 45);
+			}
+			assertEquals(1 + 2 + 3 + 1, window[0].length);
+			for (int b : reader.findBlocks(1, 100, 0, 0, 500, 0)) {
+				assertTrue(reader.getBlockInfo(b).overlapsRegion(0, 0, 500, 0));
+			}
+			assertTrue(reader.findBlocks(1, 100, 0, 0, 500, 0).size() < reader.getBlockCount());
+		}
+	}
+
+	@Test
+	public void testTruncatedFileIsRecovered() throws IOException {
+		LocalizationFileWriter writer = newWriter(false);
+		writer.begin(HEADERS);
+		write(writer, 1, 100);
+		writer.end();
+		List<LocalizationFile.BlockInfo> blocks = new ArrayList<LocalizationFile.BlockInfo>();
+		try (LocalizationFileReader reader = new LocalizationFileReader(path_)) {
+			blocks.addAll(reader.blocks_);
+		}
+		// cut inside the third block: the first two are kept
+		LocalizationFile.BlockInfo third = blocks.get(2);
+		try (RandomAccessFile raf = new RandomAccessFile(path_, "rw")) {
+			raf.setLength(third.offset_ + LocalizationFile.BLOCK_HEADER_BYTES + 3);
+		}
+		try (LocalizationFileReader reader = new LocalizationFileReader(path_)) {
+			assertTrue(reader.wasRecovered());
+			assertEquals(2, reader.getBlockCount());
+			check(reader, 1, blocks.get(1).lastFrame_);
+		}
+	}
+
+	@Test
+	public void testCorruptedBlockFailsTheChecksum() throws IOException {
+		LocalizationFileWriter writer = newWriter(false);
+		writer.begin(HEADERS);
+		write(writer, 1, 100);
+		writer.end();
+		LocalizationFile.BlockInfo second;
+		try (LocalizationFileReader reader = new LocalizationFileReader(path_)) {
+			second = reader.getBlockInfo(1);
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(path_, "rw")) {
+			long pos = second.offset_ + LocalizationFile.BLOCK_HEADER_BYTES + 1;
+			raf.seek(pos);
+			int v = raf.read();
+			raf.seek(pos);
+			raf.write(v ^ 0x10);
+		}
+		try (LocalizationFileReader reader = new LocalizationFileReader(path_)) {
+			reader.readBlock(0);
+			try {
+				reader.readBlock(1);
+				fail("corrupted block was read");
+			} catch (IOException e) {
+				// expected
+			}
+		}
+		// without the index the scan stops before the corrupted block
+		try (RandomAccessFile raf = new RandomAccessFile(path_, "rw")) {
+			raf.setLength(raf.length() - 1);
+		}
+		try (LocalizationFileReader reader = new LocalizationFileReader(path_)) {
+			assertTrue(reader.wasRecovered());
+			assertEquals(1, reader.getBlockCount());
+		}
+	}
+
+	@Test
+	public void testAppend() throws IOException {
+		LocalizationFileWriter writer = newWriter(false);
+		writer.begin(HEADERS);
+		write(writer, 1, 50);
+		writer.end();
+		writer = newWriter(true);
+		writer.begin(HEADERS);
+		write(writer, 51, 100);
+		writer.end();
+		try (LocalizationFileReader reader = new LocalizationFileReader(path_)) {
+			assertFalse(reader.wasRecovered());
+			check(reader, 1, 100);
+		}
+
+		// the columns must match
+		writer = newWriter(true);
+		try {
+			writer.begin(new String[] {"frame", "x", "y"});
+			fail("appended with other columns");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testAbortedFileCanBeResumed() throws IOException {
+		LocalizationFileWriter writer = newWriter(false);
+		writer.begin(HEADERS);
+		write(writer, 1, 60);
+		writer.abort();
+		assertFalse(writer.ch_.isOpen());
+		int last;
+		try (LocalizationFileReader reader = new LocalizationFileReader(path_)) {
+			assertTrue(reader.wasRecovered());
+			last = reader.getLastFrame();
+			assertTrue(last > 0 && last < 60);
+			check(reader, 1, last);
+		}
+		writer = newWriter(true);
+		writer.begin(HEADERS);
+		write(writer, last + 1, 100);
+		writer.end();
+		try (LocalizationFileReader reader = new LocalizationFileReader(path_)) {
+			assertFalse(reader.wasRecovered());
+			check(reader, 1, 100);
+		}
+	}
+
+	@Test
+	public void testFailedAnalysisClosesTheFile() throws InterruptedException, IOException {
+		ImageStack stack = new ImageStack(32, 32);
+		for (int f = 0; f < 20; f++) {
+			stack.addSlice(new FloatProcessor(32, 32));
+		}
+		LocalizationFileWriter writer = new LocalizationFileWriter(path_) {
+			@Override
+			public void addFrame(int frame, List<double[]> rows) throws IOException {
+				if (frame == 5) {
+					throw new IOException("disk full");
+				}
+				super.addFrame(frame, rows);
+			}
+		};
+		try {
+			new ParticleAnalyzer2D().processAll(stack, writer);
+			fail("the failure was not reported");
+		} catch (ExecutionException e) {
+			// expected
+		}
+		assertFalse(writer.ch_.isOpen());
+	}
+}
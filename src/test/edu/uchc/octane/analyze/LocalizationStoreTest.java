@@ -0,0 +1,138 @@
+package edu.uchc.octane.analyze;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.uchc.octane.core.datasource.OctaneDataFile;
+
+public class LocalizationStoreTest {
+
+	final static String [] HEADERS = {"x", "y", "intensity", "frame"};
+	final static int FRAMES = 5000;
+
+	// clustered localizations, more than one chunk of the store. Some frames are empty.
+	static List<double[]> rows(Random r) {
+		ArrayList<double[]> rows = new ArrayList<double[]>();
+		for (int f = 1; f <= FRAMES; f++) {
+			int n = f % 7 == 0 ? 0 : r.nextInt(80);
+			for (int i = 0; i < n; i++) {
+				double cx = (i % 5) * 4000, cy = (i % 3) * 7000;
+				rows.add(new double[] {cx + r.nextGaussian() * 800, cy + r.nextGaussian() * 800, r.nextDouble() * 1000, f});
+			}
+		}
+		return rows;
+	}
+
+	static LocalizationStore fill(List<double[]> rows, boolean end) {
+		LocalizationStore store = new LocalizationStore(500);
+		store.begin(HEADERS);
+		int i = 0;
+		while (i < rows.size()) {
+			int f = (int) rows.get(i)[3];
+			int j = i;
+			while (j < rows.size() && rows.get(j)[3] == f) {
+				j++;
+			}
+			store.addFrame(f, rows.subList(i, j));
+			i = j;
+		}
+		if (end) {
+			store.end();
+		}
+		return store;
+	}
+
+	static List<double[]> linearScan(List<double[]> rows, double minX, double minY, double maxX, double maxY, int firstFrame, int lastFrame) {
+		ArrayList<double[]> found = new ArrayList<double[]>();
+		for (double [] row : rows) {
+			if (row[0] >= minX && row[0] <= maxX && row[1] >= minY && row[1] <= maxY && row[3] >= firstFrame && row[3] <= lastFrame) {
+				found.add(row);
+			}
+		}
+		return found;
+	}
+
+	// the rows visited, sorted by intensity, which is unique
+	static List<double[]> query(LocalizationStore store, double minX, double minY, double maxX, double maxY, int firstFrame, int lastFrame) {
+		final ArrayList<double[]> found = new ArrayList<double[]>();
+		int n = store.query(minX, minY, maxX, maxY, firstFrame, lastFrame, row -> {
+			double [] r = new double[HEADERS.length];
+			for (int k = 0; k < r.length; k++) {
+				r[k] = store.get(k, row);
+			}
+			found.add(r);
+		});
+		assertEquals(found.size(), n);
+		return found;
+	}
+
+	static void assertSameRows(List<double[]> expected, List<double[]> actual) {
+		Collections.sort(expected, (a, b) -> Double.compare(a[2], b[2]));
+		Collections.sort(actual, (a, b) -> Double.compare(a[2], b[2]));
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertArrayEquals(expected.get(i), actual.get(i), 0);
+		}
+	}
+
+	@Test
+	public void testQueriesMatchLinearScan() {
+		Random r = new Random(3);
+		List<double[]> rows = rows(r);
+		assertTrue(rows.size() > 2 * LocalizationStore.CHUNK);
+		for (boolean indexed : new boolean[] {false, true}) {
+			LocalizationStore store = fill(rows, indexed);
+			assertEquals(rows.size(), store.size());
+			for (int q = 0; q < 200; q++) {
+				double x = -3000 + r.nextDouble() * 24000, y = -3000 + r.nextDouble() * 20000;
+				double w = r.nextDouble() * (q % 2 == 0 ? 1000 : 20000), h = r.nextDouble() * (q % 2 == 0 ? 1000 : 20000);
+				int f = 1 + r.nextInt(FRAMES), len = q % 3 == 0 ? FRAMES : r.nextInt(200);
+				assertSameRows(linearScan(rows, x, y, x + w, y + h, f, f + len), query(store, x, y, x + w, y + h, f, f + len));
+			}
+			// the whole data set, empty frames, and outside the data
+			assertSameRows(linearScan(rows, -1e9, -1e9, 1e9, 1e9, 1, FRAMES), query(store, -1e9, -1e9, 1e9, 1e9, 1, FRAMES));
+			assertEquals(0, query(store, -1e9, -1e9, 1e9, 1e9, 7, 7).size());
+			assertEquals(0, query(store, 1e6, 1e6, 2e6, 2e6, 1, FRAMES).size());
+			assertEquals(0, query(store, -1e9, -1e9, 1e9, 1e9, FRAMES + 1, FRAMES + 10).size());
+		}
+	}
+
+	@Test
+	public void testFrameQueryAndCopy() {
+		List<double[]> rows = rows(new Random(5));
+		LocalizationStore store = fill(rows, true);
+		final ArrayList<Integer> visited = new ArrayList<Integer>();
+		store.query(100, 140, row -> visited.add(row));
+		List<double[]> expected = linearScan(rows, -1e9, -1e9, 1e9, 1e9, 100, 140);
+		assertEquals(expected.size(), visited.size());
+		for (int i = 0; i < visited.size(); i++) {
+			assertEquals(store.firstRow(100) + i, (int) visited.get(i));
+			assertEquals(expected.get(i)[3], store.getFrame(visited.get(i)), 0);
+		}
+
+		OctaneDataFile data = store.toOctaneDataFile();
+		for (int i = 0; i < rows.size(); i += 997) {
+			for (int k = 0; k < HEADERS.length; k++) {
+				assertEquals(rows.get(i)[k], data.data[k][i], 0);
+			}
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testFramesMustBeInOrder() {
+		LocalizationStore store = new LocalizationStore();
+		store.begin(HEADERS);
+		ArrayList<double[]> rows = new ArrayList<double[]>();
+		rows.add(new double[] {1, 2, 3, 5});
+		store.addFrame(5, rows);
+		store.addFrame(4, rows);
+	}
+}
@@ -0,0 +1,191 @@
+package edu.uchc.octane.analyze;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MMMappedTiffTest {
+
+	final static int W = 8, H = 4;
+	final static int MAP_CAPACITY = 16; // index map entries
+
+	File dir_;
+
+	@Before
+	public void setUp() throws IOException {
+		dir_ = Files.createTempDirectory("mmtiff").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		for (File f : dir_.listFiles()) {
+			f.delete();
+		}
+		dir_.delete();
+	}
+
+	// a little endian TIFF written like an acquisition in progress: pixels first, then the IFD, then the link to it
+	static class Writer {
+		final RandomAccessFile raf_;
+		final boolean indexMap_;
+		long link_ = 4; // where the offset of the next IFD goes
+		int count_;
+
+		Writer(File f, boolean indexMap) throws IOException {
+			raf_ = new RandomAccessFile(f, "rw");
+			indexMap_ = indexMap;
+			ByteBuffer b = buffer(16);
+			b.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(0);
+			if (indexMap) {
+				b.putInt(MMMappedTiff.MM_INDEX_MAP_OFFSET_HEADER).putInt(16);
+			}
+			raf_.write(b.array());
+			if (indexMap) {
+				ByteBuffer m = buffer(8 + 20 * MAP_CAPACITY);
+				m.putInt(MMMappedTiff.MM_INDEX_MAP_HEADER).putInt(0);
+				raf_.seek(16);
+				raf_.write(m.array());
+			}
+		}
+
+		static ByteBuffer buffer(int n) {
+			return ByteBuffer.allocate(n).order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		// the pixels only, as if the writer was interrupted
+		long writePixels(int value) throws IOException {
+			long offset = raf_.length();
+			ByteBuffer p = buffer(2 * W * H);
+			for (int i = 0; i < W * H; i++) {
+				p.putShort((short) (value + i));
+			}
+			raf_.seek(offset);
+			raf_.write(p.array());
+			return offset;
+		}
+
+		void add(int channel, int frame, int value) throws IOException {
+			long pixels = writePixels(value);
+			long ifd = raf_.length();
+			ByteBuffer b = buffer(2 + 6 * 12 + 4);
+			b.putShort((short) 6);
+			entry(b, 256, 3, W);
+			entry(b, 257, 3, H);
+			entry(b, 258, 3, 16);
+			entry(b, 259, 3, 1);
+			entry(b, 273, 4, (int) pixels);
+			entry(b, 277, 3, 1);
+			b.putInt(0);
+			raf_.seek(ifd);
+			raf_.write(b.array());
+			raf_.seek(link_);
+			raf_.write(buffer(4).putInt((int) ifd).array());
+			link_ = ifd + 2 + 6 * 12;
+			if (indexMap_) {
+				raf_.seek(16 + 8 + 20 * count_);
+				raf_.write(buffer(20).putInt(channel).putInt(0).putInt(frame).putInt(0).putInt((int) ifd).array());
+				raf_.seek(20);
+				raf_.write(buffer(4).putInt(count_ + 1).array());
+			}
+			count_ ++;
+		}
+
+		static void entry(ByteBuffer b, int tag, int type, int value) {
+			b.putShort((short) tag).putShort((short) type).putInt(1);
+			if (type == 3) {
+				b.putShort((short) value).putShort((short) 0);
+			} else {
+				b.putInt(value);
+			}
+		}
+
+		void close() throws IOException {
+			raf_.close();
+		}
+	}
+
+	static int value(MMMappedTiff tiff, int channel, int n, int i) {
+		return tiff.getFrameBuffer(channel, 0, 0, n).get(i);
+	}
+
+	@Test
+	public void testUpdateFollowsIfdChain() throws IOException {
+		Writer w = new Writer(new File(dir_, "a.tif"), false);
+		w.add(0, 0, 100);
+		w.add(0, 1, 200);
+		MMMappedTiff tiff = new MMMappedTiff(dir_.getPath(), W, H);
+		assertEquals(2, tiff.getSize());
+		assertEquals(203, value(tiff, 0, 2, 3));
+
+		assertFalse(tiff.update());
+		w.writePixels(999); // not linked yet
+		assertFalse(tiff.update());
+		w.add(0, 2, 300);
+		w.add(0, 3, 400);
+		assertTrue(tiff.update());
+		assertEquals(4, tiff.getSize());
+		assertEquals(100, value(tiff, 0, 1, 0));
+		assertEquals(405, value(tiff, 0, 4, 5));
+		w.close();
+
+		// a second file continues the sequence
+		Writer w2 = new Writer(new File(dir_, "b.tif"), false);
+		w2.add(0, 0, 500);
+		w2.close();
+		assertTrue(tiff.update());
+		assertEquals(5, tiff.getSize());
+		assertEquals(500, value(tiff, 0, 5, 0));
+	}
+
+	@Test
+	public void testUpdateReadsNewIndexMapEntries() throws IOException {
+		Writer w = new Writer(new File(dir_, "a.tif"), true);
+		w.add(0, 0, 100);
+		w.add(1, 0, 1100);
+		MMMappedTiff tiff = new MMMappedTiff(dir_.getPath(), W, H);
+		assertEquals(1, tiff.getSize(0, 0, 0));
+		assertEquals(1, tiff.getSize(1, 0, 0));
+
+		w.add(1, 1, 1200);
+		assertTrue(tiff.update());
+		assertEquals(1, tiff.getSize(0, 0, 0));
+		assertEquals(2, tiff.getSize(1, 0, 0));
+		assertEquals(1201, value(tiff, 1, 2, 1));
+
+		// channel 1 frame 3 arrives before frame 2: only the complete part is served
+		w.add(1, 3, 1400);
+		assertTrue(tiff.update());
+		assertEquals(2, tiff.getSize(1, 0, 0));
+		w.add(1, 2, 1300);
+		w.add(0, 1, 200);
+		assertTrue(tiff.update());
+		assertEquals(4, tiff.getSize(1, 0, 0));
+		assertEquals(2, tiff.getSize(0, 0, 0));
+		assertEquals(1300, value(tiff, 1, 3, 0));
+		assertEquals(1400, value(tiff, 1, 4, 0));
+		w.close();
+	}
+
+	@Test
+	public void testTruncatedImageIsNotServed() throws IOException {
+		Writer w = new Writer(new File(dir_, "a.tif"), false);
+		w.add(0, 0, 100);
+		w.add(0, 1, 200);
+		// cut into the pixels of the second frame, as if they were still being written
+		w.raf_.setLength(w.raf_.length() - (2 + 6 * 12 + 4) - 10);
+		MMMappedTiff tiff = new MMMappedTiff(dir_.getPath(), W, H);
+		assertEquals(1, tiff.getSize());
+		w.close();
+	}
+}
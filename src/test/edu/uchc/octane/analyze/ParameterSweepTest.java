@@ -0,0 +1,35 @@
+package edu.uchc.octane.analyze;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import ij.measure.ResultsTable;
+import ij.process.FloatProcessor;
+
+public class ParameterSweepTest {
+
+	@Test
+	public void testResolutionsOnlyForFittersThatUseThem() throws Exception {
+		ParticleAnalyzer2D params = FrameAnalyzer2DTest.analyzer(false);
+		ParameterSweep sweep = new ParameterSweep(params, new int[] {60, 120}, new String[] {"LS", "BatchMLE", "NoFit"}, new double[] {250, 300, 350});
+		assertEquals(1 + 3 + 1, sweep.fits_.length);
+
+		ImageStack stack = new ImageStack(40, 40);
+		for (int f = 0; f < 3; f++) {
+			double [] p = FrameAnalyzer2DTest.photons(40, 40, new double[] {10.3, 12.6, 28.1, 30.4}, f);
+			float [] counts = new float[p.length];
+			for (int i = 0; i < p.length; i++) {
+				counts[i] = (float) (p[i] + FrameAnalyzer2DTest.OFFSET);
+			}
+			stack.addSlice(new FloatProcessor(40, 40, counts));
+		}
+		ResultsTable table = sweep.run(stack, 1, 3);
+		assertEquals(2 * 5, table.getCounter());
+		assertEquals("LS", table.getStringValue("fitter", 0));
+		assertEquals("-", table.getStringValue("resolution", 0));
+		assertEquals("BatchMLE", table.getStringValue("fitter", 2));
+		assertEquals(300, table.getValue("resolution", 2), 0);
+	}
+}
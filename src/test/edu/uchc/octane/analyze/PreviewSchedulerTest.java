@@ -0,0 +1,47 @@
+package edu.uchc.octane.analyze;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PreviewSchedulerTest {
+
+	static List<double[]> result(double v) {
+		return Collections.singletonList(new double[] {v});
+	}
+
+	@Test
+	public void testOlderResultIsDropped() {
+		PreviewScheduler scheduler = new PreviewScheduler();
+		List<List<double[]>> shown = new ArrayList<List<double[]>>();
+		List<double[]> newer = result(2), older = result(1);
+		scheduler.deliver(2, newer, shown::add);
+		scheduler.deliver(1, older, shown::add);
+		assertEquals(1, shown.size());
+		assertSame(newer, shown.get(0));
+	}
+
+	@Test
+	public void testCachedResultIsDelivered() throws InterruptedException {
+		PreviewScheduler scheduler = new PreviewScheduler();
+		final List<double[]> first = result(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		scheduler.submit("a", cancelled -> first, r -> done.countDown());
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+
+		final List<List<double[]>> shown = new ArrayList<List<double[]>>();
+		scheduler.submit("b", cancelled -> result(2), r -> {});
+		scheduler.submit("a", cancelled -> null, shown::add);
+		assertEquals(1, shown.size());
+		assertSame(first, shown.get(0));
+		scheduler.close();
+	}
+}
@@ -0,0 +1,64 @@
+package edu.uchc.octane.analyze;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ProgressiveRendererTest {
+
+	final static String [] HEADERS = {"x", "y", "frame"};
+
+	static List<double[]> rows(int frame, double ... xy) {
+		ArrayList<double[]> rows = new ArrayList<double[]>();
+		for (int i = 0; i < xy.length; i += 2) {
+			rows.add(new double[] {xy[i], xy[i + 1], frame});
+		}
+		return rows;
+	}
+
+	static double sum(float [] p) {
+		double s = 0;
+		for (float v : p) {
+			s += v;
+		}
+		return s;
+	}
+
+	@Test
+	public void testHistogram() throws IOException {
+		ColumnBufferSink out = new ColumnBufferSink();
+		ProgressiveRenderer r = new ProgressiveRenderer(out, 1000, 500, 10, 0, 60000);
+		r.begin(HEADERS);
+		r.addFrame(1, rows(1, 15, 25, 18, 21, 995, 495));
+		r.addFrame(2, rows(2, -5, 20, 1005, 20)); // outside
+		r.end();
+		float [] p = (float []) r.getImage().getProcessor().getPixels();
+		assertEquals(100, r.getImage().getWidth());
+		assertEquals(50, r.getImage().getHeight());
+		assertEquals(2, p[2 * 100 + 1], 0);
+		assertEquals(1, p[49 * 100 + 99], 0);
+		assertEquals(3, sum(p), 0);
+		assertEquals(5, out.size_); // passed on unchanged
+	}
+
+	@Test
+	public void testSplat() throws IOException {
+		ProgressiveRenderer r = new ProgressiveRenderer(new ColumnBufferSink(), 1000, 1000, 10, 20, 60000);
+		r.begin(HEADERS);
+		r.addFrame(1, rows(1, 500, 500, 300, 700));
+		r.end();
+		float [] p = (float []) r.getImage().getProcessor().getPixels();
+		assertEquals(2, sum(p), 0.01);
+		assertEquals(p[49 * 100 + 49], p[50 * 100 + 50], 1e-6);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTooLargeIsRejected() {
+		// 1 nm pixels of a 1 mm field of view
+		new ProgressiveRenderer(new ColumnBufferSink(), 1e6, 1e6, 1, 0, 60000);
+	}
+}
@@ -0,0 +1,88 @@
+package edu.uchc.octane.analyze;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+
+public class RollingBackgroundTest {
+
+	final static int W = 16, H = 8, FRAMES = 200;
+
+	static ImageStack stack() {
+		Random r = new Random(11);
+		ImageStack stack = new ImageStack(W, H);
+		for (int f = 0; f < FRAMES; f++) {
+			short [] p = new short[W * H];
+			for (int i = 0; i < p.length; i++) {
+				p[i] = (short) (100 + i + r.nextInt(1000));
+			}
+			stack.addSlice(new ShortProcessor(W, H, p, null));
+		}
+		return stack;
+	}
+
+	// counts the sample frames read
+	static class CountingBackground extends RollingBackground {
+		int reads_;
+
+		CountingBackground(ImageStack stack, int window, int interval) {
+			super(stack, window, interval, 0.5);
+		}
+
+		@Override
+		void readSample(int sample, char [] dst) {
+			reads_ ++;
+			super.readSample(sample, dst);
+		}
+	}
+
+	// the median of the window of the frame, computed directly
+	static float expected(ImageStack stack, int window, int interval, int frame, int pixel) {
+		int nSamples = (FRAMES - 1) / interval + 1;
+		int center = (int) Math.round((frame - 1) / (double) interval);
+		int start = Math.max(0, Math.min(center - window / 2, nSamples - window));
+		int [] v = new int[window];
+		for (int s = 0; s < window; s++) {
+			v[s] = ((short []) stack.getPixels(1 + (start + s) * interval))[pixel] & 0xffff;
+		}
+		Arrays.sort(v);
+		return v[(int) Math.round(0.5 * (window - 1))];
+	}
+
+	@Test
+	public void testBackgroundInAnyOrder() {
+		ImageStack stack = stack();
+		RollingBackground bg = new RollingBackground(stack, 9, 3, 0.5);
+		int [] frames = {1, 40, 37, 20, 22, 150, 60, 59, 200, 3, 100, 97, 104};
+		for (int f : frames) {
+			float [] b = bg.getBackground(f);
+			for (int p = 0; p < W * H; p += 7) {
+				assertEquals("frame " + f, expected(stack, 9, 3, f, p), b[p], 0);
+			}
+		}
+	}
+
+	@Test
+	public void testWorkersBehindDoNotRebuild() {
+		final int window = 9, interval = 2, spread = 32;
+		CountingBackground bg = new CountingBackground(stack(), window, interval);
+		bg.setSpread(spread);
+		// the leading worker moves forward, one behind it asks for the window of an older frame
+		for (int f = 1; f <= FRAMES; f++) {
+			bg.getBackground(f);
+			if (f > spread) {
+				bg.getBackground(f - spread);
+			}
+		}
+		// the window is built once and then only slides forward
+		int nSamples = (FRAMES - 1) / interval + 1;
+		assertEquals(window + 2 * (nSamples - window), bg.reads_);
+	}
+}
@@ -0,0 +1,129 @@
+package edu.uchc.octane.analyze;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShardMergerTest {
+
+	final static String [] HEADERS = {"frame", "x", "y", TrackingSink.TRACK_HEADER};
+
+	File dir_;
+
+	@Before
+	public void setUp() throws IOException {
+		dir_ = Files.createTempDirectory("shards").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		for (File f : dir_.listFiles()) {
+			f.delete();
+		}
+		dir_.delete();
+	}
+
+	// frames first..last with two localizations each, on trajectories 1 and 2 of the shard
+	String shard(String name, String [] headers, int first, int last) throws IOException {
+		String path = new File(dir_, name + LocalizationFile.EXTENSION).getPath();
+		LocalizationFileWriter writer = new LocalizationFileWriter(path);
+		writer.begin(headers);
+		for (int f = first; f <= last; f++) {
+			ArrayList<double[]> rows = new ArrayList<double[]>();
+			rows.add(new double[] {f, 100 + f, 200, 1});
+			rows.add(new double[] {f, 300, 400 + f, 2});
+			writer.addFrame(f, rows);
+		}
+		writer.end();
+		return path;
+	}
+
+	static class Collector implements LocalizationSink {
+		final ArrayList<double[]> rows_ = new ArrayList<double[]>();
+		String [] headers_;
+		boolean ended_;
+
+		@Override
+		public void begin(String [] headers) {
+			headers_ = headers;
+		}
+
+		@Override
+		public void addFrame(int frame, List<double[]> rows) {
+			for (double [] r : rows) {
+				assertEquals(frame, r[0], 0);
+			}
+			rows_.addAll(rows);
+		}
+
+		@Override
+		public void end() {
+			ended_ = true;
+		}
+	}
+
+	@Test
+	public void testMergeInFrameOrder() throws IOException {
+		String a = shard("a", HEADERS, 1, 50);
+		String b = shard("b", HEADERS, 51, 80);
+		String c = shard("c", HEADERS, 81, 100);
+		String empty = shard("empty", HEADERS, 1, 0);
+		ShardMerger merger = new ShardMerger(Arrays.asList(c, empty, a, b));
+		assertEquals(3, merger.shards_.size());
+		Collector out = new Collector();
+		assertEquals(200, merger.merge(out));
+		assertTrue(out.ended_);
+		assertTrue(Arrays.equals(HEADERS, out.headers_));
+		assertEquals(200, out.rows_.size());
+
+		// frame order, and the two trajectories of each shard have their own ids
+		HashSet<Double> ids = new HashSet<Double>();
+		for (int i = 0; i < out.rows_.size(); i++) {
+			double [] r = out.rows_.get(i);
+			assertEquals(1 + i / 2, r[0], 0);
+			ids.add(r[3]);
+		}
+		assertEquals(6, ids.size());
+		assertEquals(out.rows_.get(0)[3], out.rows_.get(98)[3], 0);
+		assertTrue(out.rows_.get(98)[3] != out.rows_.get(100)[3]);
+		assertEquals(6, out.rows_.get(199)[3], 0);
+	}
+
+	@Test
+	public void testMergeToFile() throws IOException {
+		String a = shard("a", HEADERS, 1, 10);
+		String b = shard("b", HEADERS, 11, 20);
+		String output = new File(dir_, "merged" + LocalizationFile.EXTENSION).getPath();
+		assertEquals(40, new ShardMerger(Arrays.asList(b, a)).merge(output));
+		try (LocalizationFileReader reader = new LocalizationFileReader(output)) {
+			assertEquals(40, reader.size());
+			assertEquals(20, reader.getLastFrame());
+			assertTrue(Arrays.equals(HEADERS, reader.getHeaders()));
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testOverlappingShardsAreRejected() throws IOException {
+		String a = shard("a", HEADERS, 1, 50);
+		String b = shard("b", HEADERS, 50, 80);
+		new ShardMerger(Arrays.asList(b, a));
+	}
+
+	@Test(expected = IOException.class)
+	public void testDifferentColumnsAreRejected() throws IOException {
+		String a = shard("a", HEADERS, 1, 10);
+		String b = shard("b", new String[] {"frame", "x", "y", "intensity"}, 11, 20);
+		new ShardMerger(Arrays.asList(a, b));
+	}
+}
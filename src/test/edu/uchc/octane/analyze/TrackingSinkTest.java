@@ -0,0 +1,135 @@
+package edu.uchc.octane.analyze;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TrackingSinkTest {
+
+	final static String [] HEADERS = {"frame", "x", "y", "channel"};
+	final static double MAX_DISPLACEMENT = 1.5;
+	final static int MAX_GAP = 2;
+
+	HashMap<Integer, List<double[]>> out_;
+	TrackingSink tracker_;
+
+	@Before
+	public void setUp() throws IOException {
+		out_ = new HashMap<Integer, List<double[]>>();
+		tracker_ = new TrackingSink(new LocalizationSink() {
+			@Override
+			public void begin(String [] headers) {
+				assertEquals(TrackingSink.TRACK_HEADER, headers[HEADERS.length]);
+			}
+
+			@Override
+			public void addFrame(int frame, List<double[]> rows) {
+				out_.put(frame, rows);
+			}
+
+			@Override
+			public void end() {
+			}
+		}, MAX_DISPLACEMENT, MAX_GAP);
+		tracker_.begin(HEADERS);
+	}
+
+	// x, y, channel triples
+	void frame(int frame, double ... p) throws IOException {
+		ArrayList<double[]> rows = new ArrayList<double[]>();
+		for (int i = 0; i < p.length; i += 3) {
+			rows.add(new double[] {frame, p[i], p[i + 1], p[i + 2]});
+		}
+		tracker_.addFrame(frame, rows);
+	}
+
+	// the track id of the localization of the frame at x, y
+	long track(int frame, double x, double y) {
+		for (double [] r : out_.get(frame)) {
+			if (r[1] == x && r[2] == y) {
+				return (long) r[HEADERS.length];
+			}
+		}
+		throw new AssertionError("No localization at " + x + ", " + y + " in frame " + frame);
+	}
+
+	@Test
+	public void testCrossingParticlesKeepTheirIds() throws IOException {
+		// a moves along x, b along y, and b passes where a was three frames later
+		for (int f = 1; f <= 10; f++) {
+			frame(f, f, 0, 0, 5, f - 8, 0);
+		}
+		tracker_.end();
+		long a = track(1, 1, 0), b = track(1, 5, -7);
+		assertTrue(a != b);
+		for (int f = 2; f <= 10; f++) {
+			assertEquals(a, track(f, f, 0));
+			assertEquals(b, track(f, 5, f - 8));
+		}
+	}
+
+	@Test
+	public void testNearestPairsAreLinkedFirst() throws IOException {
+		frame(1, 0, 0, 0, 1, 0, 0);
+		// both are within reach of both tracks; each track takes one, by distance
+		frame(2, 0.1, 0, 0, 1.1, 0, 0);
+		tracker_.end();
+		assertEquals(track(1, 0, 0), track(2, 0.1, 0));
+		assertEquals(track(1, 1, 0), track(2, 1.1, 0));
+	}
+
+	@Test
+	public void testOneLocalizationPerTrackAndFrame() throws IOException {
+		frame(1, 0, 0, 0);
+		frame(2, 0.2, 0, 0, -0.5, 0, 0);
+		tracker_.end();
+		long t = track(1, 0, 0);
+		assertEquals(t, track(2, 0.2, 0));
+		assertTrue(track(2, -0.5, 0) != t);
+	}
+
+	@Test
+	public void testGaps() throws IOException {
+		frame(1, 0, 0, 0);
+		// missing for maxGap frames
+		frame(2 + MAX_GAP, 0.5, 0, 0);
+		// missing for maxGap + 1 frames
+		frame(3 + 2 * MAX_GAP + 1, 1, 0, 0);
+		tracker_.end();
+		assertEquals(track(1, 0, 0), track(2 + MAX_GAP, 0.5, 0));
+		assertTrue(track(2 + MAX_GAP, 0.5, 0) != track(3 + 2 * MAX_GAP + 1, 1, 0));
+	}
+
+	@Test
+	public void testJumpsStartNewTracks() throws IOException {
+		frame(1, 0, 0, 0);
+		frame(2, MAX_DISPLACEMENT, 0, 0);
+		frame(3, 2 * MAX_DISPLACEMENT + 0.01, 0, 0);
+		tracker_.end();
+		assertEquals(track(1, 0, 0), track(2, MAX_DISPLACEMENT, 0));
+		assertTrue(track(2, MAX_DISPLACEMENT, 0) != track(3, 2 * MAX_DISPLACEMENT + 0.01, 0));
+	}
+
+	@Test
+	public void testChannelsAreNotLinked() throws IOException {
+		frame(1, 0, 1.6, 0, 0, 1.6, 1);
+		frame(2, 0.1, 1.6, 1, 0.2, 1.6, 0);
+		// channel 31 one cell below channel 0 has the same grid key
+		assertEquals(tracker_.key(0, 0, 1), tracker_.key(31, 0, 0));
+		frame(3, 0.2, 1.4, 31);
+		tracker_.end();
+		long c0 = (long) out_.get(1).get(0)[4], c1 = (long) out_.get(1).get(1)[4];
+		assertTrue(c0 != c1);
+		assertEquals(c1, (long) out_.get(2).get(0)[4]);
+		assertEquals(c0, (long) out_.get(2).get(1)[4]);
+		long c31 = track(3, 0.2, 1.4);
+		assertTrue(c31 != c0 && c31 != c1);
+	}
+}